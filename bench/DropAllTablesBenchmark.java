@@ -0,0 +1,52 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark for {TableManager#dropAllTables}. It empties the catalog, so every call is
+ * measured on its own against a freshly filled one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DropAllTablesBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int tableCount;
+
+  @Param({"2", "50"})
+  public int attributeCount;
+
+  @Param({"memory"})
+  public String store;
+
+  private TableManagerImpl tableManager;
+  private String[] attributeNames;
+  private AttributeType[] attributeTypes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    tableManager = new TableManagerImpl(TableManagerBenchmark.openStore(store));
+    attributeNames = new String[attributeCount];
+    attributeTypes = new AttributeType[attributeCount];
+    for (int i = 0; i < attributeCount; i++) {
+      attributeNames[i] = "attr" + i;
+      attributeTypes[i] = AttributeType.INT;
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void fill() {
+    tableManager.dropAllTables();
+    TableManagerBenchmark.fillCatalog(tableManager, tableCount, attributeNames, attributeTypes,
+        new String[]{attributeNames[0]});
+  }
+
+  @Benchmark
+  public StatusCode dropAllTables() {
+    return tableManager.dropAllTables();
+  }
+}
@@ -0,0 +1,119 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the {TableManager} operations, run against a catalog that already holds
+ * tableCount tables of attributeCount attributes each.
+ *
+ * Every benchmark reports throughput and sampled latency (p50/p99/p999 in the JMH output).
+ * The store is the embedded in-memory one by default, -p store=fdb measures a live FoundationDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableManagerBenchmark {
+
+  @Param({"100", "1000", "10000", "100000"})
+  public int tableCount;
+
+  @Param({"2", "50"})
+  public int attributeCount;
+
+  @Param({"memory"})
+  public String store;
+
+  private TableManagerImpl tableManager;
+  private String[] attributeNames;
+  private AttributeType[] attributeTypes;
+  private String[] primaryKeys;
+
+  // tables and attributes created by the benchmarks, the tables are removed after every iteration
+  private int created;
+  private int lookups;
+  private final List<String> createdTables = new ArrayList<>();
+  private int addedAttributes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    tableManager = new TableManagerImpl(openStore(store));
+    attributeNames = new String[attributeCount];
+    attributeTypes = new AttributeType[attributeCount];
+    for (int i = 0; i < attributeCount; i++) {
+      attributeNames[i] = "attr" + i;
+      attributeTypes[i] = AttributeType.values()[i % AttributeType.values().length];
+    }
+    primaryKeys = new String[]{attributeNames[0]};
+
+    tableManager.dropAllTables();
+    fillCatalog(tableManager, tableCount, attributeNames, attributeTypes, primaryKeys);
+  }
+
+  @TearDown(Level.Iteration)
+  public void removeCreated() {
+    for (String tableName : createdTables) {
+      tableManager.deleteTable(tableName);
+    }
+    createdTables.clear();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tableManager.dropAllTables();
+  }
+
+  static KeyValueStore openStore(String store) {
+    return "fdb".equals(store) ? new FDBKeyValueStore() : new InMemoryKeyValueStore();
+  }
+
+  // creates Table0 .. Table(count - 1)
+  static void fillCatalog(TableManager tableManager, int count, String[] attributeNames,
+                          AttributeType[] attributeTypes, String[] primaryKeys) {
+    List<TableDefinition> definitions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      definitions.add(new TableDefinition("Table" + i, attributeNames, attributeTypes, primaryKeys));
+    }
+    tableManager.createTables(definitions);
+  }
+
+  @Benchmark
+  public StatusCode createTable() {
+    String tableName = "Created" + created++;
+    createdTables.add(tableName);
+    return tableManager.createTable(tableName, attributeNames, attributeTypes, primaryKeys);
+  }
+
+  @Benchmark
+  public StatusCode createAndDeleteTable() {
+    String tableName = "Created" + created++;
+    tableManager.createTable(tableName, attributeNames, attributeTypes, primaryKeys);
+    return tableManager.deleteTable(tableName);
+  }
+
+  @Benchmark
+  public Object listTables() {
+    return tableManager.listTables();
+  }
+
+  @Benchmark
+  public boolean tableExists() {
+    return tableManager.tableExists("Table" + (lookups++ % tableCount));
+  }
+
+  @Benchmark
+  public StatusCode addAttribute() {
+    return tableManager.addAttribute("Table0", "added" + addedAttributes++, AttributeType.INT);
+  }
+
+  @Benchmark
+  public StatusCode addAndDropAttribute() {
+    String attributeName = "added" + addedAttributes++;
+    tableManager.addAttribute("Table1", attributeName, AttributeType.VARCHAR);
+    return tableManager.dropAttribute("Table1", attributeName);
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Measures the heap a cached table takes as a {TableSchema} against the {TableMetadata} the catalog
+ * cache held before: tableCount tables of attributeCount attributes are built and kept, and the heap
+ * used before and after (each after a full collection) is divided by tableCount. Attribute names are
+ * decoded from the catalog as fresh strings for every table, as the cache sees them.
+ *
+ * Run after run_bench.sh has compiled it, optionally with the table and attribute counts:
+ * java -cp "out-bench:lib/*" TableSchemaFootprint 10000 50
+ */
+public class TableSchemaFootprint {
+
+  public static void main(String[] args) {
+    int tableCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    int attributeCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+    AttributeType[] attributeTypes = new AttributeType[attributeCount];
+    for (int i = 0; i < attributeCount; i++) {
+      attributeTypes[i] = AttributeType.values()[i % AttributeType.values().length];
+    }
+
+    // warms both up so that class loading and interned names are not counted
+    build(tableCount, attributeTypes, false);
+    build(tableCount, attributeTypes, true);
+
+    long metadataBytes = footprint(tableCount, attributeTypes, false);
+    long schemaBytes = footprint(tableCount, attributeTypes, true);
+    System.out.printf("%d tables of %d attributes: TableMetadata %d bytes per table, TableSchema %d bytes per table (%.0f%%)%n",
+            tableCount, attributeCount, metadataBytes, schemaBytes, 100.0 * schemaBytes / metadataBytes);
+  }
+
+  // the heap per table that tableCount tables take as schemas or as metadata
+  private static long footprint(int tableCount, AttributeType[] attributeTypes, boolean schemas) {
+    long before = usedHeap();
+    Object[] tables = build(tableCount, attributeTypes, schemas);
+    long after = usedHeap();
+    if (tables.length != tableCount)
+      throw new IllegalStateException();
+    return (after - before) / tableCount;
+  }
+
+  private static Object[] build(int tableCount, AttributeType[] attributeTypes, boolean schemas) {
+    Object[] tables = new Object[tableCount];
+    for (int t = 0; t < tableCount; t++) {
+      String[] attributeNames = new String[attributeTypes.length];
+      for (int i = 0; i < attributeNames.length; i++) {
+        attributeNames[i] = new String("attr" + i);
+      }
+      String[] primaryKeys = {attributeNames[0]};
+      tables[t] = schemas ? TableSchema.of(attributeNames, attributeTypes, primaryKeys)
+              : new TableMetadata(attributeNames, attributeTypes, primaryKeys);
+    }
+    return tables;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,12 @@
+# JMH benchmarks for TableManager. Needs jmh-core, jmh-generator-annprocess and their
+# dependencies (jopt-simple, commons-math3) in lib/bench. Extra JMH options are passed through,
+# e.g. bash run_bench.sh TableManagerBenchmark.listTables -p tableCount=1000 -p store=fdb
+OUT_DIR=out-bench
+rm -rf ${OUT_DIR}
+
+SRC_DIR=src
+BENCH_DIR=bench
+
+mkdir -p ${OUT_DIR}
+javac -d ${OUT_DIR} -cp ".:lib/*:lib/bench/*" ${SRC_DIR}/StatusCode.java ${SRC_DIR}/AttributeType.java ${SRC_DIR}/TableMetadata.java ${SRC_DIR}/TableSchema.java ${SRC_DIR}/TableDefinition.java ${SRC_DIR}/TablePage.java ${SRC_DIR}/KeyValueTransaction.java ${SRC_DIR}/KeyValueDirectory.java ${SRC_DIR}/KeyValueStore.java ${SRC_DIR}/FDBKeyValueStore.java ${SRC_DIR}/InMemoryKeyValueStore.java ${SRC_DIR}/OperationMetricsMBean.java ${SRC_DIR}/OperationMetrics.java ${SRC_DIR}/TableManagerMetrics.java ${SRC_DIR}/TableManager.java ${SRC_DIR}/AsyncTableManager.java ${SRC_DIR}/TableManagerImpl.java ${SRC_DIR}/TableManagerFactory.java ${SRC_DIR}/CatalogSnapshot.java ${SRC_DIR}/Record.java ${SRC_DIR}/RecordCursor.java ${SRC_DIR}/RecordManager.java ${SRC_DIR}/RecordManagerImpl.java ${SRC_DIR}/TableStatistics.java ${SRC_DIR}/BulkLoader.java ${SRC_DIR}/SchemaMigrator.java ${SRC_DIR}/ParallelScanner.java ${SRC_DIR}/StatisticsCollector.java ${BENCH_DIR}/TableManagerBenchmark.java ${BENCH_DIR}/DropAllTablesBenchmark.java ${BENCH_DIR}/MetricsBenchmark.java ${BENCH_DIR}/TableSchemaFootprint.java
+java ${JAVA_OPTS} -cp "${OUT_DIR}:./lib/*:./lib/bench/*" org.openjdk.jmh.Main "$@"
@@ -4,6 +4,5 @@ rm -rf ${OUT_DIR}
 SRC_DIR=src
 
 mkdir -p ${OUT_DIR}
-javac -d ${OUT_DIR} -cp ".:lib/*" ${SRC_DIR}/StatusCode.java ${SRC_DIR}/AttributeType.java ${SRC_DIR}/TableMetadata.java ${SRC_DIR}/TableManager.java ${SRC_DIR}/TableManagerImpl.java ${SRC_DIR}/TableManagerTest.java
-java -cp "${OUT_DIR}:./lib/*" org.junit.runner.JUnitCore TableManagerTest
-
+javac -d ${OUT_DIR} -cp ".:lib/*" ${SRC_DIR}/StatusCode.java ${SRC_DIR}/AttributeType.java ${SRC_DIR}/TableMetadata.java ${SRC_DIR}/TableSchema.java ${SRC_DIR}/TableDefinition.java ${SRC_DIR}/TablePage.java ${SRC_DIR}/KeyValueTransaction.java ${SRC_DIR}/KeyValueDirectory.java ${SRC_DIR}/KeyValueStore.java ${SRC_DIR}/FDBKeyValueStore.java ${SRC_DIR}/InMemoryKeyValueStore.java ${SRC_DIR}/OperationMetricsMBean.java ${SRC_DIR}/OperationMetrics.java ${SRC_DIR}/TableManagerMetrics.java ${SRC_DIR}/TableManager.java ${SRC_DIR}/AsyncTableManager.java ${SRC_DIR}/TableManagerImpl.java ${SRC_DIR}/TableManagerFactory.java ${SRC_DIR}/CatalogSnapshot.java ${SRC_DIR}/Record.java ${SRC_DIR}/RecordCursor.java ${SRC_DIR}/RecordManager.java ${SRC_DIR}/RecordManagerImpl.java ${SRC_DIR}/TableStatistics.java ${SRC_DIR}/BulkLoader.java ${SRC_DIR}/SchemaMigrator.java ${SRC_DIR}/ParallelScanner.java ${SRC_DIR}/StatisticsCollector.java ${SRC_DIR}/TableManagerTest.java ${SRC_DIR}/InMemoryKeyValueStoreTest.java ${SRC_DIR}/RecordManagerTest.java ${SRC_DIR}/BulkLoaderTest.java ${SRC_DIR}/TableSchemaTest.java ${SRC_DIR}/SchemaMigratorTest.java ${SRC_DIR}/ConcurrentDdlTest.java ${SRC_DIR}/ParallelScannerTest.java ${SRC_DIR}/StatisticsCollectorTest.java
+java ${JAVA_OPTS} -cp "${OUT_DIR}:./lib/*" org.junit.runner.JUnitCore TableManagerTest InMemoryKeyValueStoreTest RecordManagerTest BulkLoaderTest TableSchemaTest SchemaMigratorTest ConcurrentDdlTest ParallelScannerTest StatisticsCollectorTest
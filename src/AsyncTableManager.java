@@ -0,0 +1,146 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * AsyncTableManager is the non-blocking counterpart of {TableManager}. Every method returns as
+ * soon as its work has been issued, and the returned future completes with the same StatusCode
+ * (or tables) the blocking method would return.
+ */
+public interface AsyncTableManager {
+
+  /**
+   * Create a table with given name and attributes
+   *
+   * Error checking is the same as {TableManager#createTable}.
+   *
+   * @param tableName the table's name
+   * @param attributeNames the list of name of attributes
+   * @param attributeTypes the list of type of attributes
+   * @param primaryKeyAttributeNames the list of name of the primary-key attributes
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> createTableAsync(String tableName, String[] attributeNames, AttributeType[] attributeTypes, String[] primaryKeyAttributeNames);
+
+  /**
+   * Create many tables at once
+   *
+   * Behaves like {TableManager#createTables}.
+   *
+   * @param definitions the tables to create
+   * @return future of the status codes, in the same order as definitions
+   */
+  public CompletableFuture<List<StatusCode>> createTablesAsync(List<TableDefinition> definitions);
+
+  /**
+   * Delete a table by its name
+   *
+   * Error checking is the same as {TableManager#deleteTable}.
+   *
+   * @param tableName the table's name
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> deleteTableAsync(String tableName);
+
+  /**
+   * List all existing tables
+   * @return future of the map from tableName to table instance
+   */
+  public CompletableFuture<HashMap<String, TableMetadata>> listTablesAsync();
+
+  /**
+   * List one page of the tables in the database, see {TableManager#listTables(String, int)}
+   *
+   * @param startAfter the page starts with the first table after this name, null for the first page
+   * @param limit max number of tables the page covers
+   * @return future of the page
+   */
+  public CompletableFuture<TablePage> listTablesAsync(String startAfter, int limit);
+
+  /**
+   * List the names of one page of tables, see {TableManager#listTableNames}
+   *
+   * @param startAfter the page starts with the first table after this name, null for the first page
+   * @param limit max number of names
+   * @return future of the names
+   */
+  public CompletableFuture<List<String>> listTableNamesAsync(String startAfter, int limit);
+
+  /**
+   * Add a new attribute to a table
+   *
+   * Error checking is the same as {TableManager#addAttribute}.
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be added
+   * @param attributeType the type of the attribute to be added
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> addAttributeAsync(String tableName, String attributeName, AttributeType attributeType);
+
+  /**
+   * Add a new attribute to a table, which records stored before reads as defaultValue
+   *
+   * Error checking is the same as {TableManager#addAttribute(String, String, AttributeType, Object)}.
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be added
+   * @param attributeType the type of the attribute to be added
+   * @param defaultValue the value of the attribute in records stored before, null for none
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> addAttributeAsync(String tableName, String attributeName, AttributeType attributeType,
+                                                         Object defaultValue);
+
+  /**
+   * Add many new attributes to a table at once
+   *
+   * Behaves like {TableManager#addAttributes}.
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributes map from name to type of the attributes to be added
+   * @return future of the map from attribute name to its status code
+   */
+  public CompletableFuture<LinkedHashMap<String, StatusCode>> addAttributesAsync(String tableName, Map<String, AttributeType> attributes);
+
+  /**
+   * Drop an existing attribute in a table
+   *
+   * Error checking is the same as {TableManager#dropAttribute}.
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be dropped
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropAttributeAsync(String tableName, String attributeName);
+
+  /**
+   * Create a secondary index on an attribute and backfill it
+   *
+   * Error checking is the same as {TableManager#createIndex}.
+   *
+   * @param tableName the name of the table
+   * @param attributeName the name of the attribute to index
+   * @return future of the status code, completes once the index is ready
+   */
+  public CompletableFuture<StatusCode> createIndexAsync(String tableName, String attributeName);
+
+  /**
+   * Drop the secondary index of an attribute
+   *
+   * Error checking is the same as {TableManager#dropIndex}.
+   *
+   * @param tableName the name of the table
+   * @param attributeName the name of the indexed attribute
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropIndexAsync(String tableName, String attributeName);
+
+  /**
+   * Drop all tables in the database
+   * @return future of the status code
+   */
+  public CompletableFuture<StatusCode> dropAllTablesAsync();
+}
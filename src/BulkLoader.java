@@ -0,0 +1,485 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * BulkLoader streams records into a table's raw directory, many per transaction.
+ *
+ * The source is read a window of parallelism batches' worth of records at a time. A window is sorted
+ * by primary key and cut into batches of at most maxBatchBytes encoded bytes and maxBatchRows rows,
+ * well below FoundationDB's 10MB / 5s transaction limits, which commit at once. The batches hold
+ * disjoint key ranges, so they never conflict; the next window is read once they have all committed,
+ * so a record replaces those before it in the source, and one window is held in memory at a time.
+ *
+ * Records are written blindly: one with the primary key of a stored record replaces it, and a batch
+ * that is committed twice leaves the same data behind. A table with secondary indexes or statistics
+ * (see {TableStatistics}) has the records being replaced read, to keep them in sync; as every
+ * statistic follows from those reads, a batch committed twice does not count its records twice.
+ * Records that do not fit the table are counted as rejected and skipped.
+ *
+ * Every batch commits a marker under (TablesBulkLoad, tableName, loadId, batchIndex) with it. When a
+ * load fails, running it again with the same loadId and the same source skips the rows of the
+ * windows whose batches had all committed without a gap before it. The markers are cleared once a
+ * load completes.
+ */
+public class BulkLoader {
+
+  // checkpoint markers of unfinished loads, (tableName, loadId, batchIndex) -> (rowsConsumed)
+  private static final Subspace CHECKPOINTS = new Subspace(Tuple.from("TablesBulkLoad"));
+
+  private final TableManagerImpl tableManager;
+
+  private long maxBatchBytes = 1_000_000;
+  private int maxBatchRows = 10_000;
+  private int parallelism = 4;
+  private Consumer<Progress> progressListener;
+
+  /**
+   * Counts of a load so far, or of a finished load
+   */
+  public static class Progress {
+    public final StatusCode status;
+    public final long rowsLoaded;
+    public final long rowsRejected;
+    // rows skipped because a previous run of the load had committed them
+    public final long rowsResumed;
+    public final long batches;
+    public final long elapsedNanos;
+
+    Progress(StatusCode status, long rowsLoaded, long rowsRejected, long rowsResumed, long batches, long elapsedNanos) {
+      this.status = status;
+      this.rowsLoaded = rowsLoaded;
+      this.rowsRejected = rowsRejected;
+      this.rowsResumed = rowsResumed;
+      this.batches = batches;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public double rowsPerSecond() {
+      return elapsedNanos == 0 ? 0 : rowsLoaded * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d rows loaded (%.0f rows/s), %d rejected, %d resumed, %d batches",
+              status, rowsLoaded, rowsPerSecond(), rowsRejected, rowsResumed, batches);
+    }
+  }
+
+  public BulkLoader(TableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  public BulkLoader setMaxBatchBytes(long maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+    return this;
+  }
+
+  public BulkLoader setMaxBatchRows(int maxBatchRows) {
+    this.maxBatchRows = maxBatchRows;
+    return this;
+  }
+
+  public BulkLoader setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * @param progressListener called after every committed batch, from the thread that committed it
+   */
+  public BulkLoader setProgressListener(Consumer<Progress> progressListener) {
+    this.progressListener = progressListener;
+    return this;
+  }
+
+  // a record read from the source, with its primary key (null if it has none) and encoded size
+  private static final class Row {
+    final Record record;
+    final Tuple primaryKey;
+    final long bytes;
+
+    Row(TableSchema table, Record record) {
+      this.record = record;
+      this.primaryKey = RecordManagerImpl.primaryKey(table, record);
+      this.bytes = estimateBytes(table, record);
+    }
+  }
+
+  // the records of one batch, and how many source rows have been consumed once it is written
+  private static final class Batch {
+    final long index;
+    final List<Record> records = new ArrayList<>();
+    long bytes;
+    long rowsConsumed;
+
+    Batch(long index) {
+      this.index = index;
+    }
+  }
+
+  // running totals, guarded by the Loader
+  private final class Loader {
+    final String tableName;
+    final String loadId;
+    final long start = System.nanoTime();
+    final long rowsResumed;
+    long rowsLoaded;
+    long rowsRejected;
+    long batches;
+
+    Loader(String tableName, String loadId, long rowsResumed) {
+      this.tableName = tableName;
+      this.loadId = loadId;
+      this.rowsResumed = rowsResumed;
+    }
+
+    synchronized Progress progress() {
+      return new Progress(StatusCode.SUCCESS, rowsLoaded, rowsRejected, rowsResumed, batches, System.nanoTime() - start);
+    }
+
+    // writes a batch and its marker in one transaction
+    CompletableFuture<Void> commit(Batch batch) {
+      // counts of the attempt that committed
+      long[] counts = new long[2];
+
+      return tableManager.getMetrics().time("bulkLoad", op -> tableManager.runAsync(op, tx ->
+              tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+                if (table == null)
+                  throw new IllegalStateException("table " + tableName + " was dropped during the load");
+
+                Subspace[] rawDir = new Subspace[1];
+                Subspace[] metaDir = new Subspace[1];
+                boolean readsReplaced = table.hasIndexes() || table.hasStatistics();
+                return tableManager.openTableDir(tx, tableName, "raw").thenCompose(dir -> {
+                  rawDir[0] = dir;
+                  return tableManager.openTableDir(tx, tableName, "meta");
+                }).thenCompose(dir -> {
+                  metaDir[0] = dir;
+                  return !table.hasIndexes() ? CompletableFuture.completedFuture(null)
+                          : tableManager.openTableDir(tx, tableName, "index");
+                }).thenCompose(indexDir -> {
+                  counts[0] = 0;
+                  counts[1] = 0;
+                  List<Record> valid = new ArrayList<>(batch.records.size());
+                  List<Tuple> primaryKeys = new ArrayList<>(batch.records.size());
+                  for (Record record : batch.records) {
+                    Tuple primaryKey = RecordManagerImpl.primaryKey(table, record);
+                    if (RecordManagerImpl.validate(table, record) != null || primaryKey == null) {
+                      counts[1]++;
+                      continue;
+                    }
+                    valid.add(record);
+                    primaryKeys.add(primaryKey);
+                  }
+
+                  // the records being replaced are read, to clear their index entries and take them
+                  // out of the statistics
+                  List<CompletableFuture<byte[]>> existing = new ArrayList<>();
+                  if (readsReplaced) {
+                    for (Tuple primaryKey : primaryKeys) {
+                      existing.add(tx.get(rawDir[0].pack(primaryKey)));
+                    }
+                  }
+
+                  return AsyncUtil.whenAll(existing).thenCompose(read -> {
+                    // records written earlier in this batch replace the stored ones
+                    Map<Tuple, Record> written = new HashMap<>();
+                    List<CompletableFuture<Void>> statistics = new ArrayList<>();
+                    for (int i = 0; i < valid.size(); i++) {
+                      Tuple primaryKey = primaryKeys.get(i);
+                      byte[] key = rawDir[0].pack(primaryKey);
+                      tx.set(key, RecordManagerImpl.encodeValues(table, valid.get(i)));
+                      if (readsReplaced) {
+                        Record before = written.get(primaryKey);
+                        if (before == null && existing.get(i).join() != null)
+                          before = RecordManagerImpl.decode(table, primaryKey, existing.get(i).join());
+                        if (indexDir != null)
+                          RecordManagerImpl.updateIndexes(tx, table, indexDir, primaryKey, before, valid.get(i));
+                        statistics.add(TableStatistics.update(tx, table, metaDir[0], key, before, valid.get(i)));
+                        written.put(primaryKey, valid.get(i));
+                      }
+                      counts[0]++;
+                    }
+                    tx.set(CHECKPOINTS.pack(Tuple.from(tableName, loadId, batch.index)),
+                            Tuple.from(batch.rowsConsumed).pack());
+                    return AsyncUtil.whenAll(statistics);
+                  });
+                });
+              }))).thenRun(() -> {
+        Progress progress;
+        synchronized (this) {
+          rowsLoaded += counts[0];
+          rowsRejected += counts[1];
+          batches++;
+          progress = progress();
+        }
+        if (progressListener != null)
+          progressListener.accept(progress);
+      });
+    }
+  }
+
+  /**
+   * Load records into a table
+   *
+   * @param tableName the table's name
+   * @param loadId names the load, so that running it again resumes it
+   * @param records the records, in the same order every time the load is run
+   * @return the counts of the load, TABLE_NOT_FOUND if the table does not exist
+   * @throws CompletionException when a batch cannot be committed, after the batches in flight have finished
+   */
+  public Progress load(String tableName, String loadId, Iterator<Record> records) {
+    TableSchema table = tableManager.readAsync(null, tx -> tableManager.resolveTable(tx, tableName)).join();
+    if (table == null)
+      return new Progress(StatusCode.TABLE_NOT_FOUND, 0, 0, 0, 0, 0);
+
+    // resume after the markers that committed without a gap
+    Subspace checkpoints = CHECKPOINTS.subspace(Tuple.from(tableName, loadId));
+    List<KeyValue> markers = tableManager.readAsync(null, tx -> tx.getRange(checkpoints.range())).join();
+    long nextBatch = 0;
+    long rowsResumed = 0;
+    for (KeyValue marker : markers) {
+      if (checkpoints.unpack(marker.getKey()).getLong(0) != nextBatch)
+        break;
+      nextBatch++;
+      rowsResumed = Tuple.fromBytes(marker.getValue()).getLong(0);
+    }
+    for (long skipped = 0; skipped < rowsResumed && records.hasNext(); skipped++) {
+      records.next();
+    }
+
+    // the markers after the gap are of a window that is loaded again
+    if (markers.size() > nextBatch) {
+      byte[] stale = checkpoints.pack(Tuple.from(nextBatch));
+      tableManager.runAsync(null, tx -> {
+        tx.clear(new Range(stale, checkpoints.range().end));
+        return CompletableFuture.completedFuture(null);
+      }).join();
+    }
+
+    Loader loader = new Loader(tableName, loadId, rowsResumed);
+    Semaphore inFlight = new Semaphore(parallelism);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    long rowsConsumed = rowsResumed;
+
+    try {
+      while (failure.get() == null && records.hasNext()) {
+        long windowStart = rowsConsumed;
+        List<Row> window = new ArrayList<>();
+        long windowBytes = 0;
+        while (records.hasNext() && window.size() < (long) parallelism * maxBatchRows
+                && windowBytes < parallelism * maxBatchBytes) {
+          Row row = new Row(table, records.next());
+          rowsConsumed++;
+          window.add(row);
+          windowBytes += row.bytes;
+        }
+
+        List<Batch> batches = partition(window, nextBatch);
+        nextBatch += batches.size();
+        // a window is resumed from its start unless all of its batches committed
+        for (Batch batch : batches) {
+          batch.rowsConsumed = windowStart;
+        }
+        batches.get(batches.size() - 1).rowsConsumed = rowsConsumed;
+
+        for (Batch batch : batches) {
+          inFlight.acquireUninterruptibly();
+          loader.commit(batch).whenComplete((done, error) -> {
+            if (error != null)
+              failure.compareAndSet(null, error);
+            inFlight.release();
+          });
+        }
+        inFlight.acquireUninterruptibly(parallelism);
+        inFlight.release(parallelism);
+      }
+    } finally {
+      // wait for every batch in flight, also when reading the source failed
+      inFlight.acquireUninterruptibly(parallelism);
+      inFlight.release(parallelism);
+    }
+    if (failure.get() != null)
+      throw failure.get() instanceof CompletionException
+              ? (CompletionException) failure.get() : new CompletionException(failure.get());
+
+    tableManager.runAsync(null, tx -> {
+      tx.clear(checkpoints.range());
+      return CompletableFuture.completedFuture(null);
+    }).join();
+    return loader.progress();
+  }
+
+  // cuts a window into batches of disjoint primary key ranges, in key order. The records of one primary
+  // key stay in one batch, in source order, so the last one is written last. Records without a primary
+  // key, rejected when their batch commits, go last
+  private List<Batch> partition(List<Row> window, long firstIndex) {
+    window.sort(Comparator.comparing((Row row) -> row.primaryKey, Comparator.nullsLast(Comparator.<Tuple>naturalOrder())));
+
+    List<Batch> batches = new ArrayList<>();
+    Batch batch = new Batch(firstIndex);
+    Tuple last = null;
+    for (Row row : window) {
+      boolean sameKey = row.primaryKey != null && row.primaryKey.equals(last);
+      if (!sameKey && !batch.records.isEmpty()
+              && (batch.records.size() >= maxBatchRows || batch.bytes >= maxBatchBytes)) {
+        batches.add(batch);
+        batch = new Batch(batch.index + 1);
+      }
+      batch.records.add(row.record);
+      batch.bytes += row.bytes;
+      last = row.primaryKey;
+    }
+    batches.add(batch);
+    return batches;
+  }
+
+  // encoded size of a record, anything invalid is rejected when its batch commits
+  private static long estimateBytes(TableSchema table, Record record) {
+    Tuple primaryKey = RecordManagerImpl.primaryKey(table, record);
+    long bytes = 32 + (primaryKey == null ? 0 : primaryKey.getPackedSize());
+    if (RecordManagerImpl.validate(table, record) == null)
+      bytes += RecordManagerImpl.encodeValues(table, record).length;
+    return bytes;
+  }
+
+  /**
+   * Load a CSV file into a table, see loadCsv(tableName, loadId, csv). The loadId is the file's
+   * absolute path, size and modification time, so a load is only resumed from the same file unchanged
+   *
+   * @return the counts of the load, TABLE_NOT_FOUND if the table does not exist
+   */
+  public Progress loadCsv(String tableName, Path csv) throws IOException {
+    return loadCsv(tableName, csvLoadId(csv), csv);
+  }
+
+  static String csvLoadId(Path csv) throws IOException {
+    return csv.toAbsolutePath().normalize() + ":" + Files.size(csv) + ":" + Files.getLastModifiedTime(csv).toMillis();
+  }
+
+  /**
+   * Load a CSV file into a table. The first line names the attributes of the columns, empty fields
+   * are null. Fields may be quoted with ", and "" in a quoted field stands for ".
+   *
+   * @param loadId names the load, so that running it again on the same file resumes it
+   * @return the counts of the load, TABLE_NOT_FOUND if the table does not exist
+   */
+  public Progress loadCsv(String tableName, String loadId, Path csv) throws IOException {
+    TableSchema table = tableManager.readAsync(null, tx -> tableManager.resolveTable(tx, tableName)).join();
+    if (table == null)
+      return new Progress(StatusCode.TABLE_NOT_FOUND, 0, 0, 0, 0, 0);
+
+    try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+      String header = reader.readLine();
+      if (header == null)
+        return new Progress(StatusCode.SUCCESS, 0, 0, 0, 0, 0);
+
+      List<String> attributeNames = parseCsvLine(header);
+      return load(tableName, loadId, new Iterator<Record>() {
+        String line = readLine(reader);
+
+        @Override
+        public boolean hasNext() {
+          return line != null;
+        }
+
+        @Override
+        public Record next() {
+          if (line == null)
+            throw new NoSuchElementException();
+          Record record = parseCsvRecord(table, attributeNames, parseCsvLine(line));
+          line = readLine(reader);
+          return record;
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static String readLine(BufferedReader reader) {
+    try {
+      String line;
+      do {
+        line = reader.readLine();
+      } while (line != null && line.isEmpty());
+      return line;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static List<String> parseCsvLine(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  // a record of the fields of a line, a field that does not parse as its attribute's type is kept
+  // as a String so the record is rejected
+  private static Record parseCsvRecord(TableSchema table, List<String> attributeNames, List<String> fields) {
+    Record record = new Record();
+    for (int i = 0; i < attributeNames.size() && i < fields.size(); i++) {
+      String field = fields.get(i);
+      if (field.isEmpty())
+        continue;
+
+      AttributeType type = table.getAttributeType(attributeNames.get(i));
+      Object value = field;
+      try {
+        if (type == AttributeType.INT)
+          value = Long.parseLong(field.trim());
+        else if (type == AttributeType.DOUBLE)
+          value = Double.parseDouble(field.trim());
+      } catch (NumberFormatException e) {
+        value = field;
+      }
+      record.setValue(attributeNames.get(i), value);
+    }
+    return record;
+  }
+}
@@ -0,0 +1,189 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class BulkLoaderTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"SSN"};
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl();
+    recordManager = new RecordManagerImpl(tableManager);
+
+    tableManager.dropAllTables();
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+  }
+
+  @After
+  public void close() {
+    tableManager.close();
+  }
+
+  // employees 0 until rows, failing when failAt is reached
+  private static Iterator<Record> employees(int rows, int failAt) {
+    return new Iterator<Record>() {
+      int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < rows;
+      }
+
+      @Override
+      public Record next() {
+        if (next == failAt)
+          throw new IllegalStateException("source failed");
+        int ssn = next++;
+        return new Record().setValue("SSN", ssn).setValue("Name", "Employee" + ssn);
+      }
+    };
+  }
+
+  @Test
+  public void loadIsResumedAfterFailure() {
+    BulkLoader loader = new BulkLoader(tableManager).setMaxBatchRows(100).setParallelism(1);
+    try {
+      loader.load(EmployeeTableName, "employees", employees(1000, 250));
+      fail("the source failed");
+    } catch (IllegalStateException e) {
+      // the batches before the failure are committed
+    }
+    assertEquals("Employee199", recordManager.getRecord(EmployeeTableName, new Object[]{199}).getValue("Name"));
+    assertNull(recordManager.getRecord(EmployeeTableName, new Object[]{200}));
+
+    BulkLoader.Progress progress = new BulkLoader(tableManager).setMaxBatchRows(100).setParallelism(3)
+        .load(EmployeeTableName, "employees", employees(1000, -1));
+    assertEquals(StatusCode.SUCCESS, progress.status);
+    assertEquals(200, progress.rowsResumed);
+    assertEquals(800, progress.rowsLoaded);
+    assertEquals(8, progress.batches);
+    assertEquals("Employee999", recordManager.getRecord(EmployeeTableName, new Object[]{999}).getValue("Name"));
+
+    // a completed load starts over
+    progress = loader.load(EmployeeTableName, "employees", employees(10, -1));
+    assertEquals(0, progress.rowsResumed);
+    assertEquals(10, progress.rowsLoaded);
+
+    // replaced records are not counted again
+    assertEquals(Long.valueOf(1000), ((RecordManagerImpl) recordManager).countRecords(EmployeeTableName));
+
+    assertEquals(StatusCode.TABLE_NOT_FOUND, loader.load("Department", "employees", employees(10, -1)).status);
+  }
+
+  @Test
+  public void sourceOutOfKeyOrderIsLoadedInKeyRanges() {
+    // ssn i * 7 % 1000, the rows after the first 1000 replace earlier ones
+    BulkLoader.Progress progress = new BulkLoader(tableManager).setMaxBatchRows(50).setParallelism(4)
+        .load(EmployeeTableName, "employees", new Iterator<Record>() {
+          int next = 0;
+
+          @Override
+          public boolean hasNext() {
+            return next < 1500;
+          }
+
+          @Override
+          public Record next() {
+            int row = next++;
+            return new Record().setValue("SSN", row * 7 % 1000).setValue("Name", "Employee" + row);
+          }
+        });
+    assertEquals(1500, progress.rowsLoaded);
+    assertEquals(30, progress.batches);
+
+    // batches of one window hold disjoint key ranges, so none of them conflicts
+    OperationMetrics.Snapshot bulkLoad = tableManager.getMetrics().snapshot().get("bulkLoad");
+    assertEquals(bulkLoad.commits, bulkLoad.transactions);
+    assertEquals(Long.valueOf(1000), ((RecordManagerImpl) recordManager).countRecords(EmployeeTableName));
+    assertEquals("Employee1000", recordManager.getRecord(EmployeeTableName, new Object[]{0}).getValue("Name"));
+    assertEquals("Employee1001", recordManager.getRecord(EmployeeTableName, new Object[]{7}).getValue("Name"));
+    assertEquals("Employee999", recordManager.getRecord(EmployeeTableName, new Object[]{993}).getValue("Name"));
+  }
+
+  @Test
+  public void loadCsv() throws IOException {
+    Path csv = Files.createTempFile("employees", ".csv");
+    try {
+      Files.write(csv, Arrays.asList(
+          "SSN,Name,Salary",
+          "1,\"Smith, \"\"Al\"\"\",10.5",
+          "2,Bo,",
+          "three,Cy,1.0",
+          "4,,2"), StandardCharsets.UTF_8);
+
+      BulkLoader.Progress progress = new BulkLoader(tableManager).setMaxBatchBytes(64).loadCsv(EmployeeTableName, csv);
+      assertEquals(3, progress.rowsLoaded);
+      assertEquals(1, progress.rowsRejected);
+
+      assertEquals(new Record().setValue("SSN", 1L).setValue("Name", "Smith, \"Al\"").setValue("Salary", 10.5),
+          recordManager.getRecord(EmployeeTableName, new Object[]{1}));
+      assertEquals(new Record().setValue("SSN", 2L).setValue("Name", "Bo"),
+          recordManager.getRecord(EmployeeTableName, new Object[]{2}));
+      assertEquals(new Record().setValue("SSN", 4L).setValue("Salary", 2.0),
+          recordManager.getRecord(EmployeeTableName, new Object[]{4}));
+    } finally {
+      Files.delete(csv);
+    }
+  }
+
+  @Test
+  public void csvLoadsResumeOnlyFromTheSameFile() throws IOException {
+    Path first = Files.createTempDirectory("first");
+    Path second = Files.createTempDirectory("second");
+    Path firstCsv = first.resolve("employees.csv");
+    Path secondCsv = second.resolve("employees.csv");
+    try {
+      List<String> lines = new ArrayList<>();
+      lines.add("SSN,Name");
+      for (int ssn = 0; ssn < 1000; ssn++)
+        lines.add(ssn + ",Employee" + ssn);
+      Files.write(firstCsv, lines, StandardCharsets.UTF_8);
+      Files.write(secondCsv, Arrays.asList("SSN,Name", "5000,Other", "5001,Other"), StandardCharsets.UTF_8);
+
+      // a load of the first file fails after committing 200 rows
+      BulkLoader loader = new BulkLoader(tableManager).setMaxBatchRows(100).setParallelism(1);
+      try {
+        loader.load(EmployeeTableName, BulkLoader.csvLoadId(firstCsv), employees(1000, 250));
+        fail("the source failed");
+      } catch (IllegalStateException e) {
+        // the batches before the failure are committed
+      }
+
+      // a file of the same name elsewhere is loaded from its start
+      BulkLoader.Progress progress = loader.loadCsv(EmployeeTableName, secondCsv);
+      assertEquals(0, progress.rowsResumed);
+      assertEquals(2, progress.rowsLoaded);
+      assertEquals("Other", recordManager.getRecord(EmployeeTableName, new Object[]{5001}).getValue("Name"));
+
+      progress = loader.loadCsv(EmployeeTableName, firstCsv);
+      assertEquals(200, progress.rowsResumed);
+      assertEquals(800, progress.rowsLoaded);
+      assertEquals(Long.valueOf(1002), ((RecordManagerImpl) recordManager).countRecords(EmployeeTableName));
+    } finally {
+      Files.delete(firstCsv);
+      Files.delete(secondCsv);
+      Files.delete(first);
+      Files.delete(second);
+    }
+  }
+}
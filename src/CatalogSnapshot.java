@@ -0,0 +1,156 @@
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CatalogSnapshot is the binary file {TableManagerImpl#exportCatalog} writes and
+ * {TableManagerImpl#importCatalog} reads: every table of a catalog with its descriptor, as of one
+ * catalog version.
+ *
+ * The file is a header, (MAGIC, FORMAT, catalogVersion, rootGeneration, tableCount), followed by one
+ * length-prefixed packed tuple per table, (name, descriptor, schemaVersion, nextPosition,
+ * (primaryKeyName...), ((attributeName, typeName, sinceVersion, defaultValue, indexStateName,
+ * aggregateStateName)...), countStateName), in name order. The descriptor is null for a table that had
+ * none, and a state null for an index, aggregate or row count that is not kept. Snapshots written
+ * before row counts and aggregates were kept end their tuples before those. Numbers in the header
+ * are big-endian.
+ */
+final class CatalogSnapshot {
+
+  private static final int MAGIC = 0x54424c43; // "TBLC"
+  private static final int FORMAT = 1;
+
+  final long catalogVersion;
+  final long rootGeneration;
+  final List<Table> tables;
+
+  static final class Table {
+    final String name;
+    // null for a table without a descriptor
+    final byte[] descriptor;
+    final TableSchema schema;
+
+    Table(String name, byte[] descriptor, TableSchema schema) {
+      this.name = name;
+      this.descriptor = descriptor;
+      this.schema = schema;
+    }
+  }
+
+  CatalogSnapshot(long catalogVersion, long rootGeneration, List<Table> tables) {
+    this.catalogVersion = catalogVersion;
+    this.rootGeneration = rootGeneration;
+    this.tables = tables;
+  }
+
+  // writes the snapshot next to path and moves it there, so path always holds a whole snapshot
+  void write(Path path) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeLong(catalogVersion);
+      out.writeLong(rootGeneration);
+      out.writeInt(tables.size());
+      for (Table table : tables) {
+        byte[] packed = encode(table);
+        out.writeInt(packed.length);
+        out.write(packed);
+      }
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static byte[] encode(Table table) {
+    TableSchema schema = table.schema;
+    List<Object> primaryKeys = new ArrayList<>(schema.getPrimaryKeyCount());
+    for (int i = 0; i < schema.getPrimaryKeyCount(); i++) {
+      primaryKeys.add(schema.getPrimaryKeyName(i));
+    }
+    List<Object> attributes = new ArrayList<>(schema.getAttributeCount());
+    for (int i = 0; i < schema.getAttributeCount(); i++) {
+      attributes.add(Tuple.from(schema.getAttributeName(i), schema.getAttributeType(i).name(),
+          schema.getSinceVersion(i), schema.getDefaultValue(i), nameOf(schema.getIndexState(i)),
+          nameOf(schema.getAggregateState(i))));
+    }
+    return Tuple.from(table.name, table.descriptor, schema.getSchemaVersion(), schema.getNextPosition(),
+        Tuple.fromList(primaryKeys), Tuple.fromList(attributes), nameOf(schema.getCountState())).pack();
+  }
+
+  private static String nameOf(TableMetadata.IndexState state) {
+    return state == null ? null : state.name();
+  }
+
+  /**
+   * Read a snapshot, the file is mapped rather than copied in
+   *
+   * @throws IOException if the file cannot be read or is not a catalog snapshot
+   */
+  static CatalogSnapshot read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try {
+        if (buffer.getInt() != MAGIC)
+          throw new IOException("not a catalog snapshot: " + path);
+        int format = buffer.getInt();
+        if (format != FORMAT)
+          throw new IOException("unsupported catalog snapshot format " + format + ": " + path);
+
+        long catalogVersion = buffer.getLong();
+        long rootGeneration = buffer.getLong();
+        // every table takes at least its length, lengths are checked before anything is allocated
+        int count = checkLength(buffer.getInt(), buffer.remaining() / Integer.BYTES, path);
+        List<Table> tables = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          byte[] packed = new byte[checkLength(buffer.getInt(), buffer.remaining(), path)];
+          buffer.get(packed);
+          tables.add(decode(Tuple.fromBytes(packed)));
+        }
+        return new CatalogSnapshot(catalogVersion, rootGeneration, tables);
+      } catch (BufferUnderflowException | IllegalArgumentException | ClassCastException e) {
+        throw new IOException("truncated or corrupt catalog snapshot: " + path, e);
+      }
+    }
+  }
+
+  private static int checkLength(int length, int available, Path path) throws IOException {
+    if (length < 0 || length > available)
+      throw new IOException("truncated or corrupt catalog snapshot: " + path);
+    return length;
+  }
+
+  private static Table decode(Tuple table) {
+    TableSchema.Builder builder = new TableSchema.Builder().setSchemaVersion((int) table.getLong(2));
+    Tuple attributes = table.getNestedTuple(5);
+    for (int i = 0; i < attributes.size(); i++) {
+      Tuple attribute = attributes.getNestedTuple(i);
+      builder.addAttribute(attribute.getString(0), AttributeType.valueOf(attribute.getString(1)), i,
+          (int) attribute.getLong(2), attribute.get(3));
+      if (attribute.get(4) != null)
+        builder.setIndex(attribute.getString(0), TableMetadata.IndexState.valueOf(attribute.getString(4)));
+      if (attribute.size() > 5 && attribute.get(5) != null)
+        builder.setAggregate(attribute.getString(0), TableMetadata.IndexState.valueOf(attribute.getString(5)));
+    }
+    if (table.size() > 6 && table.get(6) != null)
+      builder.setCountState(TableMetadata.IndexState.valueOf(table.getString(6)));
+
+    Tuple primaryKeys = table.getNestedTuple(4);
+    String[] primaryKeyNames = new String[primaryKeys.size()];
+    for (int i = 0; i < primaryKeyNames.length; i++) {
+      primaryKeyNames[i] = primaryKeys.getString(i);
+    }
+    TableSchema schema = builder.setPrimaryKeys(primaryKeyNames).setNextPosition((int) table.getLong(3)).build();
+    return new Table(table.getString(0), table.getBytes(1), schema);
+  }
+}
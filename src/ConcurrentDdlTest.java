@@ -0,0 +1,258 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Stress tests of {TableManagerImpl} used by many threads at once.
+ */
+public class ConcurrentDdlTest {
+
+  private static final int THREADS = 8;
+  private static final int TABLES_PER_THREAD = 25;
+
+  private static final String[] AttributeNames = {"id", "name"};
+  private static final AttributeType[] AttributeTypes = {AttributeType.INT, AttributeType.VARCHAR};
+  private static final String[] PrimaryKeys = {"id"};
+
+  private KeyValueStore store;
+  private TableManagerImpl tableManager;
+  private ExecutorService threads;
+
+  @Before
+  public void init() {
+    store = new InMemoryKeyValueStore();
+    tableManager = new TableManagerImpl(store);
+    threads = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void shutDown() {
+    threads.shutdownNow();
+  }
+
+  // runs work on every thread at once, returns what each thread returned
+  private <T> List<T> onEveryThread(IntFunction<T> work) throws Exception {
+    List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      futures.add(threads.submit(() -> work.apply(thread)));
+    }
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : futures)
+      results.add(future.get());
+    return results;
+  }
+
+  private static int count(List<StatusCode> statuses, StatusCode status) {
+    int count = 0;
+    for (StatusCode s : statuses) {
+      if (s == status)
+        count++;
+    }
+    return count;
+  }
+
+  // transactions that had to be retried for an operation
+  private long retries(String operation) {
+    OperationMetrics.Snapshot snapshot = tableManager.getMetrics().snapshot().get(operation);
+    return snapshot.transactions - snapshot.commits;
+  }
+
+  @Test
+  public void ddlOnDifferentTablesDoesNotConflict() throws Exception {
+    List<StatusCode> failures = new ArrayList<>();
+    List<List<StatusCode>> statuses = onEveryThread(thread -> {
+      List<StatusCode> results = new ArrayList<>();
+      for (int i = 0; i < TABLES_PER_THREAD; i++) {
+        String tableName = "T" + thread + "_" + i;
+        results.add(tableManager.createTable(tableName, AttributeNames, AttributeTypes, PrimaryKeys));
+        results.add(tableManager.addAttribute(tableName, "added", AttributeType.DOUBLE));
+        results.add(tableManager.createIndex(tableName, "name"));
+        results.add(tableManager.dropAttribute(tableName, "added"));
+        if (i % 2 == 1)
+          results.add(tableManager.deleteTable(tableName));
+      }
+      return results;
+    });
+    for (List<StatusCode> results : statuses) {
+      for (StatusCode status : results) {
+        if (status != StatusCode.SUCCESS)
+          failures.add(status);
+      }
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    // DDL on different tables never has to be retried
+    assertEquals(0, retries("createTable"));
+    assertEquals(0, retries("addAttribute"));
+    assertEquals(0, retries("dropAttribute"));
+    assertEquals(0, retries("deleteTable"));
+
+    // another table manager reads the same catalog
+    HashMap<String, TableMetadata> tables = new TableManagerImpl(store).listTables();
+    assertEquals(THREADS * ((TABLES_PER_THREAD + 1) / 2), tables.size());
+    TableMetadata expected = new TableMetadata(AttributeNames, AttributeTypes, PrimaryKeys);
+    expected.setIndex("name", TableMetadata.IndexState.READY);
+    for (int thread = 0; thread < THREADS; thread++) {
+      for (int i = 0; i < TABLES_PER_THREAD; i += 2)
+        assertEquals(expected, tables.get("T" + thread + "_" + i));
+    }
+    assertEquals(tables, tableManager.listTables());
+  }
+
+  @Test
+  public void ddlOnOneTableIsSerialized() throws Exception {
+    List<StatusCode> created = onEveryThread(thread ->
+        tableManager.createTable("Shared", AttributeNames, AttributeTypes, PrimaryKeys));
+    assertEquals(1, count(created, StatusCode.SUCCESS));
+    assertEquals(THREADS - 1, count(created, StatusCode.TABLE_ALREADY_EXISTS));
+
+    // every attribute is added, each one conflicting with the others and retried
+    List<StatusCode> added = onEveryThread(thread -> tableManager.addAttribute("Shared", "a" + thread, AttributeType.INT));
+    assertEquals(THREADS, count(added, StatusCode.SUCCESS));
+    // the in-memory store retries conflicts only
+    OperationMetrics.Snapshot addAttribute = tableManager.getMetrics().snapshot().get("addAttribute");
+    assertEquals(addAttribute.retries, addAttribute.conflicts);
+
+    List<StatusCode> same = onEveryThread(thread -> tableManager.addAttribute("Shared", "same", AttributeType.INT));
+    assertEquals(1, count(same, StatusCode.SUCCESS));
+    assertEquals(THREADS - 1, count(same, StatusCode.ATTRIBUTE_ALREADY_EXISTS));
+
+    TableMetadata shared = new TableManagerImpl(store).listTables().get("Shared");
+    assertEquals(AttributeNames.length + THREADS + 1, shared.getAttributes().size());
+    assertEquals(shared, tableManager.listTables().get("Shared"));
+  }
+
+  @Test
+  public void aggregatesAreBuiltUnderRecordWrites() throws Exception {
+    tableManager.createTable("Counted", AttributeNames, AttributeTypes, PrimaryKeys);
+    RecordManagerImpl recordManager = new RecordManagerImpl(tableManager);
+    List<Record> stored = new ArrayList<>();
+    for (int id = 0; id < 5000; id++)
+      stored.add(new Record().setValue("id", id));
+    new BulkLoader(tableManager).load("Counted", "stored", stored.iterator());
+
+    // one thread counts the stored records in while the others insert and delete records all over the table
+    List<StatusCode> statuses = onEveryThread(thread -> {
+      if (thread == 0)
+        return tableManager.createAggregate("Counted", "id");
+      for (int i = 0; i < 100; i++) {
+        recordManager.insertRecord("Counted", new Record().setValue("id", 5000 + thread * 100 + i));
+        recordManager.deleteRecord("Counted", new Object[]{thread * 600 + i * 5});
+      }
+      return StatusCode.SUCCESS;
+    });
+    assertEquals(THREADS, count(statuses, StatusCode.SUCCESS));
+
+    long rows = 0;
+    long sum = 0;
+    RecordCursor cursor = recordManager.scan("Counted", null, null, 0);
+    while (cursor.hasNext()) {
+      sum += (Long) cursor.next().getValue("id");
+      rows++;
+    }
+    assertEquals(Long.valueOf(rows), recordManager.countRecords("Counted"));
+    assertEquals(sum, recordManager.aggregate("Counted", "id").sum);
+  }
+
+  @Test
+  public void ddlCommitsOnceWhenRetriedAfterCommitting() {
+    // a store that runs every transaction again after it committed, as FoundationDB retries a
+    // transaction whose commit result is unknown
+    TableManagerImpl tableManager = new TableManagerImpl(new KeyValueStore() {
+      @Override
+      public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+        return store.runAsync(retryable).thenCompose(committed -> store.runAsync(retryable));
+      }
+
+      @Override
+      public <T> CompletableFuture<T> readAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+        return store.readAsync(retryable);
+      }
+
+      @Override
+      public KeyValueDirectory directory() {
+        return store.directory();
+      }
+
+      @Override
+      public void close() {
+        store.close();
+      }
+    });
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Once", AttributeNames, AttributeTypes, PrimaryKeys));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute("Once", "added", AttributeType.INT));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute("Once", "added"));
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex("Once", "name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable("Once"));
+    assertEquals(StatusCode.TABLE_NOT_FOUND, tableManager.deleteTable("Once"));
+    assertTrue(this.tableManager.listTables().isEmpty());
+  }
+
+  @Test
+  public void expiredDdlMarkersAreClearedByTheNextDdl() {
+    Subspace markers = new Subspace(Tuple.from("TablesCatalog", "ddl"));
+    byte[] expired = markers.pack(Tuple.from(0L, UUID.randomUUID()));
+    byte[] recent = markers.pack(Tuple.from(System.currentTimeMillis(), UUID.randomUUID()));
+    store.runAsync(tx -> {
+      tx.set(expired, Tuple.from(StatusCode.SUCCESS.name()).pack());
+      tx.set(recent, Tuple.from(StatusCode.SUCCESS.name()).pack());
+      return AsyncUtil.DONE;
+    }).join();
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable("Marked", AttributeNames, AttributeTypes, PrimaryKeys));
+
+    List<KeyValue> left = store.readAsync(tx -> tx.getRange(markers.range())).join();
+    assertEquals(2, left.size());
+    assertFalse(left.stream().anyMatch(kv -> Arrays.equals(kv.getKey(), expired)));
+    assertTrue(left.stream().anyMatch(kv -> Arrays.equals(kv.getKey(), recent)));
+    // the markers are written and cleared by the DDL's own commit
+    OperationMetrics.Snapshot createTable = tableManager.getMetrics().snapshot().get("createTable");
+    assertEquals(1, createTable.transactions);
+    assertEquals(1, createTable.commits);
+  }
+
+  @Test
+  public void ddlThroughputScalesWithThreads() throws Exception {
+    // with DDLs on different tables conflict free, throughput is only bounded by the cores
+    for (int threadCount = 1; threadCount <= THREADS; threadCount *= 2) {
+      final int active = threadCount;
+      final int operations = 200;
+      long start = System.nanoTime();
+      onEveryThread(thread -> {
+        for (int i = 0; thread < active && i < operations / active; i++) {
+          String tableName = "S" + active + "_" + thread + "_" + i;
+          tableManager.createTable(tableName, AttributeNames, AttributeTypes, PrimaryKeys);
+          tableManager.deleteTable(tableName);
+        }
+        return null;
+      });
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%d threads: %.0f DDL/s%n", active, 2 * operations * 1e9 / elapsed);
+    }
+    assertEquals(0, retries("createTable"));
+    assertEquals(0, retries("deleteTable"));
+    assertTrue(tableManager.listTables().isEmpty());
+  }
+}
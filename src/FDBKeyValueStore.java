@@ -0,0 +1,623 @@
+import com.apple.foundationdb.*;
+import com.apple.foundationdb.async.AsyncIterable;
+import com.apple.foundationdb.async.AsyncIterator;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.async.CloseableAsyncIterator;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * FDBKeyValueStore is the {KeyValueStore} backed by a FoundationDB database. Its directory is the
+ * default FoundationDB directory layer, so data written through it keeps the same layout as data
+ * written with the directory layer directly.
+ */
+public class FDBKeyValueStore implements KeyValueStore {
+
+  private final Database db;
+  private final KeyValueDirectory directory = new Directory();
+
+  // the newest read version snapshotAsync got, handed to the next ones while fresh enough
+  private final AtomicReference<ReadVersion> reusableReadVersion = new AtomicReference<>();
+
+  private static final class ReadVersion {
+    final long version;
+    final long nanos;
+
+    ReadVersion(long version, long nanos) {
+      this.version = version;
+      this.nanos = nanos;
+    }
+  }
+
+  public FDBKeyValueStore() {
+    this(FDB.selectAPIVersion(710).open());
+  }
+
+  public FDBKeyValueStore(Database db) {
+    this.db = db;
+  }
+
+  public Database getDatabase() {
+    return db;
+  }
+
+  @Override
+  public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    return db.runAsync(tx -> retryable.apply(new FDBKeyValueTransaction(tx, tx)));
+  }
+
+  // FoundationDB's not_committed error, a commit that conflicted with another transaction
+  private static final int NOT_COMMITTED = 1020;
+
+  @Override
+  public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable,
+                                           RetryListener onRetry) {
+    // db.runAsync's retry loop, telling onRetry what each failed attempt's error was before onError
+    Transaction[] current = {db.createTransaction()};
+    return AsyncUtil.composeHandleAsync(attempt(current, retryable, onRetry), (value, error) -> {
+      current[0].close();
+      if (error != null)
+        throw new CompletionException(error);
+      return CompletableFuture.completedFuture(value);
+    }, db.getExecutor());
+  }
+
+  private <T> CompletableFuture<T> attempt(Transaction[] current,
+                                           Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable,
+                                           RetryListener onRetry) {
+    Transaction tx = current[0];
+    CompletableFuture<T> result;
+    try {
+      result = retryable.apply(new FDBKeyValueTransaction(tx, tx))
+              .thenComposeAsync(value -> tx.commit().thenApply(done -> value), db.getExecutor());
+    } catch (RuntimeException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+    }
+
+    return AsyncUtil.composeHandleAsync(result, (value, error) -> {
+      if (error == null)
+        return CompletableFuture.completedFuture(value);
+
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (!(cause instanceof FDBException))
+        throw new CompletionException(cause);
+      // onError fails with the error itself when it is not retryable
+      return tx.onError(cause).thenComposeAsync(retried -> {
+        onRetry.retrying(((FDBException) cause).getCode() == NOT_COMMITTED);
+        current[0] = retried;
+        return attempt(current, retryable, onRetry);
+      }, db.getExecutor());
+    }, db.getExecutor());
+  }
+
+  @Override
+  public <T> CompletableFuture<T> readAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    return db.readAsync(tr -> retryable.apply(new FDBKeyValueTransaction(tr, null)));
+  }
+
+  @Override
+  public <T> CompletableFuture<T> snapshotAsync(long maxStalenessMillis,
+                                                Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    long maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(maxStalenessMillis, MAX_READ_VERSION_AGE_MILLIS));
+    boolean[] retry = {false};
+    return db.readAsync(tr -> {
+      // a retry gets a fresh read version, the reused one may be what it failed on
+      long now = System.nanoTime();
+      ReadVersion reusable = reusableReadVersion.get();
+      if (!retry[0] && reusable != null && now - reusable.nanos <= maxStalenessNanos) {
+        tr.setReadVersion(reusable.version);
+      } else if (maxStalenessNanos > 0) {
+        // keep whichever of concurrently fetched read versions is the newest
+        tr.getReadVersion().thenAccept(version -> reusableReadVersion.accumulateAndGet(new ReadVersion(version, now),
+                (current, fetched) -> current == null || fetched.version > current.version ? fetched : current));
+      }
+      retry[0] = true;
+      return retryable.apply(new FDBKeyValueTransaction(tr.snapshot(), null));
+    });
+  }
+
+  @Override
+  public CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end) {
+    CloseableAsyncIterator<byte[]> boundaries = LocalityUtil.getBoundaryKeys(db, begin, end);
+    return AsyncUtil.collectRemaining(boundaries).thenApply(keys -> {
+      // the shard holding begin may start before or at it
+      List<byte[]> inside = new ArrayList<>(keys.size());
+      for (byte[] key : keys) {
+        if (ByteArrayUtil.compareUnsigned(key, begin) > 0 && ByteArrayUtil.compareUnsigned(key, end) < 0)
+          inside.add(key);
+      }
+      return inside;
+    }).whenComplete((keys, error) -> boundaries.close());
+  }
+
+  @Override
+  public CompletableFuture<Long> getEstimatedRangeSizeBytes(byte[] begin, byte[] end) {
+    return db.readAsync(tr -> tr.getEstimatedRangeSizeBytes(begin, end));
+  }
+
+  @Override
+  public KeyValueDirectory directory() {
+    return directory;
+  }
+
+  @Override
+  public void close() {
+    db.close();
+  }
+
+  // a FoundationDB transaction, tx is null for read-only ones
+  static final class FDBKeyValueTransaction implements KeyValueTransaction {
+
+    private final ReadTransaction reads;
+    private final Transaction tx;
+
+    FDBKeyValueTransaction(ReadTransaction reads, Transaction tx) {
+      this.reads = reads;
+      this.tx = tx;
+    }
+
+    ReadTransaction readTransaction() {
+      return reads;
+    }
+
+    Transaction transaction() {
+      if (tx == null)
+        throw new IllegalStateException("write in a read-only transaction");
+      return tx;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(byte[] key) {
+      return reads.get(key);
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(Range range) {
+      return reads.getRange(range).asList();
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse) {
+      return reads.getRange(begin, end, limit, reverse).asList();
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+      transaction().set(key, value);
+    }
+
+    @Override
+    public void clear(byte[] key) {
+      transaction().clear(key);
+    }
+
+    @Override
+    public void clear(Range range) {
+      transaction().clear(range);
+    }
+
+    @Override
+    public void mutate(MutationType type, byte[] key, byte[] param) {
+      transaction().mutate(type, key, param);
+    }
+
+    @Override
+    public KeyValueTransaction snapshot() {
+      return reads.isSnapshot() ? this : new FDBKeyValueTransaction(reads.snapshot(), tx);
+    }
+  }
+
+  // the default directory layer, run in the store's transactions
+  private static final class Directory implements KeyValueDirectory {
+
+    private final DirectoryLayer layer = DirectoryLayer.getDefault();
+
+    // the FoundationDB transaction the directory layer runs in, counting its traffic towards tx's
+    // operation when tx is instrumented
+    private static Transaction transaction(KeyValueTransaction tx) {
+      Transaction transaction = ((FDBKeyValueTransaction) tx.unwrap()).transaction();
+      return tx instanceof OperationMetrics.Traffic
+              ? new CountingTransaction(transaction, (OperationMetrics.Traffic) tx) : transaction;
+    }
+
+    private static ReadTransaction readTransaction(KeyValueTransaction tx) {
+      ReadTransaction reads = ((FDBKeyValueTransaction) tx.unwrap()).readTransaction();
+      return tx instanceof OperationMetrics.Traffic
+              ? new CountingReadTransaction(reads, (OperationMetrics.Traffic) tx) : reads;
+    }
+
+    @Override
+    public CompletableFuture<Subspace> create(KeyValueTransaction tx, List<String> path) {
+      return layer.create(transaction(tx), path).thenApply(dir -> dir);
+    }
+
+    @Override
+    public CompletableFuture<Subspace> createOrOpen(KeyValueTransaction tx, List<String> path) {
+      return layer.createOrOpen(transaction(tx), path).thenApply(dir -> dir);
+    }
+
+    @Override
+    public CompletableFuture<Subspace> open(KeyValueTransaction tx, List<String> path) {
+      return layer.open(readTransaction(tx), path).thenApply(dir -> dir);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(KeyValueTransaction tx, List<String> path) {
+      return layer.exists(readTransaction(tx), path);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path) {
+      return layer.list(readTransaction(tx), path);
+    }
+
+    // the directory layer keeps the subdirectories of a directory as (SUBDIRS, name) -> prefix in
+    // the directory's node, which is keyed by its prefix in the node subspace
+    private static final Subspace NODES = new Subspace(new byte[]{(byte) 0xFE});
+    private static final long SUBDIRS = 0;
+
+    @Override
+    public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path, String startAfter, int limit) {
+      return open(tx, path).thenCompose(dir -> {
+        Subspace children = NODES.get(dir.getKey()).get(SUBDIRS);
+        byte[] begin = startAfter == null ? children.range().begin : ByteArrayUtil.join(children.pack(startAfter), new byte[]{0});
+        return tx.getRange(begin, children.range().end, limit, false).thenApply(keyValues -> {
+          List<String> names = new ArrayList<>(keyValues.size());
+          for (KeyValue kv : keyValues)
+            names.add(children.unpack(kv.getKey()).getString(0));
+          return names;
+        });
+      });
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(KeyValueTransaction tx, List<String> path) {
+      return layer.remove(transaction(tx), path);
+    }
+  }
+
+  // forwards to a FoundationDB read transaction, counting its reads. The directory layer runs its work
+  // through the transaction's readAsync, which hands it the transaction it is called on, so that hands
+  // it the counting one
+  static class CountingReadTransaction implements ReadTransaction {
+
+    private final ReadTransaction reads;
+    final OperationMetrics.Traffic traffic;
+
+    CountingReadTransaction(ReadTransaction reads, OperationMetrics.Traffic traffic) {
+      this.reads = reads;
+      this.traffic = traffic;
+    }
+
+    // range, counting the bytes of the pairs read from it
+    private AsyncIterable<KeyValue> counted(AsyncIterable<KeyValue> range) {
+      traffic.rangeRead();
+      return new AsyncIterable<KeyValue>() {
+        @Override
+        public AsyncIterator<KeyValue> iterator() {
+          AsyncIterator<KeyValue> pairs = range.iterator();
+          return new AsyncIterator<KeyValue>() {
+            @Override
+            public CompletableFuture<Boolean> onHasNext() {
+              return pairs.onHasNext();
+            }
+
+            @Override
+            public boolean hasNext() {
+              return pairs.hasNext();
+            }
+
+            @Override
+            public KeyValue next() {
+              KeyValue kv = pairs.next();
+              traffic.bytesRead(kv.getKey().length + kv.getValue().length);
+              return kv;
+            }
+
+            @Override
+            public void cancel() {
+              pairs.cancel();
+            }
+          };
+        }
+
+        @Override
+        public CompletableFuture<List<KeyValue>> asList() {
+          return range.asList().thenApply(keyValues -> {
+            for (KeyValue kv : keyValues)
+              traffic.bytesRead(kv.getKey().length + kv.getValue().length);
+            return keyValues;
+          });
+        }
+      };
+    }
+
+    @Override
+    public boolean isSnapshot() {
+      return reads.isSnapshot();
+    }
+
+    @Override
+    public ReadTransaction snapshot() {
+      return new CountingReadTransaction(reads.snapshot(), traffic);
+    }
+
+    @Override
+    public CompletableFuture<Long> getReadVersion() {
+      return reads.getReadVersion();
+    }
+
+    @Override
+    public void setReadVersion(long version) {
+      reads.setReadVersion(version);
+    }
+
+    @Override
+    public boolean addReadConflictRangeIfNotSnapshot(byte[] keyBegin, byte[] keyEnd) {
+      return reads.addReadConflictRangeIfNotSnapshot(keyBegin, keyEnd);
+    }
+
+    @Override
+    public boolean addReadConflictKeyIfNotSnapshot(byte[] key) {
+      return reads.addReadConflictKeyIfNotSnapshot(key);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(byte[] key) {
+      return reads.get(key).thenApply(value -> {
+        traffic.pointRead(key.length + (value == null ? 0 : value.length));
+        return value;
+      });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getKey(KeySelector selector) {
+      return reads.getKey(selector).thenApply(key -> {
+        traffic.pointRead(key.length);
+        return key;
+      });
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(KeySelector begin, KeySelector end) {
+      return counted(reads.getRange(begin, end));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(KeySelector begin, KeySelector end, int limit) {
+      return counted(reads.getRange(begin, end, limit));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(KeySelector begin, KeySelector end, int limit, boolean reverse) {
+      return counted(reads.getRange(begin, end, limit, reverse));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(KeySelector begin, KeySelector end, int limit, boolean reverse,
+                                            StreamingMode mode) {
+      return counted(reads.getRange(begin, end, limit, reverse, mode));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end) {
+      return counted(reads.getRange(begin, end));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit) {
+      return counted(reads.getRange(begin, end, limit));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse) {
+      return counted(reads.getRange(begin, end, limit, reverse));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(byte[] begin, byte[] end, int limit, boolean reverse, StreamingMode mode) {
+      return counted(reads.getRange(begin, end, limit, reverse, mode));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(Range range) {
+      return counted(reads.getRange(range));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(Range range, int limit) {
+      return counted(reads.getRange(range, limit));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(Range range, int limit, boolean reverse) {
+      return counted(reads.getRange(range, limit, reverse));
+    }
+
+    @Override
+    public AsyncIterable<KeyValue> getRange(Range range, int limit, boolean reverse, StreamingMode mode) {
+      return counted(reads.getRange(range, limit, reverse, mode));
+    }
+
+    @Override
+    public AsyncIterable<MappedKeyValue> getMappedRange(KeySelector begin, KeySelector end, byte[] mapper, int limit,
+                                                        boolean reverse, StreamingMode mode) {
+      traffic.rangeRead();
+      return reads.getMappedRange(begin, end, mapper, limit, reverse, mode);
+    }
+
+    @Override
+    public CompletableFuture<Long> getEstimatedRangeSizeBytes(byte[] begin, byte[] end) {
+      return reads.getEstimatedRangeSizeBytes(begin, end);
+    }
+
+    @Override
+    public CompletableFuture<Long> getEstimatedRangeSizeBytes(Range range) {
+      return reads.getEstimatedRangeSizeBytes(range);
+    }
+
+    @Override
+    public CompletableFuture<KeyArrayResult> getRangeSplitPoints(byte[] begin, byte[] end, long chunkSize) {
+      return reads.getRangeSplitPoints(begin, end, chunkSize);
+    }
+
+    @Override
+    public CompletableFuture<KeyArrayResult> getRangeSplitPoints(Range range, long chunkSize) {
+      return reads.getRangeSplitPoints(range, chunkSize);
+    }
+
+    @Override
+    public TransactionOptions options() {
+      return reads.options();
+    }
+
+    @Override
+    public <T> T read(Function<? super ReadTransaction, T> retryable) {
+      return retryable.apply(this);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> readAsync(Function<? super ReadTransaction, ? extends CompletableFuture<T>> retryable) {
+      return AsyncUtil.applySafely(retryable, this);
+    }
+
+    @Override
+    public Executor getExecutor() {
+      return reads.getExecutor();
+    }
+  }
+
+  // forwards to a FoundationDB transaction, counting its reads and writes like CountingReadTransaction
+  static final class CountingTransaction extends CountingReadTransaction implements Transaction {
+
+    private final Transaction tx;
+
+    CountingTransaction(Transaction tx, OperationMetrics.Traffic traffic) {
+      super(tx, traffic);
+      this.tx = tx;
+    }
+
+    @Override
+    public void addReadConflictRange(byte[] keyBegin, byte[] keyEnd) {
+      tx.addReadConflictRange(keyBegin, keyEnd);
+    }
+
+    @Override
+    public void addReadConflictKey(byte[] key) {
+      tx.addReadConflictKey(key);
+    }
+
+    @Override
+    public void addWriteConflictRange(byte[] keyBegin, byte[] keyEnd) {
+      tx.addWriteConflictRange(keyBegin, keyEnd);
+    }
+
+    @Override
+    public void addWriteConflictKey(byte[] key) {
+      tx.addWriteConflictKey(key);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+      traffic.bytesWritten(key.length + value.length);
+      tx.set(key, value);
+    }
+
+    @Override
+    public void clear(byte[] key) {
+      traffic.bytesWritten(key.length);
+      tx.clear(key);
+    }
+
+    @Override
+    public void clear(byte[] beginKey, byte[] endKey) {
+      traffic.bytesWritten(beginKey.length + endKey.length);
+      tx.clear(beginKey, endKey);
+    }
+
+    @Override
+    public void clear(Range range) {
+      traffic.bytesWritten(range.begin.length + range.end.length);
+      tx.clear(range);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void clearRangeStartsWith(byte[] prefix) {
+      traffic.bytesWritten(prefix.length);
+      tx.clearRangeStartsWith(prefix);
+    }
+
+    @Override
+    public void mutate(MutationType optype, byte[] key, byte[] param) {
+      traffic.bytesWritten(key.length + param.length);
+      tx.mutate(optype, key, param);
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+      return tx.commit();
+    }
+
+    @Override
+    public Long getCommittedVersion() {
+      return tx.getCommittedVersion();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getVersionstamp() {
+      return tx.getVersionstamp();
+    }
+
+    @Override
+    public CompletableFuture<Long> getApproximateSize() {
+      return tx.getApproximateSize();
+    }
+
+    @Override
+    public CompletableFuture<Transaction> onError(Throwable e) {
+      return tx.onError(e);
+    }
+
+    @Override
+    public void cancel() {
+      tx.cancel();
+    }
+
+    @Override
+    public CompletableFuture<Void> watch(byte[] key) throws FDBException {
+      return tx.watch(key);
+    }
+
+    @Override
+    public Database getDatabase() {
+      return tx.getDatabase();
+    }
+
+    @Override
+    public <T> T run(Function<? super Transaction, T> retryable) {
+      return retryable.apply(this);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> runAsync(Function<? super Transaction, ? extends CompletableFuture<T>> retryable) {
+      return AsyncUtil.applySafely(retryable, this);
+    }
+
+    @Override
+    public void close() {
+      tx.close();
+    }
+  }
+}
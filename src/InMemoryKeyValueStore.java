@@ -0,0 +1,689 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * InMemoryKeyValueStore is an embedded {KeyValueStore} that keeps everything in the process.
+ *
+ * Committed data lives in a concurrent sorted map from key to the versions of its value, so a
+ * transaction reads a consistent snapshot as of its read version without locking. Commits are
+ * optimistic like FoundationDB's: a transaction fails with a conflict (and runAsync retries it)
+ * when a key it read was written by another transaction that committed after its read version.
+ * Like FoundationDB's, retries back off exponentially with jitter, so conflicting transactions
+ * spread out instead of colliding again right away.
+ */
+public class InMemoryKeyValueStore implements KeyValueStore {
+
+  // transactions retried this many times before the conflict is given up on
+  private static final int MAX_ATTEMPTS = 100;
+
+  // delay before the first retry, doubled per attempt up to MAX_BACKOFF_MILLIS like FoundationDB's
+  // (which starts at 10ms, commits here take microseconds)
+  private static final long INITIAL_BACKOFF_MILLIS = 1;
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+
+  private static final long MAX_READ_VERSION_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(MAX_READ_VERSION_AGE_MILLIS);
+
+  private static final Comparator<byte[]> KEY_ORDER = ByteArrayUtil.comparator();
+
+  // keys per shard getBoundaryKeys pretends the store has, a FoundationDB shard holds up to ~250MB
+  static final int SHARD_KEYS = 1000;
+
+  // committed data, each key maps to its newest version
+  private final ConcurrentSkipListMap<byte[], Version> data = new ConcurrentSkipListMap<>(KEY_ORDER);
+
+  // guards commits, committedVersion, the commit log and the active read versions
+  private final Object commitLock = new Object();
+  private volatile long committedVersion = 0;
+
+  // write conflict ranges of recent commits, oldest first
+  private final ArrayDeque<CommitRecord> commitLog = new ArrayDeque<>();
+
+  // read versions of open transactions, with how many transactions use each
+  private final TreeMap<Long, Integer> activeReadVersions = new TreeMap<>();
+
+  // the read version snapshotAsync hands out again and when it was taken, -1 if there is none. It
+  // counts as an active read version, so the history it reads is kept until it is replaced or too old
+  private long reusableReadVersion = -1;
+  private long reusableReadVersionNanos;
+
+  private final KeyValueDirectory directory = new Directory();
+
+  /**
+   * Thrown by a commit that conflicts with a transaction committed after its read version.
+   */
+  public static class ConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ConflictException() {
+      super("transaction not committed due to conflict with another transaction");
+    }
+  }
+
+  // one committed value of a key, value null means the key was cleared
+  private static final class Version {
+    final long version;
+    final byte[] value;
+    volatile Version previous;
+
+    Version(long version, byte[] value, Version previous) {
+      this.version = version;
+      this.value = value;
+      this.previous = previous;
+    }
+
+    // the value as of readVersion
+    byte[] valueAt(long readVersion) {
+      Version v = this;
+      while (v != null && v.version > readVersion)
+        v = v.previous;
+      return v == null ? null : v.value;
+    }
+  }
+
+  // the ranges a committed transaction wrote
+  private static final class CommitRecord {
+    final long version;
+    final List<Range> writes;
+
+    CommitRecord(long version, List<Range> writes) {
+      this.version = version;
+      this.writes = writes;
+    }
+  }
+
+  @Override
+  public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    return run(retryable, true, false, 0, null, 1);
+  }
+
+  @Override
+  public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable,
+                                           RetryListener onRetry) {
+    return run(retryable, true, false, 0, onRetry, 1);
+  }
+
+  @Override
+  public <T> CompletableFuture<T> readAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    return run(retryable, false, false, 0, null, 1);
+  }
+
+  @Override
+  public <T> CompletableFuture<T> snapshotAsync(long maxStalenessMillis,
+                                                Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    long maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(maxStalenessMillis, MAX_READ_VERSION_AGE_MILLIS));
+    return run(retryable, false, true, maxStalenessNanos, null, 1);
+  }
+
+  private <T> CompletableFuture<T> run(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable,
+                                       boolean commit, boolean snapshot, long maxStalenessNanos, RetryListener onRetry,
+                                       int attempt) {
+    MemoryTransaction tx = begin(maxStalenessNanos);
+
+    CompletableFuture<T> result;
+    try {
+      result = retryable.apply(snapshot ? tx.snapshot() : tx).thenApply(value -> {
+        if (commit)
+          tx.commit();
+        return value;
+      });
+    } catch (RuntimeException e) {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+    }
+
+    return result.handle((value, error) -> {
+      end(tx);
+      if (error == null)
+        return CompletableFuture.completedFuture(value);
+
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (cause instanceof ConflictException && attempt < MAX_ATTEMPTS) {
+        if (onRetry != null)
+          onRetry.retrying(true);
+        return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(backoff(attempt), TimeUnit.MICROSECONDS))
+                .thenCompose(waited -> run(retryable, commit, snapshot, maxStalenessNanos, onRetry, attempt + 1));
+      }
+
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(cause);
+      return failed;
+    }).thenCompose(Function.identity());
+  }
+
+  // a random delay in microseconds before retrying after attempt, up to the attempt's backoff
+  private static long backoff(int attempt) {
+    long millis = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(millis * 1000 / 2, millis * 1000 + 1);
+  }
+
+  @Override
+  public CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end) {
+    // every SHARD_KEYS-th key stored, cleared ones included as a storage server would until compaction
+    List<byte[]> boundaries = new ArrayList<>();
+    if (KEY_ORDER.compare(begin, end) < 0) {
+      int keys = 0;
+      for (byte[] key : data.subMap(begin, false, end, false).keySet()) {
+        if (++keys % SHARD_KEYS == 0)
+          boundaries.add(key);
+      }
+    }
+    return CompletableFuture.completedFuture(boundaries);
+  }
+
+  @Override
+  public CompletableFuture<Long> getEstimatedRangeSizeBytes(byte[] begin, byte[] end) {
+    // exact, of the newest versions
+    long bytes = 0;
+    if (KEY_ORDER.compare(begin, end) < 0) {
+      for (Map.Entry<byte[], Version> entry : data.subMap(begin, true, end, false).entrySet()) {
+        byte[] value = entry.getValue().value;
+        if (value != null)
+          bytes += entry.getKey().length + value.length;
+      }
+    }
+    return CompletableFuture.completedFuture(bytes);
+  }
+
+  @Override
+  public KeyValueDirectory directory() {
+    return directory;
+  }
+
+  @Override
+  public void close() {
+    data.clear();
+  }
+
+  // starts a transaction reading the latest committed version, or the reusable read version if it
+  // was taken at most maxStalenessNanos ago
+  private MemoryTransaction begin(long maxStalenessNanos) {
+    synchronized (commitLock) {
+      long now = System.nanoTime();
+      expireReusableReadVersion(now);
+
+      long readVersion = committedVersion;
+      if (maxStalenessNanos > 0) {
+        if (reusableReadVersion >= 0 && now - reusableReadVersionNanos <= maxStalenessNanos) {
+          readVersion = reusableReadVersion;
+        } else {
+          releaseReadVersion(reusableReadVersion);
+          activeReadVersions.merge(readVersion, 1, Integer::sum);
+          reusableReadVersion = readVersion;
+          reusableReadVersionNanos = now;
+        }
+      }
+      activeReadVersions.merge(readVersion, 1, Integer::sum);
+      return new MemoryTransaction(readVersion);
+    }
+  }
+
+  // lets go of the reusable read version once it is too old to be reused, called with commitLock held
+  private void expireReusableReadVersion(long now) {
+    if (reusableReadVersion >= 0 && now - reusableReadVersionNanos > MAX_READ_VERSION_AGE_NANOS) {
+      releaseReadVersion(reusableReadVersion);
+      reusableReadVersion = -1;
+    }
+  }
+
+  private void releaseReadVersion(long readVersion) {
+    activeReadVersions.computeIfPresent(readVersion, (version, count) -> count == 1 ? null : count - 1);
+  }
+
+  // forgets a finished transaction and whatever history only it could still read
+  private void end(MemoryTransaction tx) {
+    synchronized (commitLock) {
+      releaseReadVersion(tx.readVersion);
+      expireReusableReadVersion(System.nanoTime());
+
+      long oldest = activeReadVersions.isEmpty() ? committedVersion : activeReadVersions.firstKey();
+      while (!commitLog.isEmpty() && commitLog.peekFirst().version <= oldest)
+        commitLog.pollFirst();
+    }
+  }
+
+  // the newest version of key that a transaction reading at oldestReadVersion can see, older ones are dropped
+  private void prune(byte[] key, long oldestReadVersion) {
+    Version head = data.get(key);
+    if (head == null)
+      return;
+
+    if (head.value == null && head.version <= oldestReadVersion) {
+      data.remove(key, head);
+      return;
+    }
+
+    Version v = head;
+    while (v != null && v.version > oldestReadVersion)
+      v = v.previous;
+    if (v != null)
+      v.previous = null;
+  }
+
+  private static boolean intersects(Range a, Range b) {
+    return KEY_ORDER.compare(a.begin, b.end) < 0 && KEY_ORDER.compare(b.begin, a.end) < 0;
+  }
+
+  private static boolean contains(Range range, byte[] key) {
+    return KEY_ORDER.compare(range.begin, key) <= 0 && KEY_ORDER.compare(key, range.end) < 0;
+  }
+
+  // the single-key range [key, key + \x00)
+  private static Range keyRange(byte[] key) {
+    return new Range(key, ByteArrayUtil.keyAfter(key));
+  }
+
+  // a little-endian unsigned integer of the given width
+  private static byte[] resize(byte[] value, int length) {
+    return Arrays.copyOf(value == null ? new byte[0] : value, length);
+  }
+
+  private static int compareLittleEndian(byte[] a, byte[] b) {
+    for (int i = a.length - 1; i >= 0; i--) {
+      int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+      if (cmp != 0)
+        return cmp;
+    }
+    return 0;
+  }
+
+  // applies an atomic operation to a value (null if the key is not set), as FoundationDB defines it
+  static byte[] applyMutation(MutationType type, byte[] value, byte[] param) {
+    switch (type) {
+      case ADD: {
+        byte[] result = resize(value, param.length);
+        int carry = 0;
+        for (int i = 0; i < param.length; i++) {
+          int sum = (result[i] & 0xFF) + (param[i] & 0xFF) + carry;
+          result[i] = (byte) sum;
+          carry = sum >>> 8;
+        }
+        return result;
+      }
+      case MAX: {
+        byte[] current = resize(value, param.length);
+        return compareLittleEndian(current, param) >= 0 ? current : param.clone();
+      }
+      case MIN: {
+        if (value == null)
+          return param.clone();
+        byte[] current = resize(value, param.length);
+        return compareLittleEndian(current, param) <= 0 ? current : param.clone();
+      }
+      case BYTE_MAX:
+        return value != null && KEY_ORDER.compare(value, param) >= 0 ? value : param.clone();
+      case BYTE_MIN:
+        return value != null && KEY_ORDER.compare(value, param) <= 0 ? value : param.clone();
+      default:
+        throw new UnsupportedOperationException("atomic operation " + type + " is not supported in memory");
+    }
+  }
+
+  // a key's pending writes in a transaction: an optional set or clear followed by atomic operations
+  private static final class Write {
+    // true if the key was set or cleared, then value replaces whatever was committed
+    final boolean replaces;
+    final byte[] value;
+    final List<MutationType> types = new ArrayList<>();
+    final List<byte[]> params = new ArrayList<>();
+
+    Write(boolean replaces, byte[] value) {
+      this.replaces = replaces;
+      this.value = value;
+    }
+
+    byte[] apply(byte[] committed) {
+      byte[] result = replaces ? value : committed;
+      for (int i = 0; i < types.size(); i++)
+        result = applyMutation(types.get(i), result, params.get(i));
+      return result;
+    }
+  }
+
+  private final class MemoryTransaction implements KeyValueTransaction {
+
+    private final long readVersion;
+
+    // pending writes and cleared ranges, a clear drops the pending writes it covers
+    private final TreeMap<byte[], Write> writes = new TreeMap<>(KEY_ORDER);
+    private final List<Range> clears = new ArrayList<>();
+
+    private final List<Range> readConflicts = new ArrayList<>();
+
+    MemoryTransaction(long readVersion) {
+      this.readVersion = readVersion;
+    }
+
+    private boolean cleared(byte[] key) {
+      for (Range range : clears) {
+        if (contains(range, key))
+          return true;
+      }
+      return false;
+    }
+
+    // the committed value at the read version, unless this transaction cleared it
+    private byte[] snapshotValue(byte[] key) {
+      if (cleared(key))
+        return null;
+      Version head = data.get(key);
+      return head == null ? null : head.valueAt(readVersion);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(byte[] key) {
+      return get(key, true);
+    }
+
+    private synchronized CompletableFuture<byte[]> get(byte[] key, boolean conflict) {
+      if (conflict)
+        readConflicts.add(keyRange(key));
+
+      Write write = writes.get(key);
+      byte[] value = write == null ? snapshotValue(key) : write.apply(snapshotValue(key));
+      return CompletableFuture.completedFuture(value);
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(Range range) {
+      return getRange(range.begin, range.end, 0, false);
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse) {
+      return getRange(begin, end, limit, reverse, true);
+    }
+
+    private synchronized CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse,
+                                                                    boolean conflict) {
+      List<KeyValue> result = new ArrayList<>();
+      if (KEY_ORDER.compare(begin, end) >= 0)
+        return CompletableFuture.completedFuture(result);
+
+      if (conflict)
+        readConflicts.add(new Range(begin, end));
+
+      NavigableMap<byte[], Version> committed = data.subMap(begin, true, end, false);
+      NavigableMap<byte[], Write> pending = writes.subMap(begin, true, end, false);
+      if (reverse) {
+        committed = committed.descendingMap();
+        pending = pending.descendingMap();
+      }
+
+      // merge committed keys with this transaction's writes, in the requested order
+      Iterator<Map.Entry<byte[], Version>> committedIt = committed.entrySet().iterator();
+      Iterator<Map.Entry<byte[], Write>> pendingIt = pending.entrySet().iterator();
+      Map.Entry<byte[], Version> nextCommitted = committedIt.hasNext() ? committedIt.next() : null;
+      Map.Entry<byte[], Write> nextPending = pendingIt.hasNext() ? pendingIt.next() : null;
+
+      while ((nextCommitted != null || nextPending != null) && (limit <= 0 || result.size() < limit)) {
+        int cmp;
+        if (nextCommitted == null)
+          cmp = 1;
+        else if (nextPending == null)
+          cmp = -1;
+        else
+          cmp = KEY_ORDER.compare(nextCommitted.getKey(), nextPending.getKey()) * (reverse ? -1 : 1);
+
+        byte[] key;
+        byte[] value;
+        if (cmp < 0) {
+          key = nextCommitted.getKey();
+          value = cleared(key) ? null : nextCommitted.getValue().valueAt(readVersion);
+          nextCommitted = committedIt.hasNext() ? committedIt.next() : null;
+        } else {
+          key = nextPending.getKey();
+          value = nextPending.getValue().apply(snapshotValue(key));
+          nextPending = pendingIt.hasNext() ? pendingIt.next() : null;
+          if (cmp == 0)
+            nextCommitted = committedIt.hasNext() ? committedIt.next() : null;
+        }
+
+        if (value != null)
+          result.add(new KeyValue(key, value));
+      }
+
+      return CompletableFuture.completedFuture(result);
+    }
+
+    @Override
+    public synchronized void set(byte[] key, byte[] value) {
+      writes.put(key, new Write(true, value));
+    }
+
+    @Override
+    public synchronized void clear(byte[] key) {
+      writes.put(key, new Write(true, null));
+    }
+
+    @Override
+    public synchronized void clear(Range range) {
+      if (KEY_ORDER.compare(range.begin, range.end) >= 0)
+        return;
+      writes.subMap(range.begin, true, range.end, false).clear();
+      clears.add(range);
+    }
+
+    @Override
+    public synchronized void mutate(MutationType type, byte[] key, byte[] param) {
+      applyMutation(type, null, param);
+      Write write = writes.computeIfAbsent(key, k -> new Write(false, null));
+      write.types.add(type);
+      write.params.add(param);
+    }
+
+    @Override
+    public KeyValueTransaction snapshot() {
+      return new SnapshotView();
+    }
+
+    // this transaction, reading without read conflicts
+    private final class SnapshotView implements KeyValueTransaction {
+
+      @Override
+      public CompletableFuture<byte[]> get(byte[] key) {
+        return MemoryTransaction.this.get(key, false);
+      }
+
+      @Override
+      public CompletableFuture<List<KeyValue>> getRange(Range range) {
+        return getRange(range.begin, range.end, 0, false);
+      }
+
+      @Override
+      public CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse) {
+        return MemoryTransaction.this.getRange(begin, end, limit, reverse, false);
+      }
+
+      @Override
+      public void set(byte[] key, byte[] value) {
+        MemoryTransaction.this.set(key, value);
+      }
+
+      @Override
+      public void clear(byte[] key) {
+        MemoryTransaction.this.clear(key);
+      }
+
+      @Override
+      public void clear(Range range) {
+        MemoryTransaction.this.clear(range);
+      }
+
+      @Override
+      public void mutate(MutationType type, byte[] key, byte[] param) {
+        MemoryTransaction.this.mutate(type, key, param);
+      }
+
+      @Override
+      public KeyValueTransaction snapshot() {
+        return this;
+      }
+    }
+
+    synchronized void commit() {
+      if (writes.isEmpty() && clears.isEmpty())
+        return;
+
+      synchronized (commitLock) {
+        for (CommitRecord record : commitLog) {
+          if (record.version <= readVersion)
+            continue;
+          for (Range written : record.writes) {
+            for (Range read : readConflicts) {
+              if (intersects(written, read))
+                throw new ConflictException();
+            }
+          }
+        }
+
+        long version = committedVersion + 1;
+        List<Range> written = new ArrayList<>(clears);
+
+        // cleared ranges go first, so pending writes see them as their base
+        for (Range range : clears) {
+          for (Map.Entry<byte[], Version> entry : data.subMap(range.begin, true, range.end, false).entrySet()) {
+            if (entry.getValue().value != null)
+              data.put(entry.getKey(), new Version(version, null, entry.getValue()));
+          }
+        }
+        for (Map.Entry<byte[], Write> entry : writes.entrySet()) {
+          Version head = data.get(entry.getKey());
+          byte[] value = entry.getValue().apply(head == null ? null : head.value);
+          data.put(entry.getKey(), new Version(version, value, head));
+          written.add(keyRange(entry.getKey()));
+        }
+
+        commitLog.addLast(new CommitRecord(version, written));
+        committedVersion = version;
+
+        // transactions that start from now on read at least version
+        long oldest = activeReadVersions.isEmpty() ? version : Math.min(activeReadVersions.firstKey(), version);
+        for (byte[] key : writes.keySet())
+          prune(key, oldest);
+        for (Range range : clears) {
+          for (byte[] key : new ArrayList<>(data.subMap(range.begin, true, range.end, false).keySet()))
+            prune(key, oldest);
+        }
+      }
+    }
+  }
+
+  // directories stored in the store itself: node keys map (depth, path...) to a prefix allocated
+  // from a counter, prefixes are tuple-encoded integers like the directory layer's. The counter is
+  // not kept in the store: a stored one would be read and written by every creation, so any two
+  // would conflict. An allocation left unused by a transaction that did not commit is just skipped,
+  // as with the directory layer's allocator
+  private static final class Directory implements KeyValueDirectory {
+
+    private static final Subspace NODES = new Subspace(new byte[]{(byte) 0xFE});
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private static byte[] nodeKey(List<String> path) {
+      return NODES.pack(Tuple.from(path.size()).addAll(new ArrayList<Object>(path)));
+    }
+
+    private static CompletableFuture<Subspace> failed(String message) {
+      CompletableFuture<Subspace> result = new CompletableFuture<>();
+      result.completeExceptionally(new IllegalStateException(message));
+      return result;
+    }
+
+    @Override
+    public CompletableFuture<Subspace> create(KeyValueTransaction tx, List<String> path) {
+      return tx.get(nodeKey(path)).thenCompose(prefix -> {
+        if (prefix != null)
+          return failed("directory already exists: " + path);
+        return createParents(tx, path).thenApply(parents -> {
+          byte[] allocated = Tuple.from(counter.incrementAndGet()).pack();
+          tx.set(nodeKey(path), allocated);
+          return new Subspace(allocated);
+        });
+      });
+    }
+
+    // makes sure every ancestor of path exists
+    private CompletableFuture<Void> createParents(KeyValueTransaction tx, List<String> path) {
+      if (path.size() <= 1)
+        return CompletableFuture.completedFuture(null);
+      return createOrOpen(tx, path.subList(0, path.size() - 1)).thenApply(parent -> null);
+    }
+
+    @Override
+    public CompletableFuture<Subspace> createOrOpen(KeyValueTransaction tx, List<String> path) {
+      return tx.get(nodeKey(path)).thenCompose(prefix -> {
+        if (prefix != null)
+          return CompletableFuture.completedFuture(new Subspace(prefix));
+        return create(tx, path);
+      });
+    }
+
+    @Override
+    public CompletableFuture<Subspace> open(KeyValueTransaction tx, List<String> path) {
+      return tx.get(nodeKey(path)).thenCompose(prefix -> {
+        if (prefix == null)
+          return failed("directory does not exist: " + path);
+        return CompletableFuture.completedFuture(new Subspace(prefix));
+      });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(KeyValueTransaction tx, List<String> path) {
+      return tx.get(nodeKey(path)).thenApply(prefix -> prefix != null);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path) {
+      Subspace children = NODES.get(Tuple.from(path.size() + 1).addAll(new ArrayList<Object>(path)));
+      return open(tx, path).thenCompose(dir -> tx.getRange(children.range())).thenApply(keyValues -> {
+        List<String> names = new ArrayList<>(keyValues.size());
+        for (KeyValue kv : keyValues)
+          names.add(children.unpack(kv.getKey()).getString(0));
+        return names;
+      });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path, String startAfter, int limit) {
+      Subspace children = NODES.get(Tuple.from(path.size() + 1).addAll(new ArrayList<Object>(path)));
+      byte[] begin = startAfter == null ? children.range().begin : ByteArrayUtil.join(children.pack(startAfter), new byte[]{0});
+      return open(tx, path).thenCompose(dir -> tx.getRange(begin, children.range().end, limit, false)).thenApply(keyValues -> {
+        List<String> names = new ArrayList<>(keyValues.size());
+        for (KeyValue kv : keyValues)
+          names.add(children.unpack(kv.getKey()).getString(0));
+        return names;
+      });
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(KeyValueTransaction tx, List<String> path) {
+      return list(tx, path).thenCompose(names -> {
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (String name : names) {
+          List<String> child = new ArrayList<>(path);
+          child.add(name);
+          chain = chain.thenCompose(previous -> remove(tx, child));
+        }
+        return chain;
+      }).thenCompose(children -> open(tx, path)).thenApply(dir -> {
+        tx.clear(dir.range());
+        tx.clear(dir.pack());
+        tx.clear(nodeKey(path));
+        return null;
+      });
+    }
+  }
+}
@@ -0,0 +1,164 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.directory.PathUtil;
+import com.apple.foundationdb.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InMemoryKeyValueStoreTest {
+
+  private InMemoryKeyValueStore store;
+
+  private static byte[] key(String name) {
+    return Tuple.from(name).pack();
+  }
+
+  private static byte[] value(long number) {
+    return Tuple.from(number).pack();
+  }
+
+  @Before
+  public void init() {
+    store = new InMemoryKeyValueStore();
+  }
+
+  @Test
+  public void readsOwnWritesAndRanges() {
+    List<KeyValue> keyValues = store.runAsync(tx -> {
+      tx.set(key("a"), value(1));
+      tx.set(key("b"), value(2));
+      tx.set(key("c"), value(3));
+      tx.clear(key("b"));
+      return tx.getRange(new Range(key("a"), key("d")));
+    }).join();
+    assertEquals(2, keyValues.size());
+    assertArrayEquals(key("a"), keyValues.get(0).getKey());
+    assertArrayEquals(key("c"), keyValues.get(1).getKey());
+
+    List<KeyValue> reversed = store.readAsync(tx -> tx.getRange(key("a"), key("d"), 1, true)).join();
+    assertEquals(1, reversed.size());
+    assertArrayEquals(value(3), reversed.get(0).getValue());
+
+    store.runAsync(tx -> {
+      tx.clear(new Range(key("a"), key("z")));
+      tx.set(key("c"), value(4));
+      return CompletableFuture.completedFuture(null);
+    }).join();
+    assertNull(store.readAsync(tx -> tx.get(key("a"))).join());
+    assertArrayEquals(value(4), store.readAsync(tx -> tx.get(key("c"))).join());
+  }
+
+  @Test
+  public void conflictingTransactionIsRetried() {
+    AtomicInteger attempts = new AtomicInteger();
+    List<Boolean> retries = new ArrayList<>();
+    store.runAsync(tx -> tx.get(key("counter")).thenApply(current -> {
+      // another transaction commits after this one has read the key
+      if (attempts.incrementAndGet() == 1) {
+        store.runAsync(other -> {
+          other.set(key("counter"), value(10));
+          return CompletableFuture.completedFuture(null);
+        }).join();
+      }
+      long next = current == null ? 1 : Tuple.fromBytes(current).getLong(0) + 1;
+      tx.set(key("counter"), value(next));
+      return next;
+    }), retries::add).join();
+
+    assertEquals(2, attempts.get());
+    assertEquals(Collections.singletonList(true), retries);
+    assertArrayEquals(value(11), store.readAsync(tx -> tx.get(key("counter"))).join());
+  }
+
+  @Test
+  public void snapshotIsolationAndAtomicAdd() {
+    byte[] one = new byte[]{1, 0, 0, 0, 0, 0, 0, 0};
+    store.runAsync(tx -> {
+      tx.mutate(MutationType.ADD, key("sum"), one);
+      return tx.get(key("sum")).thenApply(sum -> {
+        // the earlier read of a key blocks nothing, the later snapshot still sees the old value
+        byte[] before = store.readAsync(other -> other.get(key("sum"))).join();
+        assertNull(before);
+        assertArrayEquals(one, sum);
+        return null;
+      });
+    }).join();
+
+    for (int i = 0; i < 9; i++) {
+      store.runAsync(tx -> {
+        tx.mutate(MutationType.ADD, key("sum"), one);
+        return CompletableFuture.completedFuture(null);
+      }).join();
+    }
+    assertEquals(10, store.readAsync(tx -> tx.get(key("sum"))).join()[0]);
+
+    store.runAsync(tx -> {
+      tx.mutate(MutationType.MIN, key("min"), new byte[]{5, 0});
+      tx.mutate(MutationType.MIN, key("min"), new byte[]{7, 0});
+      return CompletableFuture.completedFuture(null);
+    }).join();
+    assertArrayEquals(new byte[]{5, 0}, store.readAsync(tx -> tx.get(key("min"))).join());
+  }
+
+  @Test
+  public void snapshotReadsDoNotConflict() {
+    AtomicInteger attempts = new AtomicInteger();
+    store.runAsync(tx -> tx.snapshot().get(key("counter")).thenApply(current -> {
+      if (attempts.incrementAndGet() == 1) {
+        store.runAsync(other -> {
+          other.set(key("counter"), value(10));
+          return CompletableFuture.completedFuture(null);
+        }).join();
+      }
+      tx.set(key("other"), value(1));
+      return null;
+    })).join();
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  public void staleSnapshotsReuseReadVersion() throws InterruptedException {
+    store.runAsync(tx -> {
+      tx.set(key("a"), value(1));
+      return CompletableFuture.completedFuture(null);
+    }).join();
+    assertArrayEquals(value(1), store.snapshotAsync(10_000, tx -> tx.get(key("a"))).join());
+
+    store.runAsync(tx -> {
+      tx.set(key("a"), value(2));
+      return CompletableFuture.completedFuture(null);
+    }).join();
+
+    // within the bound the earlier read version is reused, a fresh one sees the new value
+    assertArrayEquals(value(1), store.snapshotAsync(10_000, tx -> tx.get(key("a"))).join());
+    assertArrayEquals(value(2), store.snapshotAsync(0, tx -> tx.get(key("a"))).join());
+    assertArrayEquals(value(2), store.readAsync(tx -> tx.get(key("a"))).join());
+    Thread.sleep(20);
+    assertArrayEquals(value(2), store.snapshotAsync(10, tx -> tx.get(key("a"))).join());
+  }
+
+  @Test
+  public void directories() {
+    KeyValueDirectory directory = store.directory();
+    store.runAsync(tx -> directory.create(tx, PathUtil.from("Tables", "Employee"))).join();
+    List<String> tables = store.readAsync(tx -> directory.list(tx, PathUtil.from("Tables"))).join();
+    assertEquals(1, tables.size());
+    assertEquals("Employee", tables.get(0));
+
+    store.runAsync(tx -> directory.remove(tx, PathUtil.from("Tables"))).join();
+    assertTrue(store.runAsync(tx -> directory.createOrOpen(tx, PathUtil.from("Tables"))
+        .thenCompose(dir -> directory.list(tx, PathUtil.from("Tables")))).join().isEmpty());
+  }
+}
@@ -0,0 +1,69 @@
+import com.apple.foundationdb.subspace.Subspace;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * KeyValueDirectory maps paths of names to short key prefixes within a {KeyValueStore}, the way
+ * FoundationDB's directory layer does. Every operation runs inside the given transaction.
+ */
+public interface KeyValueDirectory {
+
+  /**
+   * Create a directory, its parents are created as needed
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future of the directory's subspace, fails if the directory already exists
+   */
+  public CompletableFuture<Subspace> create(KeyValueTransaction tx, List<String> path);
+
+  /**
+   * Open a directory, creating it (and its parents) if it does not exist
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future of the directory's subspace
+   */
+  public CompletableFuture<Subspace> createOrOpen(KeyValueTransaction tx, List<String> path);
+
+  /**
+   * Open an existing directory
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future of the directory's subspace, fails if the directory does not exist
+   */
+  public CompletableFuture<Subspace> open(KeyValueTransaction tx, List<String> path);
+
+  /**
+   * Check whether a directory exists
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future of whether it exists
+   */
+  public CompletableFuture<Boolean> exists(KeyValueTransaction tx, List<String> path);
+
+  /**
+   * List the names of a directory's subdirectories
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future of the names, fails if the directory does not exist
+   */
+  public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path);
+
+  /**
+   * List the names of a directory's subdirectories, one page at a time
+   * @param tx the transaction
+   * @param path the directory's path
+   * @param startAfter the page starts with the first name after this one, null for the first page
+   * @param limit max number of names, 0 for all
+   * @return future of the names in order, fails if the directory does not exist
+   */
+  public CompletableFuture<List<String>> list(KeyValueTransaction tx, List<String> path, String startAfter, int limit);
+
+  /**
+   * Remove a directory along with its subdirectories and everything stored in them
+   * @param tx the transaction
+   * @param path the directory's path
+   * @return future that fails if the directory does not exist
+   */
+  public CompletableFuture<Void> remove(KeyValueTransaction tx, List<String> path);
+}
@@ -0,0 +1,104 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * KeyValueStore is the ordered, transactional key-value storage {TableManagerImpl} is built on.
+ * {FDBKeyValueStore} stores everything in FoundationDB, {InMemoryKeyValueStore} keeps it in the
+ * process.
+ */
+public interface KeyValueStore extends AutoCloseable {
+
+  /**
+   * Run a function in a transaction and commit it. The function is run again in a new
+   * transaction when the commit conflicts with another one, so it must not have side effects
+   * outside of the transaction.
+   *
+   * @param retryable the function, its future completes when the transaction's work is issued
+   * @return future of the function's result, completes once the transaction has committed
+   */
+  public <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable);
+
+  /**
+   * Told about every attempt of a transaction that failed with a retryable error and is run again
+   */
+  public interface RetryListener {
+
+    /**
+     * @param conflict true if the attempt's commit conflicted with another transaction, false for any
+     * other retryable error (on FoundationDB a too old read version, a commit of unknown result, ...)
+     */
+    void retrying(boolean conflict);
+  }
+
+  /**
+   * Run a function in a transaction and commit it, see runAsync(retryable), telling onRetry why each
+   * attempt that is run again failed. Stores that cannot tell never call it
+   */
+  public default <T> CompletableFuture<T> runAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable,
+                                                   RetryListener onRetry) {
+    return runAsync(retryable);
+  }
+
+  /**
+   * Run a function in a read-only transaction
+   *
+   * @param retryable the function, it must not write
+   * @return future of the function's result
+   */
+  public <T> CompletableFuture<T> readAsync(Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable);
+
+  /**
+   * Run a function in a read-only transaction reading a snapshot, see {KeyValueTransaction#snapshot}.
+   * The transaction may reuse the read version of an earlier one that got it at most
+   * maxStalenessMillis ago, saving the round trip for a fresh one, so it may not see what was
+   * committed in that time. Read versions are never reused for longer than
+   * {#MAX_READ_VERSION_AGE_MILLIS}.
+   *
+   * @param maxStalenessMillis how old the read version may be, 0 for a fresh one
+   * @param retryable the function, it must not write
+   * @return future of the function's result
+   */
+  public default <T> CompletableFuture<T> snapshotAsync(long maxStalenessMillis,
+                                                        Function<? super KeyValueTransaction, ? extends CompletableFuture<T>> retryable) {
+    return readAsync(tx -> retryable.apply(tx.snapshot()));
+  }
+
+  /**
+   * Longest a read version is reused by {#snapshotAsync}, FoundationDB keeps 5 seconds of history
+   */
+  public static final long MAX_READ_VERSION_AGE_MILLIS = 5000;
+
+  /**
+   * Split a key range where the store's shards (the ranges served by one storage server) begin, so
+   * the range can be read in parallel pieces that each go to one server
+   *
+   * @return future of the shard boundaries strictly inside (begin, end), in key order. None means
+   * the range is read in one piece
+   */
+  public default CompletableFuture<List<byte[]>> getBoundaryKeys(byte[] begin, byte[] end) {
+    return CompletableFuture.completedFuture(Collections.emptyList());
+  }
+
+  /**
+   * Estimate the bytes of the keys and values stored in a key range without reading it. FoundationDB
+   * answers from the byte samples its storage servers keep, small ranges may be far off
+   *
+   * @return future of the estimated bytes, -1 if the store cannot estimate them
+   */
+  public default CompletableFuture<Long> getEstimatedRangeSizeBytes(byte[] begin, byte[] end) {
+    return CompletableFuture.completedFuture(-1L);
+  }
+
+  /**
+   * @return the directory used to allocate prefixes in this store
+   */
+  public KeyValueDirectory directory();
+
+  /**
+   * Release the store's resources
+   */
+  @Override
+  public void close();
+}
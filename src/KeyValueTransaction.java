@@ -0,0 +1,80 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * KeyValueTransaction is one transaction of a {KeyValueStore}. Reads see the store as of the
+ * transaction's read version plus the transaction's own writes, and all writes become visible
+ * together when the transaction commits.
+ */
+public interface KeyValueTransaction {
+
+  /**
+   * Read a single key
+   * @param key the key
+   * @return future of its value, null if the key is not set
+   */
+  public CompletableFuture<byte[]> get(byte[] key);
+
+  /**
+   * Read every key-value pair in a range
+   * @param range the range, begin inclusive and end exclusive
+   * @return future of the pairs in key order
+   */
+  public CompletableFuture<List<KeyValue>> getRange(Range range);
+
+  /**
+   * Read the key-value pairs in [begin, end)
+   * @param begin the first key (inclusive)
+   * @param end the last key (exclusive)
+   * @param limit max number of pairs to return, 0 for no limit
+   * @param reverse whether to return the pairs from the end of the range
+   * @return future of the pairs, in descending key order if reverse
+   */
+  public CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse);
+
+  /**
+   * Set a key to a value
+   * @param key the key
+   * @param value the value
+   */
+  public void set(byte[] key, byte[] value);
+
+  /**
+   * Clear a single key
+   * @param key the key
+   */
+  public void clear(byte[] key);
+
+  /**
+   * Clear every key in a range
+   * @param range the range, begin inclusive and end exclusive
+   */
+  public void clear(Range range);
+
+  /**
+   * Apply an atomic operation to a key. It does not read the key, so concurrent atomic
+   * operations on the same key do not conflict.
+   *
+   * @param type the operation, ADD, MIN, MAX, BYTE_MIN and BYTE_MAX are supported by every store
+   * @param key the key
+   * @param param the operand
+   */
+  public void mutate(MutationType type, byte[] key, byte[] param);
+
+  /**
+   * @return this transaction reading without adding read conflicts: what it reads being written by
+   * a concurrent transaction does not make this one conflict. Writes go to this transaction.
+   */
+  public KeyValueTransaction snapshot();
+
+  /**
+   * @return the store's own transaction, when this one only forwards to it
+   */
+  public default KeyValueTransaction unwrap() {
+    return this;
+  }
+}
@@ -0,0 +1,364 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OperationMetrics counts the calls of one {TableManager} operation: their latency, and the
+ * transactions, commits, retries, conflicts, reads and bytes they cost in the {KeyValueStore}.
+ *
+ * Recording is lock-free (a few LongAdder increments and one histogram bucket), so it stays well
+ * under a microsecond per call.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+  // latencies are bucketed by their highest bit and the SUB_BUCKET_BITS bits below it,
+  // every bucket is within 1/2^SUB_BUCKET_BITS of the values it holds
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final String name;
+
+  private final AtomicLongArray latencyBuckets = new AtomicLongArray(64 * SUB_BUCKETS);
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder transactions = new LongAdder();
+  private final LongAdder commits = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder conflicts = new LongAdder();
+  private final LongAdder pointReads = new LongAdder();
+  private final LongAdder rangeReads = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+
+  /**
+   * An immutable copy of an operation's metrics.
+   */
+  public static class Snapshot {
+    public final String name;
+    public final long calls;
+    public final long errors;
+    public final double p50Micros;
+    public final double p99Micros;
+    public final double p999Micros;
+    public final double maxMicros;
+    public final long transactions;
+    public final long commits;
+    public final long retries;
+    public final long conflicts;
+    public final long pointReads;
+    public final long rangeReads;
+    public final long bytesRead;
+    public final long bytesWritten;
+
+    private Snapshot(OperationMetrics metrics) {
+      long[] buckets = metrics.buckets();
+      name = metrics.name;
+      calls = metrics.getCalls();
+      errors = metrics.getErrors();
+      p50Micros = percentile(buckets, 0.5);
+      p99Micros = percentile(buckets, 0.99);
+      p999Micros = percentile(buckets, 0.999);
+      maxMicros = percentile(buckets, 1.0);
+      transactions = metrics.getTransactions();
+      commits = metrics.getCommits();
+      retries = metrics.getRetries();
+      conflicts = metrics.getConflicts();
+      pointReads = metrics.getPointReads();
+      rangeReads = metrics.getRangeReads();
+      bytesRead = metrics.getBytesRead();
+      bytesWritten = metrics.getBytesWritten();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: calls=%d errors=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus transactions=%d "
+                      + "commits=%d retries=%d conflicts=%d pointReads=%d rangeReads=%d bytesRead=%d bytesWritten=%d",
+              name, calls, errors, p50Micros, p99Micros, p999Micros, maxMicros, transactions, commits, retries,
+              conflicts, pointReads, rangeReads, bytesRead, bytesWritten);
+    }
+  }
+
+  public OperationMetrics(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  // records one finished call that took nanos
+  void record(long nanos, boolean failed) {
+    calls.increment();
+    if (failed)
+      errors.increment();
+    latencyBuckets.incrementAndGet(bucket(Math.max(nanos, 0)));
+  }
+
+  // records one transaction attempt, retries are the attempts after the first one: a transaction is
+  // retried on a conflict, and on FoundationDB on any retryable error (a too old read version, ...)
+  void transaction(boolean retry) {
+    transactions.increment();
+    if (retry)
+      retries.increment();
+  }
+
+  void commit() {
+    commits.increment();
+  }
+
+  // records a retry whose attempt failed because its commit conflicted with another transaction
+  void conflict() {
+    conflicts.increment();
+  }
+
+  /**
+   * Counts the traffic a layer has on the store's own transaction (see {KeyValueTransaction#unwrap}), which
+   * bypasses the transaction it was handed. Transactions instrumented for an operation implement it.
+   */
+  interface Traffic {
+
+    void pointRead(long bytes);
+
+    // a range read, bytes are counted as its pairs are read
+    void rangeRead();
+
+    void bytesRead(long bytes);
+
+    void bytesWritten(long bytes);
+  }
+
+  /**
+   * @return tx, counting its reads and writes towards this operation
+   */
+  KeyValueTransaction instrument(KeyValueTransaction tx) {
+    return new InstrumentedTransaction(tx);
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS)
+      return (int) nanos;
+    int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+    int subBucket = (int) (nanos >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // the largest latency (in nanos) a bucket holds
+  private static long bucketLimit(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+
+  private long[] buckets() {
+    long[] buckets = new long[latencyBuckets.length()];
+    for (int i = 0; i < buckets.length; i++)
+      buckets[i] = latencyBuckets.get(i);
+    return buckets;
+  }
+
+  private static double percentile(long[] buckets, double quantile) {
+    long total = 0;
+    for (long count : buckets)
+      total += count;
+    if (total == 0)
+      return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(total * quantile));
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank)
+        return bucketLimit(i) / 1000.0;
+    }
+    return bucketLimit(buckets.length - 1) / 1000.0;
+  }
+
+  @Override
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getP50Micros() {
+    return percentile(buckets(), 0.5);
+  }
+
+  @Override
+  public double getP99Micros() {
+    return percentile(buckets(), 0.99);
+  }
+
+  @Override
+  public double getP999Micros() {
+    return percentile(buckets(), 0.999);
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return percentile(buckets(), 1.0);
+  }
+
+  @Override
+  public long getTransactions() {
+    return transactions.sum();
+  }
+
+  @Override
+  public long getCommits() {
+    return commits.sum();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public long getConflicts() {
+    return conflicts.sum();
+  }
+
+  @Override
+  public long getPointReads() {
+    return pointReads.sum();
+  }
+
+  @Override
+  public long getRangeReads() {
+    return rangeReads.sum();
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < latencyBuckets.length(); i++)
+      latencyBuckets.set(i, 0);
+    calls.reset();
+    errors.reset();
+    transactions.reset();
+    commits.reset();
+    retries.reset();
+    conflicts.reset();
+    pointReads.reset();
+    rangeReads.reset();
+    bytesRead.reset();
+    bytesWritten.reset();
+  }
+
+  // forwards to a transaction, counting reads and bytes
+  private final class InstrumentedTransaction implements KeyValueTransaction, Traffic {
+
+    private final KeyValueTransaction tx;
+
+    InstrumentedTransaction(KeyValueTransaction tx) {
+      this.tx = tx;
+    }
+
+    @Override
+    public void pointRead(long bytes) {
+      pointReads.increment();
+      bytesRead.add(bytes);
+    }
+
+    @Override
+    public void rangeRead() {
+      rangeReads.increment();
+    }
+
+    @Override
+    public void bytesRead(long bytes) {
+      bytesRead.add(bytes);
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+      bytesWritten.add(bytes);
+    }
+
+    private List<KeyValue> countRange(List<KeyValue> keyValues) {
+      rangeRead();
+      long bytes = 0;
+      for (KeyValue kv : keyValues)
+        bytes += kv.getKey().length + kv.getValue().length;
+      bytesRead(bytes);
+      return keyValues;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(byte[] key) {
+      return tx.get(key).thenApply(value -> {
+        pointRead(key.length + (value == null ? 0 : value.length));
+        return value;
+      });
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(Range range) {
+      return tx.getRange(range).thenApply(this::countRange);
+    }
+
+    @Override
+    public CompletableFuture<List<KeyValue>> getRange(byte[] begin, byte[] end, int limit, boolean reverse) {
+      return tx.getRange(begin, end, limit, reverse).thenApply(this::countRange);
+    }
+
+    @Override
+    public void set(byte[] key, byte[] value) {
+      bytesWritten.add(key.length + value.length);
+      tx.set(key, value);
+    }
+
+    @Override
+    public void clear(byte[] key) {
+      bytesWritten.add(key.length);
+      tx.clear(key);
+    }
+
+    @Override
+    public void clear(Range range) {
+      bytesWritten.add(range.begin.length + range.end.length);
+      tx.clear(range);
+    }
+
+    @Override
+    public void mutate(MutationType type, byte[] key, byte[] param) {
+      bytesWritten.add(key.length + param.length);
+      tx.mutate(type, key, param);
+    }
+
+    @Override
+    public KeyValueTransaction snapshot() {
+      return new InstrumentedTransaction(tx.snapshot());
+    }
+
+    @Override
+    public KeyValueTransaction unwrap() {
+      return tx.unwrap();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/**
+ * OperationMetricsMBean is the JMX view of one {TableManager} operation's {OperationMetrics}.
+ * Latencies are in microseconds, the rest are totals since the metrics were created or reset.
+ */
+public interface OperationMetricsMBean {
+
+  public long getCalls();
+
+  public long getErrors();
+
+  public double getP50Micros();
+
+  public double getP99Micros();
+
+  public double getP999Micros();
+
+  public double getMaxMicros();
+
+  public long getTransactions();
+
+  public long getCommits();
+
+  public long getRetries();
+
+  public long getConflicts();
+
+  public long getPointReads();
+
+  public long getRangeReads();
+
+  public long getBytesRead();
+
+  public long getBytesWritten();
+
+  public void reset();
+}
@@ -0,0 +1,365 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ParallelScanner reads the records of a table that match some conditions, many pieces of the table
+ * at once.
+ *
+ * The table's raw directory is split where the store's shards begin (see
+ * {KeyValueStore#getBoundaryKeys}), so every piece is read from one storage server, and up to
+ * parallelism pieces are read at a time. A piece is read in batches of batchRows records, one
+ * transaction each like {RecordManager#scan}: a scan is not bound by FoundationDB's transaction
+ * limits, and it is not a snapshot of the table either. Batches are decoded and filtered on a
+ * fork-join pool, off the store's threads.
+ *
+ * Conditions are checked against the stored tuples before a record is made of them, so records
+ * that do not match cost no {Record}. Conditions on the first primary key attribute narrow the range
+ * that is read as well. A record without a value for an attribute (null) matches no condition on it.
+ * VARCHAR values compare by code point, the order of primary keys. INT and DOUBLE values compare by
+ * number whichever of the two a condition is given, a value of another type matches nothing.
+ */
+public class ParallelScanner {
+
+  private final TableManagerImpl tableManager;
+
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int batchRows = 500;
+
+  /**
+   * A comparison of an attribute's value with a constant
+   */
+  public static final class Condition {
+
+    public enum Operator {
+      EQUALS,
+      LESS_THAN,
+      GREATER_THAN
+    }
+
+    public final String attributeName;
+    public final Operator operator;
+    public final Object value;
+
+    public Condition(String attributeName, Operator operator, Object value) {
+      this.attributeName = attributeName;
+      this.operator = operator;
+      this.value = Record.normalize(value);
+    }
+
+    public static Condition equalTo(String attributeName, Object value) {
+      return new Condition(attributeName, Operator.EQUALS, value);
+    }
+
+    public static Condition lessThan(String attributeName, Object value) {
+      return new Condition(attributeName, Operator.LESS_THAN, value);
+    }
+
+    public static Condition greaterThan(String attributeName, Object value) {
+      return new Condition(attributeName, Operator.GREATER_THAN, value);
+    }
+
+    // the condition with its value converted to an attribute's type, null if no value of the type
+    // satisfies it. An INT is compared with a DOUBLE as the INT bound that admits the same INTs:
+    // x < 2.5 as x < 3, x > 2.5 as x > 2, and no INT equals 2.5
+    Condition ofType(AttributeType type) {
+      if (Record.isOfType(value, type))
+        return this;
+      if (type == AttributeType.DOUBLE && value instanceof Long)
+        return new Condition(attributeName, operator, ((Long) value).doubleValue());
+      if (type != AttributeType.INT || !(value instanceof Double) || Double.isNaN((Double) value))
+        return null;
+
+      double bound = (Double) value;
+      switch (operator) {
+        case EQUALS:
+          boolean isLong = bound == Math.rint(bound) && bound >= -0x1p63 && bound < 0x1p63;
+          return isLong ? new Condition(attributeName, operator, (long) bound) : null;
+        case LESS_THAN:
+          return new Condition(attributeName, operator, (long) Math.ceil(bound));
+        default:
+          return new Condition(attributeName, operator, (long) Math.floor(bound));
+      }
+    }
+
+    // true if a stored value of the attribute's type satisfies the condition
+    boolean test(Object stored) {
+      if (stored == null)
+        return false;
+      int comparison = Record.compareValues(stored, value);
+      switch (operator) {
+        case EQUALS:
+          return comparison == 0;
+        case LESS_THAN:
+          return comparison < 0;
+        default:
+          return comparison > 0;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return attributeName + " " + operator + " " + value;
+    }
+  }
+
+  public ParallelScanner(TableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  /**
+   * @param pool the pool batches are decoded and filtered on, the common pool by default
+   */
+  public ParallelScanner setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * @param parallelism pieces of a table read at once, the number of processors by default
+   */
+  public ParallelScanner setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+    return this;
+  }
+
+  public ParallelScanner setBatchRows(int batchRows) {
+    this.batchRows = batchRows;
+    return this;
+  }
+
+  // a scan resolved against the table as it was when the scan started
+  private static final class Plan {
+    final Subspace rawDir;
+    final Condition[] conditions;
+    // the part of the raw directory the conditions on the first primary key attribute leave, null
+    // if no record can match
+    final byte[] begin;
+    final byte[] end;
+
+    Plan(Subspace rawDir, Condition[] conditions, byte[] begin, byte[] end) {
+      this.rawDir = rawDir;
+      this.conditions = conditions;
+      this.begin = begin;
+      this.end = end;
+    }
+  }
+
+  // resolves the conditions, null if one names an attribute the table does not have
+  private static Plan plan(TableSchema table, Subspace rawDir, Condition[] conditions) {
+    byte[] begin = rawDir.range().begin;
+    byte[] end = rawDir.range().end;
+    boolean empty = false;
+    Condition[] typed = new Condition[conditions.length];
+    for (int i = 0; i < conditions.length; i++) {
+      int ordinal = table.ordinalOf(conditions[i].attributeName);
+      if (ordinal < 0)
+        return null;
+      Condition condition = conditions[i].ofType(table.getAttributeType(ordinal));
+      typed[i] = condition;
+      if (condition == null) {
+        empty = true;
+        continue;
+      }
+      if (table.primaryKeyIndexOf(ordinal) != 0)
+        continue;
+
+      // records whose first primary key value is v are stored in [pack(v), pack(v) + 0xFF)
+      byte[] key = rawDir.pack(Tuple.from(condition.value));
+      byte[] after = ByteArrayUtil.join(key, new byte[]{(byte) 0xFF});
+      if (condition.operator != Condition.Operator.LESS_THAN)
+        begin = max(begin, condition.operator == Condition.Operator.EQUALS ? key : after);
+      if (condition.operator != Condition.Operator.GREATER_THAN)
+        end = min(end, condition.operator == Condition.Operator.EQUALS ? after : key);
+    }
+
+    if (empty || ByteArrayUtil.compareUnsigned(begin, end) >= 0)
+      return new Plan(rawDir, typed, null, null);
+    return new Plan(rawDir, typed, begin, end);
+  }
+
+  private static byte[] max(byte[] a, byte[] b) {
+    return ByteArrayUtil.compareUnsigned(a, b) >= 0 ? a : b;
+  }
+
+  private static byte[] min(byte[] a, byte[] b) {
+    return ByteArrayUtil.compareUnsigned(a, b) <= 0 ? a : b;
+  }
+
+  /**
+   * Read the records of a table that match every condition
+   *
+   * @return future of the records in primary key order, null if the table does not exist or a
+   * condition names an attribute it does not have
+   */
+  public CompletableFuture<List<Record>> scanAsync(String tableName, Condition... conditions) {
+    List<List<List<Record>>> pieces = new ArrayList<>();
+    return scan(tableName, conditions, count -> {
+      for (int i = 0; i < count; i++) {
+        pieces.add(new ArrayList<>());
+      }
+    }, (piece, records) -> pieces.get(piece).add(records)).thenApply(found -> {
+      if (!found)
+        return null;
+
+      // pieces follow each other in key order, as do the batches of a piece
+      List<Record> result = new ArrayList<>();
+      for (List<List<Record>> batches : pieces) {
+        for (List<Record> batch : batches) {
+          result.addAll(batch);
+        }
+      }
+      return result;
+    });
+  }
+
+  public List<Record> scan(String tableName, Condition... conditions) {
+    return scanAsync(tableName, conditions).join();
+  }
+
+  /**
+   * Hand the records of a table that match every condition to a consumer as they are read, in no
+   * particular order. The consumer is called by one thread at a time
+   *
+   * @return future of the number of records handed out, null if the table does not exist or a
+   * condition names an attribute it does not have
+   */
+  public CompletableFuture<Long> scanAsync(String tableName, Consumer<Record> consumer, Condition... conditions) {
+    AtomicLong count = new AtomicLong();
+    return scan(tableName, conditions, pieces -> {
+    }, (piece, records) -> {
+      synchronized (consumer) {
+        records.forEach(consumer);
+      }
+      count.addAndGet(records.size());
+    }).thenApply(found -> found ? count.get() : null);
+  }
+
+  // receives the matching records of a batch, batches of one piece arrive one after another
+  private interface BatchSink {
+    void accept(int piece, List<Record> records);
+  }
+
+  // plans the scan, splits it into pieces and reads them. Completes with false if the table does not
+  // exist or a condition names an attribute it does not have
+  private CompletableFuture<Boolean> scan(String tableName, Condition[] conditions, Consumer<Integer> pieceCount,
+                                          BatchSink sink) {
+    return tableManager.getMetrics().time("parallelScan", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture((Plan) null);
+              return tableManager.openTableDir(tx, tableName, "raw").thenApply(rawDir -> plan(table, rawDir, conditions));
+            })).thenCompose(plan -> {
+      if (plan == null)
+        return CompletableFuture.completedFuture(false);
+      if (plan.begin == null) {
+        pieceCount.accept(0);
+        return CompletableFuture.completedFuture(true);
+      }
+
+      return tableManager.getStore().getBoundaryKeys(plan.begin, plan.end).thenCompose(boundaries -> {
+        List<byte[]> starts = new ArrayList<>(boundaries.size() + 1);
+        starts.add(plan.begin);
+        starts.addAll(boundaries);
+        pieceCount.accept(starts.size());
+
+        // every worker reads the next piece nobody has taken yet until there are none left
+        AtomicInteger next = new AtomicInteger();
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, starts.size()); i++) {
+          workers.add(readPieces(tableName, plan, starts, next, sink));
+        }
+        return AsyncUtil.whenAll(workers).thenApply(done -> true);
+      });
+    }));
+  }
+
+  private CompletableFuture<Void> readPieces(String tableName, Plan plan, List<byte[]> starts, AtomicInteger next,
+                                             BatchSink sink) {
+    int piece = next.getAndIncrement();
+    if (piece >= starts.size())
+      return AsyncUtil.DONE;
+
+    byte[] end = piece + 1 < starts.size() ? starts.get(piece + 1) : plan.end;
+    return readPiece(tableName, plan, piece, starts.get(piece), end, sink)
+            .thenComposeAsync(done -> readPieces(tableName, plan, starts, next, sink), pool);
+  }
+
+  // what a batch read: its matching records, and where the next batch of its piece starts (null
+  // if it was the last one)
+  private static final class Batch {
+    final List<Record> records;
+    final byte[] next;
+
+    Batch(List<Record> records, byte[] next) {
+      this.records = records;
+      this.next = next;
+    }
+  }
+
+  // reads [begin, end) one batch per transaction
+  private CompletableFuture<Void> readPiece(String tableName, Plan plan, int piece, byte[] begin, byte[] end,
+                                            BatchSink sink) {
+    return tableManager.getMetrics().time("parallelScanBatch", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                throw new IllegalStateException("table " + tableName + " does not exist");
+
+              return tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir -> {
+                if (!Arrays.equals(rawDir.getKey(), plan.rawDir.getKey()))
+                  throw new IllegalStateException("table " + tableName + " was dropped during the scan");
+
+                return tx.getRange(begin, end, batchRows, false)
+                        .thenApplyAsync(keyValues -> filter(table, plan, keyValues), pool);
+              });
+            }))).thenCompose(batch -> {
+      sink.accept(piece, batch.records);
+      if (batch.next == null)
+        return AsyncUtil.DONE;
+      return readPiece(tableName, plan, piece, batch.next, end, sink);
+    });
+  }
+
+  // decodes the records of a batch that match every condition, as of the table's schema when the
+  // batch was read
+  private Batch filter(TableSchema table, Plan plan, List<KeyValue> keyValues) {
+    int[] ordinals = new int[plan.conditions.length];
+    for (int i = 0; i < ordinals.length; i++) {
+      ordinals[i] = table.ordinalOf(plan.conditions[i].attributeName);
+    }
+
+    List<Record> records = new ArrayList<>();
+    for (KeyValue kv : keyValues) {
+      Tuple primaryKey = plan.rawDir.unpack(kv.getKey());
+      Tuple values = Tuple.fromBytes(kv.getValue());
+      if (matches(table, plan.conditions, ordinals, primaryKey, values))
+        records.add(RecordManagerImpl.decode(table, primaryKey, values));
+    }
+
+    // the batch's last key followed by 0x00 is where the next batch starts
+    byte[] next = keyValues.size() < batchRows ? null
+            : ByteArrayUtil.join(keyValues.get(keyValues.size() - 1).getKey(), new byte[]{0});
+    return new Batch(records, next);
+  }
+
+  private static boolean matches(TableSchema table, Condition[] conditions, int[] ordinals, Tuple primaryKey,
+                                 Tuple values) {
+    for (int i = 0; i < conditions.length; i++) {
+      if (ordinals[i] < 0 || !conditions[i].test(RecordManagerImpl.decodeValue(table, ordinals[i], primaryKey, values)))
+        return false;
+    }
+    return true;
+  }
+}
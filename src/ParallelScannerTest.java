@@ -0,0 +1,134 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+
+public class ParallelScannerTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"SSN"};
+
+  // enough rows for several shards of the in-memory store
+  private static final int ROWS = 3 * InMemoryKeyValueStore.SHARD_KEYS + 123;
+
+  private TableManagerImpl tableManager;
+  private RecordManagerImpl recordManager;
+  private ParallelScanner scanner;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new InMemoryKeyValueStore());
+    recordManager = new RecordManagerImpl(tableManager);
+    scanner = new ParallelScanner(tableManager).setPool(new ForkJoinPool(4)).setParallelism(4).setBatchRows(200);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    new BulkLoader(tableManager).load(EmployeeTableName, "employees", new Iterator<Record>() {
+      int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < ROWS;
+      }
+
+      @Override
+      public Record next() {
+        int ssn = next++;
+        Record record = new Record().setValue("SSN", ssn).setValue("Name", "Employee" + (ssn % 100));
+        return ssn % 10 == 0 ? record : record.setValue("Salary", (double) ssn);
+      }
+    });
+  }
+
+  // the records a sequential scan finds, in primary key order
+  private List<Record> expected(Predicate<Record> matches) {
+    List<Record> records = new ArrayList<>();
+    RecordCursor cursor = recordManager.scan(EmployeeTableName, null, null, 0);
+    while (cursor.hasNext()) {
+      Record record = cursor.next();
+      if (matches.test(record))
+        records.add(record);
+    }
+    return records;
+  }
+
+  private static double salary(Record record) {
+    Object salary = record.getValue("Salary");
+    return salary == null ? Double.NaN : (Double) salary;
+  }
+
+  @Test
+  public void scansEveryPieceInPrimaryKeyOrder() {
+    tableManager.getMetrics().reset();
+    List<Record> all = scanner.scan(EmployeeTableName);
+    assertEquals(ROWS, all.size());
+    assertEquals(expected(record -> true), all);
+
+    // every shard is read in batches of its own
+    assertTrue(tableManager.getMetrics().snapshot().get("parallelScanBatch").calls > ROWS / 200);
+  }
+
+  @Test
+  public void conditionsFilterRecords() {
+    assertEquals(expected(record -> salary(record) > 2500.0 && "Employee7".equals(record.getValue("Name"))),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("Salary", 2500.0),
+            ParallelScanner.Condition.equalTo("Name", "Employee7")));
+    assertEquals(expected(record -> ((String) record.getValue("Name")).compareTo("Employee2") < 0),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.lessThan("Name", "Employee2")));
+
+    // records without a salary match no condition on it
+    assertEquals(expected(record -> salary(record) < 100.0),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.lessThan("Salary", 100.0)));
+
+    // conditions on the primary key narrow the range read
+    tableManager.getMetrics().reset();
+    assertEquals(expected(record -> (Long) record.getValue("SSN") > 1000 && (Long) record.getValue("SSN") < 1100),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("SSN", 1000),
+            ParallelScanner.Condition.lessThan("SSN", 1100)));
+    assertEquals(1, tableManager.getMetrics().snapshot().get("parallelScanBatch").calls);
+    assertEquals(expected(record -> (Long) record.getValue("SSN") == 42),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("SSN", 42)));
+    assertTrue(scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("SSN", ROWS)).isEmpty());
+    assertTrue(scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("SSN", "42")).isEmpty());
+
+    // numbers are compared as numbers, whether given as INT or DOUBLE
+    assertEquals(expected(record -> salary(record) > 2500.0),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("Salary", 2500)));
+    assertEquals(expected(record -> (Long) record.getValue("SSN") > 1000 && (Long) record.getValue("SSN") < 1003),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("SSN", 1000.5),
+            ParallelScanner.Condition.lessThan("SSN", 1002.5)));
+    assertEquals(expected(record -> (Long) record.getValue("SSN") == 42),
+        scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("SSN", 42.0)));
+    assertTrue(scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("SSN", 42.5)).isEmpty());
+
+    assertNull(scanner.scan("Missing"));
+    assertNull(scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("Age", 30)));
+  }
+
+  @Test
+  public void conditionsSeeAddedAttributesDefaults() {
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Floor", AttributeType.INT, 3L));
+    assertEquals(ROWS, scanner.scan(EmployeeTableName, ParallelScanner.Condition.equalTo("Floor", 3)).size());
+    assertTrue(scanner.scan(EmployeeTableName, ParallelScanner.Condition.greaterThan("Floor", 3)).isEmpty());
+  }
+
+  @Test
+  public void consumerGetsEveryMatchingRecord() {
+    List<Record> consumed = new ArrayList<>();
+    long count = scanner.scanAsync(EmployeeTableName, consumed::add,
+        ParallelScanner.Condition.equalTo("Name", "Employee3")).join();
+    assertEquals(ROWS / 100 + (ROWS % 100 > 3 ? 1 : 0), count);
+    assertEquals(count, consumed.size());
+    consumed.sort((a, b) -> Long.compare((Long) a.getValue("SSN"), (Long) b.getValue("SSN")));
+    assertEquals(expected(record -> "Employee3".equals(record.getValue("Name"))), consumed);
+  }
+}
@@ -0,0 +1,113 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Record is one row of a table: attribute values by attribute name. An attribute without a value
+ * is null.
+ *
+ * INT values are Long (Integer is accepted), VARCHAR values are String and DOUBLE values are Double
+ * (Float is accepted). Records read from the database always hold Long, String and Double.
+ */
+public class Record {
+
+  private final HashMap<String, Object> values;
+
+  public Record() {
+    values = new HashMap<>();
+  }
+
+  public Record(Map<String, Object> values) {
+    this.values = new HashMap<>(values);
+  }
+
+  public Object getValue(String attributeName) {
+    return values.get(attributeName);
+  }
+
+  public Record setValue(String attributeName, Object value) {
+    if (value == null) {
+      values.remove(attributeName);
+    } else {
+      values.put(attributeName, value);
+    }
+    return this;
+  }
+
+  public boolean hasValue(String attributeName) {
+    return values.containsKey(attributeName);
+  }
+
+  public HashMap<String, Object> getValues() {
+    return values;
+  }
+
+  /**
+   * @return whether value can be stored in an attribute of type
+   */
+  public static boolean isOfType(Object value, AttributeType type) {
+    switch (type) {
+      case INT:
+        return value instanceof Long || value instanceof Integer;
+      case VARCHAR:
+        return value instanceof String;
+      case DOUBLE:
+        return value instanceof Double || value instanceof Float;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return value as it is stored and read back: Integer widened to Long, Float to Double
+   */
+  public static Object normalize(Object value) {
+    if (value instanceof Integer)
+      return ((Integer) value).longValue();
+    if (value instanceof Float)
+      return ((Float) value).doubleValue();
+    return value;
+  }
+
+  /**
+   * @return how two normalized values of one attribute type compare: numbers by value, strings by code
+   * point like their tuple encoding (and so like primary keys)
+   */
+  @SuppressWarnings("unchecked")
+  public static int compareValues(Object a, Object b) {
+    if (a instanceof String) {
+      String s = (String) a;
+      String t = (String) b;
+      int i = 0;
+      int j = 0;
+      while (i < s.length() && j < t.length()) {
+        int c = s.codePointAt(i);
+        int d = t.codePointAt(j);
+        if (c != d)
+          return Integer.compare(c, d);
+        i += Character.charCount(c);
+        j += Character.charCount(d);
+      }
+      return Integer.compare(s.length() - i, t.length() - j);
+    }
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    Record record = (Record) o;
+    return Objects.equals(values, record.values);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(values);
+  }
+
+  @Override
+  public String toString() {
+    return "Record" + values;
+  }
+}
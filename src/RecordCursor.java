@@ -0,0 +1,177 @@
+import com.apple.foundationdb.async.AsyncIterator;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * RecordCursor iterates over the records of a table in primary key order, reading them lazily in
+ * batches. While the caller works through one batch, the next one is already being read.
+ *
+ * Every batch is read in a transaction of its own, so a scan can run far longer than FoundationDB's
+ * 5 second transaction limit, but it is not a snapshot: a batch sees the writes committed before it
+ * was read. getContinuation() returns a token that resumes the scan after the last record returned,
+ * also in another process (see {RecordManagerImpl#scan(String, byte[])}). A scan with a limit is a
+ * page: resuming it returns the next page, of up to the same number of records.
+ */
+public class RecordCursor implements AsyncIterator<Record> {
+
+  /**
+   * Reads the records of one batch
+   */
+  interface BatchReader {
+    /**
+     * @param begin first primary key (prefix) to read, null for the start of the table
+     * @param exclusive whether the records at begin itself are skipped
+     * @param end primary key prefix the batch stops before, null for the end of the table
+     * @param limit max number of records
+     */
+    CompletableFuture<Batch> read(Tuple begin, boolean exclusive, Tuple end, int limit);
+  }
+
+  /**
+   * The records of one batch and their primary keys
+   */
+  static final class Batch {
+    final List<Tuple> primaryKeys;
+    final List<Record> records;
+
+    Batch(List<Tuple> primaryKeys, List<Record> records) {
+      this.primaryKeys = primaryKeys;
+      this.records = records;
+    }
+  }
+
+  private final BatchReader reader;
+  private final int batchSize;
+  private final Tuple end;
+  // max number of records of the page, -1 for all
+  private final long limit;
+
+  // where the next batch is read from, and how many records are still to be read (-1 for all)
+  private Tuple fetchBegin;
+  private boolean fetchExclusive;
+  private long unfetched;
+  private CompletableFuture<Batch> fetching;
+  // whether a batch came back short, so nothing is left before end
+  private boolean exhausted;
+
+  // where the records returned so far end
+  private Tuple position;
+  private boolean positionExclusive;
+
+  private Batch current;
+  private int currentIndex;
+  private boolean done;
+
+  RecordCursor(BatchReader reader, int batchSize, Tuple begin, boolean exclusive, Tuple end, long limit) {
+    this.reader = reader;
+    this.batchSize = batchSize;
+    this.end = end;
+    this.limit = limit;
+    fetchBegin = begin;
+    fetchExclusive = exclusive;
+    unfetched = limit;
+    position = begin;
+    positionExclusive = exclusive;
+    fetchNext();
+  }
+
+  /**
+   * @return the cursor a continuation token was made by, positioned after the records it had returned
+   */
+  static RecordCursor fromContinuation(BatchReader reader, int batchSize, byte[] continuation) {
+    Tuple token = Tuple.fromBytes(continuation);
+    return new RecordCursor(reader, batchSize, token.getNestedTuple(0), token.getBoolean(1),
+            token.getNestedTuple(2), token.getLong(3));
+  }
+
+  // starts reading the next batch, or marks the end when there is nothing left to read
+  private void fetchNext() {
+    if (unfetched == 0) {
+      fetching = null;
+      return;
+    }
+    int batchLimit = unfetched < 0 ? batchSize : (int) Math.min(batchSize, unfetched);
+    fetching = reader.read(fetchBegin, fetchExclusive, end, batchLimit);
+    fetching = fetching.thenApply(batch -> {
+      synchronized (this) {
+        if (unfetched > 0)
+          unfetched -= batch.records.size();
+        if (batch.records.size() < batchLimit) {
+          unfetched = 0;
+          exhausted = true;
+        } else {
+          fetchBegin = batch.primaryKeys.get(batch.primaryKeys.size() - 1);
+          fetchExclusive = true;
+        }
+      }
+      return batch;
+    });
+  }
+
+  @Override
+  public synchronized CompletableFuture<Boolean> onHasNext() {
+    if (current != null && currentIndex < current.records.size())
+      return CompletableFuture.completedFuture(true);
+    if (done || fetching == null)
+      return CompletableFuture.completedFuture(false);
+
+    CompletableFuture<Batch> next = fetching;
+    return next.thenApply(batch -> {
+      synchronized (this) {
+        if (done)
+          return false;
+
+        // keep one batch in flight while this one is consumed
+        if (fetching == next) {
+          current = batch;
+          currentIndex = 0;
+          fetchNext();
+        }
+        return currentIndex < current.records.size();
+      }
+    });
+  }
+
+  @Override
+  public boolean hasNext() {
+    return onHasNext().join();
+  }
+
+  // waits for the next batch without holding the monitor, the batch's callbacks take it
+  @Override
+  public Record next() {
+    while (true) {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      synchronized (this) {
+        if (current != null && currentIndex < current.records.size()) {
+          position = current.primaryKeys.get(currentIndex);
+          positionExclusive = true;
+          return current.records.get(currentIndex++);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a token that resumes the scan after the last record next() returned, null when the scan
+   * is known to have returned every record up to its end
+   */
+  public synchronized byte[] getContinuation() {
+    boolean buffered = current != null && currentIndex < current.records.size();
+    if (exhausted && !buffered && fetching == null)
+      return null;
+    return Tuple.from(position, positionExclusive, end, limit).pack();
+  }
+
+  @Override
+  public synchronized void cancel() {
+    done = true;
+    if (fetching != null)
+      fetching.cancel(false);
+  }
+}
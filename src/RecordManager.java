@@ -0,0 +1,102 @@
+import java.util.List;
+
+/**
+ * RecordManager defines the interfaces to read and write the records of the tables managed by a
+ * {TableManager}.
+ *
+ * A record is stored under its table's raw directory at the tuple of its primary key values, in the
+ * order the primary key was declared, so looking a record up by primary key is a single read.
+ */
+public interface RecordManager {
+
+  /**
+   * Insert a record
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - the table does not exist --> TABLE_NOT_FOUND
+   * - the record has a value for an attribute the table does not have --> ATTRIBUTE_NOT_FOUND
+   * - a value does not match its attribute's type --> ATTRIBUTE_TYPE_MISMATCH
+   * - a primary key attribute has no value --> RECORD_PRIMARY_KEY_INVALID
+   * - a record with the same primary key exists --> RECORD_ALREADY_EXISTS
+   *
+   * @param tableName the table's name
+   * @param record the record, attributes without a value are left null
+   * @return status code
+   */
+  public StatusCode insertRecord(String tableName, Record record);
+
+  /**
+   * Get a record by its primary key
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in the order they were declared
+   * @return the record, null if the table or the record does not exist
+   */
+  public Record getRecord(String tableName, Object[] primaryKeyValues);
+
+  /**
+   * Update the attributes of an existing record. Attributes the record has no value for keep theirs.
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - the same as insertRecord, except that
+   * - no record with the primary key exists --> RECORD_NOT_FOUND
+   *
+   * @param tableName the table's name
+   * @param record the primary key values and the values to change
+   * @return status code
+   */
+  public StatusCode updateRecord(String tableName, Record record);
+
+  /**
+   * Delete a record by its primary key
+   *
+   * ERROR Checking and the StatusCode that should return:
+   * - the table does not exist --> TABLE_NOT_FOUND
+   * - the number or types of primaryKeyValues do not match the primary key --> RECORD_PRIMARY_KEY_INVALID
+   * - no record with the primary key exists --> RECORD_NOT_FOUND
+   *
+   * @param tableName the table's name
+   * @param primaryKeyValues the values of the primary key attributes, in the order they were declared
+   * @return status code
+   */
+  public StatusCode deleteRecord(String tableName, Object[] primaryKeyValues);
+
+  /**
+   * Find the records whose attribute has a value, using the attribute's secondary index (see
+   * {TableManager#createIndex})
+   *
+   * @param tableName the table's name
+   * @param attributeName the indexed attribute
+   * @param value the value to look for
+   * @return the matching records in primary key order, null if the table does not exist or the
+   * attribute has no index that is ready
+   */
+  public List<Record> findRecords(String tableName, String attributeName, Object value);
+
+  /**
+   * Scan the records of a table in primary key order. The records are read lazily, in batches of
+   * their own transactions, so a scan is not bound to FoundationDB's transaction limits.
+   *
+   * fromKey and toKey hold the values of the leading primary key attributes (all of them, or only
+   * the first few). The scan starts at the first record whose primary key starts with fromKey or
+   * comes after it, and stops before the first record whose primary key starts with toKey or comes
+   * after it. The cursor's hasNext throws when the table does not exist.
+   *
+   * @param tableName the table's name
+   * @param fromKey where the scan starts, null for the start of the table
+   * @param toKey where the scan stops, null for the end of the table
+   * @param limit max number of records, 0 for all. A scan resumed from its continuation returns up
+   * to limit records more, so a limit pages through a table
+   * @return the cursor
+   */
+  public RecordCursor scan(String tableName, Object[] fromKey, Object[] toKey, int limit);
+
+  /**
+   * Resume a scan after the last record it returned
+   *
+   * @param tableName the table's name
+   * @param continuation the token of {RecordCursor#getContinuation}
+   * @return the cursor
+   */
+  public RecordCursor scan(String tableName, byte[] continuation);
+}
@@ -0,0 +1,501 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * RecordManagerImpl implements {RecordManager} on top of a {TableManagerImpl}, sharing its store,
+ * its cached catalog and its metrics.
+ *
+ * A record is stored as (primaryKeyValues...) -> (schemaVersion, attributeName, value, attributeName,
+ * value, ...) in its table's raw directory, the value holding every non-primary-key attribute that is
+ * not null. Records are read as of the table's current schema version whatever version they were
+ * stored under: values of attributes the table no longer has (or has added again since) are ignored,
+ * and attributes added since read as their default. Records stored before schema versions were
+ * recorded have no version in front, they are version 0.
+ *
+ * Secondary indexes live in the table's index directory as (attributeName, value, primaryKeyValues...)
+ * -> (), and are updated in the same transaction as the records they point to. Null values are not
+ * indexed.
+ *
+ * Every write also changes the table's statistics in its transaction (see {TableStatistics}), with
+ * atomic mutations that do not conflict: countRecords and aggregate read them without a scan.
+ *
+ * Every record transaction reads its table's descriptor, so it conflicts with (and is retried after)
+ * any DDL on the table that commits while it runs. DDL on other tables does not get in its way.
+ */
+public class RecordManagerImpl implements RecordManager {
+
+  // records read per transaction by a scan
+  private static final int SCAN_BATCH_ROWS = 500;
+
+  private final TableManagerImpl tableManager;
+
+  public RecordManagerImpl(TableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  /**
+   * @return the primary key tuple of primaryKeyValues, null if they do not match the table's primary key
+   */
+  static Tuple primaryKey(TableSchema table, Object[] primaryKeyValues) {
+    if (primaryKeyValues == null || primaryKeyValues.length != table.getPrimaryKeyCount())
+      return null;
+
+    Object[] values = new Object[primaryKeyValues.length];
+    for (int i = 0; i < values.length; i++) {
+      if (!Record.isOfType(primaryKeyValues[i], table.getAttributeType(table.getPrimaryKeyOrdinal(i))))
+        return null;
+      values[i] = Record.normalize(primaryKeyValues[i]);
+    }
+    return Tuple.from(values);
+  }
+
+  /**
+   * @return the primary key tuple of a record, null if it misses a primary key value
+   */
+  static Tuple primaryKey(TableSchema table, Record record) {
+    Object[] values = new Object[table.getPrimaryKeyCount()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = record.getValue(table.getPrimaryKeyName(i));
+    }
+    return primaryKey(table, values);
+  }
+
+  /**
+   * @return the stored value of a record: its non-primary-key attributes that are not null
+   */
+  static byte[] encodeValues(TableSchema table, Record record) {
+    Tuple value = Tuple.from(table.getSchemaVersion());
+    for (Map.Entry<String, Object> entry : record.getValues().entrySet()) {
+      if (!table.isPrimaryKey(entry.getKey()))
+        value = value.add(entry.getKey()).addObject(Record.normalize(entry.getValue()));
+    }
+    return value.pack();
+  }
+
+  /**
+   * @return the schema version a record's stored values were written under
+   */
+  static long schemaVersion(Tuple values) {
+    // (attributeName, value) pairs, behind the version if there is one
+    return values.size() % 2 == 1 ? values.getLong(0) : 0;
+  }
+
+  /**
+   * @return the record stored as value at primaryKey as of the table's schema version: without values
+   * of attributes the table no longer has (or has with another type, or has added again since they
+   * were stored), and with the default of attributes added since
+   */
+  static Record decode(TableSchema table, Tuple primaryKey, byte[] value) {
+    return decode(table, primaryKey, Tuple.fromBytes(value));
+  }
+
+  static Record decode(TableSchema table, Tuple primaryKey, Tuple values) {
+    Record record = new Record();
+    for (int i = 0; i < table.getPrimaryKeyCount(); i++) {
+      record.setValue(table.getPrimaryKeyName(i), primaryKey.get(i));
+    }
+
+    long version = schemaVersion(values);
+    for (int i = values.size() % 2; i + 1 < values.size(); i += 2) {
+      int ordinal = table.ordinalOf(values.getString(i));
+      Object attributeValue = values.get(i + 1);
+      if (ordinal >= 0 && table.getSinceVersion(ordinal) <= version
+          && Record.isOfType(attributeValue, table.getAttributeType(ordinal)) && table.primaryKeyIndexOf(ordinal) < 0)
+        record.setValue(table.getAttributeName(ordinal), attributeValue);
+    }
+
+    if (version < table.getSchemaVersion()) {
+      for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+        if (table.getSinceVersion(ordinal) > version && table.getDefaultValue(ordinal) != null)
+          record.setValue(table.getAttributeName(ordinal), table.getDefaultValue(ordinal));
+      }
+    }
+    return record;
+  }
+
+  /**
+   * @return the value decode reads for one attribute of the record stored as values at primaryKey,
+   * without decoding the others, null if the record has none
+   */
+  static Object decodeValue(TableSchema table, int ordinal, Tuple primaryKey, Tuple values) {
+    int primaryKeyIndex = table.primaryKeyIndexOf(ordinal);
+    if (primaryKeyIndex >= 0)
+      return primaryKey.get(primaryKeyIndex);
+
+    long version = schemaVersion(values);
+    if (table.getSinceVersion(ordinal) > version)
+      return table.getDefaultValue(ordinal);
+
+    String attributeName = table.getAttributeName(ordinal);
+    for (int i = values.size() % 2; i + 1 < values.size(); i += 2) {
+      if (attributeName.equals(values.getString(i))) {
+        Object value = values.get(i + 1);
+        return Record.isOfType(value, table.getAttributeType(ordinal)) ? value : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the key of a record's entry in the index of attributeName
+   */
+  static byte[] indexKey(Subspace indexDir, String attributeName, Object value, Tuple primaryKey) {
+    return indexDir.pack(Tuple.from(attributeName, Record.normalize(value)).addAll(primaryKey));
+  }
+
+  /**
+   * Updates the index entries of the record at primaryKey in tx
+   * @param before the record as it was stored, null if there was none
+   * @param after the record as it is stored now, null if it was deleted
+   */
+  static void updateIndexes(KeyValueTransaction tx, TableSchema table, Subspace indexDir, Tuple primaryKey,
+                            Record before, Record after) {
+    for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+      if (table.getIndexState(ordinal) == null)
+        continue;
+
+      String attributeName = table.getAttributeName(ordinal);
+      Object oldValue = before == null ? null : Record.normalize(before.getValue(attributeName));
+      Object newValue = after == null ? null : Record.normalize(after.getValue(attributeName));
+      if (Objects.equals(oldValue, newValue))
+        continue;
+
+      if (oldValue != null)
+        tx.clear(indexKey(indexDir, attributeName, oldValue, primaryKey));
+      if (newValue != null)
+        tx.set(indexKey(indexDir, attributeName, newValue, primaryKey), new byte[0]);
+    }
+  }
+
+  // opens the index directory of a table, completes with null if it has no indexes
+  CompletableFuture<Subspace> openIndexDir(KeyValueTransaction tx, String tableName, TableSchema table) {
+    if (!table.hasIndexes())
+      return CompletableFuture.completedFuture(null);
+    return tableManager.openTableDir(tx, tableName, "index");
+  }
+
+  // checks every value of a record against the table's attributes, null if they all fit
+  static StatusCode validate(TableSchema table, Record record) {
+    for (Map.Entry<String, Object> entry : record.getValues().entrySet()) {
+      AttributeType type = table.getAttributeType(entry.getKey());
+      if (type == null)
+        return StatusCode.ATTRIBUTE_NOT_FOUND;
+      if (!Record.isOfType(entry.getValue(), type))
+        return StatusCode.ATTRIBUTE_TYPE_MISMATCH;
+    }
+    return null;
+  }
+
+  // runs a record write: resolves the table and its raw directory in a transaction, then hands them
+  // to write with the record's key
+  private CompletableFuture<StatusCode> writeRecord(String operation, String tableName, Record record,
+                                                    BiFunction<KeyValueTransaction, WriteContext, CompletableFuture<StatusCode>> write) {
+    return tableManager.getMetrics().time(operation, op -> tableManager.runAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture(StatusCode.TABLE_NOT_FOUND);
+
+              StatusCode invalid = validate(table, record);
+              if (invalid != null)
+                return CompletableFuture.completedFuture(invalid);
+
+              Tuple primaryKey = primaryKey(table, record);
+              if (primaryKey == null)
+                return CompletableFuture.completedFuture(StatusCode.RECORD_PRIMARY_KEY_INVALID);
+
+              return tableManager.openTableDir(tx, tableName, "raw")
+                      .thenCompose(rawDir -> openIndexDir(tx, tableName, table)
+                              .thenCompose(indexDir -> tableManager.openTableDir(tx, tableName, "meta")
+                                      .thenCompose(metaDir -> write.apply(tx,
+                                              new WriteContext(table, rawDir, indexDir, metaDir, primaryKey)))));
+            })));
+  }
+
+  // what a record write works on
+  private static final class WriteContext {
+    final TableSchema table;
+    final Subspace rawDir;
+    // null when the table has no indexes
+    final Subspace indexDir;
+    final Subspace metaDir;
+    final Tuple primaryKey;
+    final byte[] key;
+
+    WriteContext(TableSchema table, Subspace rawDir, Subspace indexDir, Subspace metaDir, Tuple primaryKey) {
+      this.table = table;
+      this.rawDir = rawDir;
+      this.indexDir = indexDir;
+      this.metaDir = metaDir;
+      this.primaryKey = primaryKey;
+      this.key = rawDir.pack(primaryKey);
+    }
+  }
+
+  public CompletableFuture<StatusCode> insertRecordAsync(String tableName, Record record) {
+    return writeRecord("insertRecord", tableName, record, (tx, context) -> tx.get(context.key).thenCompose(existing -> {
+      if (existing != null)
+        return CompletableFuture.completedFuture(StatusCode.RECORD_ALREADY_EXISTS);
+
+      tx.set(context.key, encodeValues(context.table, record));
+      if (context.indexDir != null)
+        updateIndexes(tx, context.table, context.indexDir, context.primaryKey, null, record);
+      return TableStatistics.update(tx, context.table, context.metaDir, context.key, null, record)
+              .thenApply(done -> StatusCode.SUCCESS);
+    }));
+  }
+
+  @Override
+  public StatusCode insertRecord(String tableName, Record record) {
+    return insertRecordAsync(tableName, record).join();
+  }
+
+  public CompletableFuture<Record> getRecordAsync(String tableName, Object[] primaryKeyValues) {
+    return tableManager.getMetrics().time("getRecord", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture(null);
+
+              Tuple primaryKey = primaryKey(table, primaryKeyValues);
+              if (primaryKey == null)
+                return CompletableFuture.completedFuture(null);
+
+              return tableManager.openTableDir(tx, tableName, "raw")
+                      .thenCompose(rawDir -> tx.get(rawDir.pack(primaryKey)))
+                      .thenApply(value -> value == null ? null : decode(table, primaryKey, value));
+            })));
+  }
+
+  @Override
+  public Record getRecord(String tableName, Object[] primaryKeyValues) {
+    return getRecordAsync(tableName, primaryKeyValues).join();
+  }
+
+  public CompletableFuture<StatusCode> updateRecordAsync(String tableName, Record record) {
+    return writeRecord("updateRecord", tableName, record, (tx, context) -> tx.get(context.key).thenCompose(existing -> {
+      if (existing == null)
+        return CompletableFuture.completedFuture(StatusCode.RECORD_NOT_FOUND);
+
+      Record before = decode(context.table, context.primaryKey, existing);
+      Record updated = new Record(before.getValues());
+      for (Map.Entry<String, Object> entry : record.getValues().entrySet()) {
+        updated.setValue(entry.getKey(), entry.getValue());
+      }
+      tx.set(context.key, encodeValues(context.table, updated));
+      if (context.indexDir != null)
+        updateIndexes(tx, context.table, context.indexDir, context.primaryKey, before, updated);
+      return TableStatistics.update(tx, context.table, context.metaDir, context.key, before, updated)
+              .thenApply(done -> StatusCode.SUCCESS);
+    }));
+  }
+
+  @Override
+  public StatusCode updateRecord(String tableName, Record record) {
+    return updateRecordAsync(tableName, record).join();
+  }
+
+  public CompletableFuture<StatusCode> deleteRecordAsync(String tableName, Object[] primaryKeyValues) {
+    return tableManager.getMetrics().time("deleteRecord", op -> tableManager.runAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture(StatusCode.TABLE_NOT_FOUND);
+
+              Tuple primaryKey = primaryKey(table, primaryKeyValues);
+              if (primaryKey == null)
+                return CompletableFuture.completedFuture(StatusCode.RECORD_PRIMARY_KEY_INVALID);
+
+              return tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir -> {
+                byte[] key = rawDir.pack(primaryKey);
+                return tx.get(key).thenCompose(existing -> {
+                  if (existing == null)
+                    return CompletableFuture.completedFuture(StatusCode.RECORD_NOT_FOUND);
+
+                  tx.clear(key);
+                  Record before = decode(table, primaryKey, existing);
+                  return openIndexDir(tx, tableName, table).thenCompose(indexDir -> {
+                    if (indexDir != null)
+                      updateIndexes(tx, table, indexDir, primaryKey, before, null);
+                    return tableManager.openTableDir(tx, tableName, "meta");
+                  }).thenCompose(metaDir -> TableStatistics.update(tx, table, metaDir, key, before, null))
+                          .thenApply(done -> StatusCode.SUCCESS);
+                });
+              });
+            })));
+  }
+
+  @Override
+  public StatusCode deleteRecord(String tableName, Object[] primaryKeyValues) {
+    return deleteRecordAsync(tableName, primaryKeyValues).join();
+  }
+
+  // reads one batch of a scan in a transaction of its own
+  private CompletableFuture<RecordCursor.Batch> readBatch(String tableName, Tuple begin, boolean exclusive, Tuple end,
+                                                          int limit) {
+    return tableManager.getMetrics().time("scanBatch", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                throw new IllegalStateException("table " + tableName + " does not exist");
+
+              return tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir -> {
+                byte[] beginKey = begin == null ? rawDir.range().begin : rawDir.pack(begin);
+                if (exclusive)
+                  beginKey = ByteArrayUtil.join(beginKey, new byte[]{0});
+                byte[] endKey = end == null ? rawDir.range().end : rawDir.pack(end);
+
+                return tx.getRange(beginKey, endKey, limit, false).thenApply(keyValues -> {
+                  List<Tuple> primaryKeys = new ArrayList<>(keyValues.size());
+                  List<Record> records = new ArrayList<>(keyValues.size());
+                  for (KeyValue kv : keyValues) {
+                    Tuple primaryKey = rawDir.unpack(kv.getKey());
+                    primaryKeys.add(primaryKey);
+                    records.add(decode(table, primaryKey, kv.getValue()));
+                  }
+                  return new RecordCursor.Batch(primaryKeys, records);
+                });
+              });
+            })));
+  }
+
+  // the tuple of leading primary key values, null for none
+  private static Tuple primaryKeyPrefix(Object[] values) {
+    if (values == null || values.length == 0)
+      return null;
+
+    Object[] normalized = new Object[values.length];
+    for (int i = 0; i < values.length; i++) {
+      normalized[i] = Record.normalize(values[i]);
+    }
+    return Tuple.from(normalized);
+  }
+
+  @Override
+  public RecordCursor scan(String tableName, Object[] fromKey, Object[] toKey, int limit) {
+    return new RecordCursor((begin, exclusive, end, batchLimit) -> readBatch(tableName, begin, exclusive, end, batchLimit),
+            SCAN_BATCH_ROWS, primaryKeyPrefix(fromKey), false, primaryKeyPrefix(toKey), limit == 0 ? -1 : limit);
+  }
+
+  @Override
+  public RecordCursor scan(String tableName, byte[] continuation) {
+    return RecordCursor.fromContinuation((begin, exclusive, end, batchLimit) ->
+            readBatch(tableName, begin, exclusive, end, batchLimit), SCAN_BATCH_ROWS, continuation);
+  }
+
+  public CompletableFuture<List<Record>> findRecordsAsync(String tableName, String attributeName, Object value) {
+    return tableManager.getMetrics().time("findRecords", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null || table.getIndexState(attributeName) != TableMetadata.IndexState.READY)
+                return CompletableFuture.completedFuture(null);
+
+              if (!Record.isOfType(value, table.getAttributeType(attributeName)))
+                return CompletableFuture.completedFuture(new ArrayList<>());
+
+              // one range read over the index, then every matching record is read at once
+              Tuple prefix = Tuple.from(attributeName, Record.normalize(value));
+              return tableManager.openTableDir(tx, tableName, "index")
+                      .thenCompose(indexDir -> tx.getRange(indexDir.range(prefix)).thenCompose(entries ->
+                              tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir -> {
+                                List<Tuple> primaryKeys = new ArrayList<>(entries.size());
+                                List<CompletableFuture<byte[]>> values = new ArrayList<>(entries.size());
+                                for (KeyValue entry : entries) {
+                                  Tuple primaryKey = indexDir.unpack(entry.getKey()).popFront().popFront();
+                                  primaryKeys.add(primaryKey);
+                                  values.add(tx.get(rawDir.pack(primaryKey)));
+                                }
+                                return AsyncUtil.whenAll(values).thenApply(read -> {
+                                  List<Record> records = new ArrayList<>(values.size());
+                                  for (int i = 0; i < values.size(); i++) {
+                                    if (values.get(i).join() != null)
+                                      records.add(decode(table, primaryKeys.get(i), values.get(i).join()));
+                                  }
+                                  return records;
+                                });
+                              })));
+            })));
+  }
+
+  @Override
+  public List<Record> findRecords(String tableName, String attributeName, Object value) {
+    return findRecordsAsync(tableName, attributeName, value).join();
+  }
+
+  /**
+   * The aggregates of an INT or DOUBLE attribute: Longs for INT, Doubles for DOUBLE. The minimum and
+   * maximum are null until a value is stored, and only ever widen, so the value of a record since
+   * deleted or updated may still bound them.
+   */
+  public static class Aggregate {
+    public final Number sum;
+    public final Number min;
+    public final Number max;
+
+    Aggregate(Number sum, Number min, Number max) {
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public String toString() {
+      return "sum " + sum + ", min " + min + ", max " + max;
+    }
+  }
+
+  /**
+   * Count a table's records, with one point read of its row count
+   *
+   * @return null if the table does not exist, or was created before row counts were kept and has not
+   * been migrated (see {TableManagerImpl#migrateCatalog})
+   */
+  public CompletableFuture<Long> countRecordsAsync(String tableName) {
+    return tableManager.getMetrics().time("countRecords", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null || table.getCountState() != TableMetadata.IndexState.READY)
+                return CompletableFuture.completedFuture(null);
+
+              return tableManager.openTableDir(tx, tableName, "meta")
+                      .thenCompose(metaDir -> tx.get(TableStatistics.countKey(metaDir)))
+                      .thenApply(TableStatistics::decodeCount);
+            })));
+  }
+
+  public Long countRecords(String tableName) {
+    return countRecordsAsync(tableName).join();
+  }
+
+  /**
+   * Read the sum, minimum and maximum of an attribute's values, with three point reads
+   *
+   * @return null if the table or attribute does not exist or its aggregates are not kept (see
+   * {TableManagerImpl#createAggregate})
+   */
+  public CompletableFuture<Aggregate> aggregateAsync(String tableName, String attributeName) {
+    return tableManager.getMetrics().time("aggregate", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null || table.getAggregateState(attributeName) != TableMetadata.IndexState.READY)
+                return CompletableFuture.completedFuture(null);
+
+              AttributeType type = table.getAttributeType(attributeName);
+              return tableManager.openTableDir(tx, tableName, "meta").thenCompose(metaDir -> {
+                CompletableFuture<byte[]> sum = tx.get(TableStatistics.sumKey(metaDir, attributeName));
+                CompletableFuture<byte[]> min = tx.get(TableStatistics.minKey(metaDir, attributeName));
+                CompletableFuture<byte[]> max = tx.get(TableStatistics.maxKey(metaDir, attributeName));
+                return CompletableFuture.allOf(sum, min, max).thenApply(read ->
+                        new Aggregate(TableStatistics.decodeSum(type, sum.join()),
+                                TableStatistics.decodeBound(type, min.join()), TableStatistics.decodeBound(type, max.join())));
+              });
+            })));
+  }
+
+  public Aggregate aggregate(String tableName, String attributeName) {
+    return aggregateAsync(tableName, attributeName).join();
+  }
+}
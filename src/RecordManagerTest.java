@@ -0,0 +1,272 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class RecordManagerTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"DNo", "SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"DNo", "SSN"};
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl();
+    recordManager = new RecordManagerImpl(tableManager);
+
+    tableManager.dropAllTables();
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+  }
+
+  @After
+  public void close() {
+    tableManager.close();
+  }
+
+  @Test
+  public void insertAndGetRecords() {
+    Record alice = new Record().setValue("DNo", 1).setValue("SSN", 100).setValue("Name", "Alice");
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName, alice));
+    assertEquals(StatusCode.RECORD_ALREADY_EXISTS, recordManager.insertRecord(EmployeeTableName, alice));
+
+    Record expected = new Record().setValue("DNo", 1L).setValue("SSN", 100L).setValue("Name", "Alice");
+    assertEquals(expected, recordManager.getRecord(EmployeeTableName, new Object[]{1, 100}));
+    assertNull(recordManager.getRecord(EmployeeTableName, new Object[]{100, 1}));
+    assertNull(recordManager.getRecord(EmployeeTableName, new Object[]{1}));
+    assertNull(recordManager.getRecord("Department", new Object[]{1, 100}));
+
+    assertEquals(StatusCode.TABLE_NOT_FOUND, recordManager.insertRecord("Department", alice));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("DNo", 1).setValue("SSN", 101).setValue("Manager", "Bob")));
+    assertEquals(StatusCode.ATTRIBUTE_TYPE_MISMATCH, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("DNo", 1).setValue("SSN", 101).setValue("Salary", "high")));
+    assertEquals(StatusCode.RECORD_PRIMARY_KEY_INVALID, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("SSN", 101).setValue("Name", "Bob")));
+  }
+
+  @Test
+  public void updateAndDeleteRecords() {
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.updateRecord(EmployeeTableName,
+        new Record().setValue("DNo", 2).setValue("SSN", 200).setValue("Salary", 10.0)));
+
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("DNo", 2).setValue("SSN", 200).setValue("Name", "Carol")));
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(EmployeeTableName,
+        new Record().setValue("DNo", 2).setValue("SSN", 200).setValue("Salary", 10.5f)));
+
+    Record expected = new Record().setValue("DNo", 2L).setValue("SSN", 200L).setValue("Name", "Carol")
+        .setValue("Salary", 10.5);
+    assertEquals(expected, recordManager.getRecord(EmployeeTableName, new Object[]{2L, 200L}));
+
+    // values of dropped attributes disappear, attributes added later start out null
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Name", AttributeType.INT));
+    expected.setValue("Name", null);
+    assertEquals(expected, recordManager.getRecord(EmployeeTableName, new Object[]{2, 200}));
+
+    assertEquals(StatusCode.RECORD_PRIMARY_KEY_INVALID,
+        recordManager.deleteRecord(EmployeeTableName, new Object[]{2, "200"}));
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(EmployeeTableName, new Object[]{2, 200}));
+    assertEquals(StatusCode.RECORD_NOT_FOUND, recordManager.deleteRecord(EmployeeTableName, new Object[]{2, 200}));
+    assertNull(recordManager.getRecord(EmployeeTableName, new Object[]{2, 200}));
+  }
+
+  @Test
+  public void primaryKeyAttributesAreKeptWhileRecordsExist() {
+    Record alice = new Record().setValue("DNo", 1).setValue("SSN", 100).setValue("Name", "Alice");
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName, alice));
+    assertEquals(StatusCode.ATTRIBUTE_IN_PRIMARY_KEY, tableManager.dropAttribute(EmployeeTableName, "DNo"));
+    assertEquals(StatusCode.ATTRIBUTE_IN_PRIMARY_KEY, tableManager.dropAttribute(EmployeeTableName, "SSN"));
+    assertEquals("Alice", recordManager.getRecord(EmployeeTableName, new Object[]{1, 100}).getValue("Name"));
+
+    // an empty table's primary key may still shrink
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(EmployeeTableName, new Object[]{1, 100}));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "DNo"));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("SSN", 100).setValue("Name", "Alice")));
+    assertEquals("Alice", recordManager.getRecord(EmployeeTableName, new Object[]{100}).getValue("Name"));
+  }
+
+  @Test
+  public void secondaryIndexes() {
+    // enough records to take several backfill transactions
+    List<Record> records = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      records.add(new Record().setValue("DNo", i % 3).setValue("SSN", i).setValue("Name", "Employee" + (i % 100)));
+    }
+    new BulkLoader(tableManager).load(EmployeeTableName, "employees", records.iterator());
+
+    assertNull(recordManager.findRecords(EmployeeTableName, "Name", "Employee7"));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND, tableManager.createIndex(EmployeeTableName, "Manager"));
+    assertEquals(StatusCode.TABLE_NOT_FOUND, tableManager.createIndex("Department", "Name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.INDEX_ALREADY_EXISTS, tableManager.createIndex(EmployeeTableName, "Name"));
+    assertEquals(TableMetadata.IndexState.READY,
+        tableManager.listTables().get(EmployeeTableName).getIndexes().get("Name"));
+
+    List<Record> found = recordManager.findRecords(EmployeeTableName, "Name", "Employee7");
+    assertEquals(25, found.size());
+    assertEquals(new Record().setValue("DNo", 0L).setValue("SSN", 207L).setValue("Name", "Employee7"), found.get(0));
+    assertEquals(0, recordManager.findRecords(EmployeeTableName, "Name", 7).size());
+
+    // writes keep the index in sync
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("DNo", 9).setValue("SSN", 9).setValue("Name", "Dave")));
+    assertEquals(StatusCode.SUCCESS, recordManager.updateRecord(EmployeeTableName,
+        new Record().setValue("DNo", 0).setValue("SSN", 807).setValue("Name", "Dave")));
+    assertEquals(StatusCode.SUCCESS, recordManager.deleteRecord(EmployeeTableName, new Object[]{1, 7}));
+    assertEquals(23, recordManager.findRecords(EmployeeTableName, "Name", "Employee7").size());
+    assertEquals(2, recordManager.findRecords(EmployeeTableName, "Name", "Dave").size());
+
+    assertEquals(StatusCode.SUCCESS, tableManager.dropIndex(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.INDEX_NOT_FOUND, tableManager.dropIndex(EmployeeTableName, "Name"));
+    assertNull(recordManager.findRecords(EmployeeTableName, "Name", "Dave"));
+
+    // dropping the attribute drops its index
+    assertEquals(StatusCode.SUCCESS, tableManager.createIndex(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Name", AttributeType.VARCHAR));
+    assertNull(recordManager.findRecords(EmployeeTableName, "Name", "Dave"));
+    assertTrue(tableManager.listTables().get(EmployeeTableName).getIndexes().isEmpty());
+  }
+
+  @Test
+  public void statisticsFollowRecordWrites() {
+    RecordManagerImpl records = (RecordManagerImpl) recordManager;
+    assertEquals(StatusCode.SUCCESS, tableManager.createAggregate(EmployeeTableName, "Salary"));
+    assertEquals(Long.valueOf(0), records.countRecords(EmployeeTableName));
+    assertEquals(0.0, records.aggregate(EmployeeTableName, "Salary").sum);
+    assertNull(records.aggregate(EmployeeTableName, "Salary").max);
+
+    recordManager.insertRecord(EmployeeTableName, new Record().setValue("DNo", 1).setValue("SSN", 1).setValue("Salary", 10.5));
+    recordManager.insertRecord(EmployeeTableName, new Record().setValue("DNo", 1).setValue("SSN", 2).setValue("Salary", -2.25));
+    recordManager.insertRecord(EmployeeTableName, new Record().setValue("DNo", 2).setValue("SSN", 3));
+    assertEquals(StatusCode.RECORD_ALREADY_EXISTS, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("DNo", 2).setValue("SSN", 3).setValue("Salary", 99.0)));
+    recordManager.updateRecord(EmployeeTableName, new Record().setValue("DNo", 2).setValue("SSN", 3).setValue("Salary", 0.1));
+    recordManager.updateRecord(EmployeeTableName, new Record().setValue("DNo", 1).setValue("SSN", 1).setValue("Salary", 20.0));
+    recordManager.deleteRecord(EmployeeTableName, new Object[]{1, 2});
+
+    assertEquals(Long.valueOf(2), records.countRecords(EmployeeTableName));
+    RecordManagerImpl.Aggregate salary = records.aggregate(EmployeeTableName, "Salary");
+    assertEquals(20.1, salary.sum.doubleValue(), 1e-9);
+    // bounds only widen, the deleted and updated salaries still count
+    assertEquals(-2.25, salary.min);
+    assertEquals(20.0, salary.max);
+
+    // aggregates created on stored records count them in
+    for (int i = 0; i < 2500; i++) {
+      recordManager.insertRecord(EmployeeTableName, new Record().setValue("DNo", 3).setValue("SSN", i - 1000));
+    }
+    assertEquals(StatusCode.SUCCESS, tableManager.createAggregate(EmployeeTableName, "SSN"));
+    assertEquals(StatusCode.AGGREGATE_ALREADY_EXISTS, tableManager.createAggregate(EmployeeTableName, "SSN"));
+    RecordManagerImpl.Aggregate ssn = records.aggregate(EmployeeTableName, "SSN");
+    assertEquals(1L + 3L + (-1000L + 1499L) * 2500 / 2, ssn.sum);
+    assertEquals(-1000L, ssn.min);
+    assertEquals(1499L, ssn.max);
+    assertEquals(Long.valueOf(2502), records.countRecords(EmployeeTableName));
+
+    assertEquals(StatusCode.ATTRIBUTE_TYPE_NOT_SUPPORTED, tableManager.createAggregate(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.ATTRIBUTE_NOT_FOUND, tableManager.createAggregate(EmployeeTableName, "Age"));
+    assertNull(records.aggregate(EmployeeTableName, "Name"));
+    assertNull(records.countRecords("Department"));
+
+    // dropped aggregates start from scratch when created again
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAggregate(EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.AGGREGATE_NOT_FOUND, tableManager.dropAggregate(EmployeeTableName, "Salary"));
+    assertNull(records.aggregate(EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.SUCCESS, tableManager.createAggregate(EmployeeTableName, "Salary"));
+    assertEquals(20.1, records.aggregate(EmployeeTableName, "Salary").sum.doubleValue(), 1e-9);
+    assertEquals(0.1, records.aggregate(EmployeeTableName, "Salary").min);
+  }
+
+  @Test
+  public void scansResumeFromContinuations() {
+    List<Record> records = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      records.add(new Record().setValue("DNo", i % 3).setValue("SSN", i));
+    }
+    new BulkLoader(tableManager).load(EmployeeTableName, "employees", records.iterator());
+
+    RecordCursor cursor = recordManager.scan(EmployeeTableName, null, null, 0);
+    long previousDNo = -1;
+    long previousSSN = -1;
+    int count = 0;
+    while (cursor.hasNext()) {
+      Record record = cursor.next();
+      long dNo = (Long) record.getValue("DNo");
+      long ssn = (Long) record.getValue("SSN");
+      assertTrue(dNo > previousDNo || (dNo == previousDNo && ssn > previousSSN));
+      previousDNo = dNo;
+      previousSSN = ssn;
+      count++;
+    }
+    assertEquals(1200, count);
+    assertNull(cursor.getContinuation());
+
+    // the records of department 1, 250 at a time
+    cursor = recordManager.scan(EmployeeTableName, new Object[]{1}, new Object[]{2}, 250);
+    count = 0;
+    while (cursor.hasNext()) {
+      assertEquals(1L, cursor.next().getValue("DNo"));
+      count++;
+    }
+    assertEquals(250, count);
+    byte[] continuation = cursor.getContinuation();
+    cursor.cancel();
+
+    cursor = recordManager.scan(EmployeeTableName, continuation);
+    assertEquals(new Record().setValue("DNo", 1L).setValue("SSN", 751L), cursor.next());
+    count = 1;
+    while (cursor.hasNext()) {
+      assertEquals(1L, cursor.next().getValue("DNo"));
+      count++;
+    }
+    assertEquals(150, count);
+
+    assertTrue(recordManager.scan(EmployeeTableName, new Object[]{5}, null, 0).onHasNext().join() == false);
+  }
+
+  @Test(timeout = 10000)
+  public void cursorWaitsForBatchesReadOnOtherThreads() {
+    // batches of keys 0 until 25, each completing a little later on another thread, as FoundationDB's do
+    RecordCursor.BatchReader reader = (begin, exclusive, end, limit) -> CompletableFuture.supplyAsync(() -> {
+      List<Tuple> primaryKeys = new ArrayList<>();
+      List<Record> records = new ArrayList<>();
+      long first = begin == null ? 0 : begin.getLong(0) + (exclusive ? 1 : 0);
+      for (long key = first; key < 25 && primaryKeys.size() < limit; key++) {
+        primaryKeys.add(Tuple.from(key));
+        records.add(new Record().setValue("SSN", key));
+      }
+      return new RecordCursor.Batch(primaryKeys, records);
+    }, CompletableFuture.delayedExecutor(5, TimeUnit.MILLISECONDS));
+
+    // next() without hasNext() first
+    RecordCursor cursor = new RecordCursor(reader, 10, null, false, null, -1);
+    for (long key = 0; key < 25; key++)
+      assertEquals(key, cursor.next().getValue("SSN"));
+    try {
+      cursor.next();
+      fail("the cursor is exhausted");
+    } catch (NoSuchElementException e) {
+      // every record was returned
+    }
+    assertNull(cursor.getContinuation());
+  }
+}
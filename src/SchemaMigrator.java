@@ -0,0 +1,190 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * SchemaMigrator rewrites the stored records of a table to its current schema version in the
+ * background: defaults of attributes added since a record was stored are written into it, and
+ * values of dropped attributes are reclaimed. Nothing waits for it, records of any older version
+ * are read as of the current one anyway (see {RecordManagerImpl#decode}).
+ *
+ * Records are rewritten in chunks of chunkRows, one transaction each, at most maxRowsPerSecond.
+ * Writers are never blocked: a record written while its chunk is being rewritten makes the chunk
+ * conflict and be retried. Records already at the current version are only read.
+ *
+ * Every chunk stores how far it got in the table's meta directory with it, so running the migration
+ * again after a crash resumes after the last chunk that committed. A schema change while it runs
+ * makes it start over for the new version.
+ */
+public class SchemaMigrator {
+
+  private final TableManagerImpl tableManager;
+
+  private int chunkRows = 1000;
+  private double maxRowsPerSecond = 0;
+  private Consumer<Progress> progressListener;
+
+  /**
+   * How far a table's records have been rewritten to its current schema version
+   */
+  public static class Progress {
+    public final StatusCode status;
+    public final int schemaVersion;
+    public final long rowsScanned;
+    public final long rowsRewritten;
+    public final boolean done;
+
+    Progress(StatusCode status, int schemaVersion, long rowsScanned, long rowsRewritten, boolean done) {
+      this.status = status;
+      this.schemaVersion = schemaVersion;
+      this.rowsScanned = rowsScanned;
+      this.rowsRewritten = rowsRewritten;
+      this.done = done;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: version %d, %d rows scanned, %d rewritten%s",
+              status, schemaVersion, rowsScanned, rowsRewritten, done ? ", done" : "");
+    }
+  }
+
+  public SchemaMigrator(TableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  public SchemaMigrator setChunkRows(int chunkRows) {
+    this.chunkRows = chunkRows;
+    return this;
+  }
+
+  /**
+   * @param maxRowsPerSecond rows scanned per second at most, 0 for no limit
+   */
+  public SchemaMigrator setMaxRowsPerSecond(double maxRowsPerSecond) {
+    this.maxRowsPerSecond = maxRowsPerSecond;
+    return this;
+  }
+
+  /**
+   * @param progressListener called after every committed chunk, from the thread that committed it
+   */
+  public SchemaMigrator setProgressListener(Consumer<Progress> progressListener) {
+    this.progressListener = progressListener;
+    return this;
+  }
+
+  // the stored progress: (schemaVersion, nextKey, rowsScanned, rowsRewritten), nextKey being null once done
+  private static byte[] progressKey(Subspace metaDir) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.SCHEMA_MIGRATION_TAG));
+  }
+
+  /**
+   * Rewrite a table's records to its current schema version, resuming a migration that was
+   * interrupted
+   *
+   * @return future of the final progress, TABLE_NOT_FOUND if the table does not exist
+   */
+  public CompletableFuture<Progress> migrateAsync(String tableName) {
+    return migrateChunk(tableName);
+  }
+
+  public Progress migrate(String tableName) {
+    return migrateAsync(tableName).join();
+  }
+
+  // rewrites one chunk, then schedules the next one
+  private CompletableFuture<Progress> migrateChunk(String tableName) {
+    long start = System.nanoTime();
+    long[] scanned = new long[1];
+
+    return tableManager.getMetrics().time("migrateSchema", op -> tableManager.runAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture(new Progress(StatusCode.TABLE_NOT_FOUND, 0, 0, 0, true));
+
+              return tableManager.openTableDir(tx, tableName, "meta").thenCompose(metaDir ->
+                      tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir ->
+                              tx.get(progressKey(metaDir)).thenCompose(stored -> {
+                                // progress made for an older version does not count
+                                Tuple progress = stored == null ? null : Tuple.fromBytes(stored);
+                                if (progress != null && progress.getLong(0) != table.getSchemaVersion())
+                                  progress = null;
+                                if (progress != null && progress.get(1) == null)
+                                  return CompletableFuture.completedFuture(new Progress(StatusCode.SUCCESS,
+                                          table.getSchemaVersion(), progress.getLong(2), progress.getLong(3), true));
+
+                                byte[] begin = progress == null ? rawDir.range().begin : progress.getBytes(1);
+                                long rowsScanned = progress == null ? 0 : progress.getLong(2);
+                                long rowsRewritten = progress == null ? 0 : progress.getLong(3);
+                                return tx.getRange(begin, rawDir.range().end, chunkRows, false).thenApply(keyValues -> {
+                                  long rewritten = rewrite(tx, table, rawDir, keyValues);
+                                  scanned[0] = keyValues.size();
+
+                                  // the chunk's last key followed by 0x00 is where the next chunk starts
+                                  byte[] next = keyValues.size() < chunkRows ? null
+                                          : ByteArrayUtil.join(keyValues.get(keyValues.size() - 1).getKey(), new byte[]{0});
+                                  tx.set(progressKey(metaDir), Tuple.from(table.getSchemaVersion(), next,
+                                          rowsScanned + keyValues.size(), rowsRewritten + rewritten).pack());
+                                  return new Progress(StatusCode.SUCCESS, table.getSchemaVersion(),
+                                          rowsScanned + keyValues.size(), rowsRewritten + rewritten, next == null);
+                                });
+                              })));
+            }))).thenCompose(progress -> {
+      if (scanned[0] > 0 && progressListener != null)
+        progressListener.accept(progress);
+      if (progress.done)
+        return CompletableFuture.completedFuture(progress);
+
+      // keep to maxRowsPerSecond by waiting out what is left of the chunk's share of a second
+      long waitNanos = maxRowsPerSecond <= 0 ? 0
+              : (long) (scanned[0] * 1e9 / maxRowsPerSecond) - (System.nanoTime() - start);
+      if (waitNanos <= 0)
+        return migrateChunk(tableName);
+      return CompletableFuture.supplyAsync(() -> null,
+              CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS))
+              .thenCompose(waited -> migrateChunk(tableName));
+    });
+  }
+
+  // rewrites the records of a chunk stored under an older schema version, returns how many
+  private static long rewrite(KeyValueTransaction tx, TableSchema table, Subspace rawDir, List<KeyValue> keyValues) {
+    long rewritten = 0;
+    for (KeyValue kv : keyValues) {
+      if (RecordManagerImpl.schemaVersion(Tuple.fromBytes(kv.getValue())) >= table.getSchemaVersion())
+        continue;
+
+      // the record reads the same before and after, so its index entries stay as they are
+      Record record = RecordManagerImpl.decode(table, rawDir.unpack(kv.getKey()), kv.getValue());
+      tx.set(kv.getKey(), RecordManagerImpl.encodeValues(table, record));
+      rewritten++;
+    }
+    return rewritten;
+  }
+
+  /**
+   * @return how far the records of a table have been rewritten to its current schema version,
+   * TABLE_NOT_FOUND if the table does not exist
+   */
+  public Progress getProgress(String tableName) {
+    return tableManager.readAsync(null, tx -> tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+      if (table == null)
+        return CompletableFuture.completedFuture(new Progress(StatusCode.TABLE_NOT_FOUND, 0, 0, 0, true));
+
+      return tableManager.openTableDir(tx, tableName, "meta").thenCompose(metaDir -> tx.get(progressKey(metaDir)))
+              .thenApply(stored -> {
+                Tuple progress = stored == null ? null : Tuple.fromBytes(stored);
+                if (progress == null || progress.getLong(0) != table.getSchemaVersion())
+                  return new Progress(StatusCode.SUCCESS, table.getSchemaVersion(), 0, 0, false);
+                return new Progress(StatusCode.SUCCESS, table.getSchemaVersion(), progress.getLong(2),
+                        progress.getLong(3), progress.get(1) == null);
+              });
+    })).join();
+  }
+}
@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+public class SchemaMigratorTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"SSN"};
+
+  private TableManagerImpl tableManager;
+  private RecordManager recordManager;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new InMemoryKeyValueStore());
+    recordManager = new RecordManagerImpl(tableManager);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    for (int ssn = 0; ssn < 250; ssn++) {
+      assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+          new Record().setValue("SSN", ssn).setValue("Name", "Employee" + ssn).setValue("Salary", 1.5)));
+    }
+  }
+
+  // the stored values of every record
+  private List<KeyValue> storedRecords() {
+    return tableManager.readAsync(null, tx -> tableManager.openTableDir(tx, EmployeeTableName, "raw")
+        .thenCompose(rawDir -> tx.getRange(rawDir.range()))).join();
+  }
+
+  @Test
+  public void olderRecordsAreReadAsOfTheCurrentVersion() {
+    assertEquals(StatusCode.ATTRIBUTE_TYPE_MISMATCH,
+        tableManager.addAttribute(EmployeeTableName, "Dno", AttributeType.INT, "none"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Dno", AttributeType.INT, 7));
+    assertEquals(StatusCode.SUCCESS, recordManager.insertRecord(EmployeeTableName,
+        new Record().setValue("SSN", 1000).setValue("Name", "New")));
+
+    // records stored before the attribute was added read its default, those stored after do not
+    assertEquals(7L, recordManager.getRecord(EmployeeTableName, new Object[]{3}).getValue("Dno"));
+    assertFalse(recordManager.getRecord(EmployeeTableName, new Object[]{1000}).hasValue("Dno"));
+
+    // values of a dropped attribute do not come back when it is added again
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Salary", AttributeType.DOUBLE));
+    assertFalse(recordManager.getRecord(EmployeeTableName, new Object[]{3}).hasValue("Salary"));
+    assertEquals(7L, recordManager.getRecord(EmployeeTableName, new Object[]{3}).getValue("Dno"));
+  }
+
+  @Test
+  public void migrationIsResumedAfterFailure() {
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Dno", AttributeType.INT, 7));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Salary"));
+
+    // fails after its second chunk has committed
+    int[] chunks = new int[1];
+    try {
+      new SchemaMigrator(tableManager).setChunkRows(50).setProgressListener(progress -> {
+        if (++chunks[0] == 2)
+          throw new IllegalStateException("migration failed");
+      }).migrate(EmployeeTableName);
+      fail("the migration failed");
+    } catch (CompletionException e) {
+      // the chunks before the failure are committed
+    }
+    SchemaMigrator migrator = new SchemaMigrator(tableManager).setChunkRows(50).setMaxRowsPerSecond(10_000);
+    assertEquals(100, migrator.getProgress(EmployeeTableName).rowsRewritten);
+
+    SchemaMigrator.Progress progress = migrator.migrate(EmployeeTableName);
+    assertEquals(StatusCode.SUCCESS, progress.status);
+    assertEquals(250, progress.rowsScanned);
+    assertEquals(250, progress.rowsRewritten);
+    assertTrue(progress.done);
+
+    // defaults are written into the records and the dropped values are gone
+    for (KeyValue kv : storedRecords()) {
+      Tuple values = Tuple.fromBytes(kv.getValue());
+      assertEquals(2L, values.getLong(0));
+      assertTrue(values.getItems().contains("Dno"));
+      assertFalse(values.getItems().contains("Salary"));
+    }
+    assertEquals(new Record().setValue("SSN", 3L).setValue("Name", "Employee3").setValue("Dno", 7L),
+        recordManager.getRecord(EmployeeTableName, new Object[]{3}));
+
+    // nothing is left to do until the schema changes again
+    assertTrue(migrator.getProgress(EmployeeTableName).done);
+    assertEquals(250, migrator.migrate(EmployeeTableName).rowsRewritten);
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Bonus", AttributeType.DOUBLE, 0.5));
+    assertFalse(migrator.getProgress(EmployeeTableName).done);
+    assertEquals(250, migrator.migrate(EmployeeTableName).rowsRewritten);
+    assertEquals(StatusCode.TABLE_NOT_FOUND, migrator.migrate("Department").status);
+  }
+}
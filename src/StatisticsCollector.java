@@ -0,0 +1,689 @@
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StatisticsCollector keeps the statistics planning needs of every table: its estimated size in bytes
+ * and rows, and a histogram and distinct count of every attribute. They are stored in the table's meta
+ * directory, next to its row count (see {TableStatistics}), so reading them takes a few point reads and
+ * one small range read however big the table is.
+ *
+ * Collecting a table samples about sampleRows of its records without reading the rest: they are read
+ * from sampleRanges key ranges, starting at shard boundaries ({KeyValueStore#getBoundaryKeys}) and at
+ * primary keys interpolated between the table's first and last, in chunks of chunkRows, one read-only
+ * transaction each, at most maxRowsPerSecond. A table whose row count shows it fits the sample, or whose
+ * size the store cannot estimate, is read whole. The histograms are equi-depth, of at most
+ * histogramBuckets buckets, drawn from the sample and scaled to the table. Distinct counts are estimated
+ * from it too: values seen once are scaled up by the root of the sampling rate, values seen more often
+ * are counted once (the GEE estimator); they are exact when the sample is the whole table. Bytes are the
+ * store's estimate ({KeyValueStore#getEstimatedRangeSizeBytes}) of the raw directory, rows the table's
+ * row count when it is kept, or else the bytes over the bytes per sampled row.
+ *
+ * start(periodMillis) refreshes them in the background: every period, the tables without statistics,
+ * whose attributes changed, or whose row count or bytes moved by more than staleFraction since they were
+ * collected are collected again, one at a time. Checking an unchanged table costs two point reads and
+ * an estimate.
+ *
+ * Stored under the table's meta directory:
+ * (STATISTICS_TAG, "collected") -> (schemaVersion, estimatedBytes, rows, sampledRows, collectedAtMillis),
+ * (STATISTICS_TAG, "histogram", attributeName) -> (nullRows, distinctValues, (upperBound...), (bucketRows...)).
+ */
+public class StatisticsCollector implements AutoCloseable {
+
+  private final TableManagerImpl tableManager;
+
+  private int sampleRows = 10_000;
+  private int histogramBuckets = 32;
+  private int sampleRanges = 32;
+  private int chunkRows = 1000;
+  private double maxRowsPerSecond = 0;
+  private double staleFraction = 0.2;
+
+  // runs the background refresh, null until started
+  private ScheduledExecutorService background;
+
+  /**
+   * An attribute's values, estimated from a sample
+   */
+  public static class Histogram {
+    public final long nullRows;
+    public final long distinctValues;
+    // the largest value of every bucket, ascending, and the rows each bucket holds. A value is in
+    // one bucket only, however many rows hold it
+    public final List<Object> upperBounds;
+    public final long[] bucketRows;
+
+    Histogram(long nullRows, long distinctValues, List<Object> upperBounds, long[] bucketRows) {
+      this.nullRows = nullRows;
+      this.distinctValues = distinctValues;
+      this.upperBounds = upperBounds;
+      this.bucketRows = bucketRows;
+    }
+
+    public long nonNullRows() {
+      long rows = 0;
+      for (long bucket : bucketRows) {
+        rows += bucket;
+      }
+      return rows;
+    }
+
+    /**
+     * @return the estimated rows with a value below value, of the attribute's type: the buckets whose
+     * values are all below it, and half of the bucket it falls in
+     */
+    public long estimateRowsBelow(Object value) {
+      Object normalized = Record.normalize(value);
+      long rows = 0;
+      for (int i = 0; i < upperBounds.size(); i++) {
+        if (Record.compareValues(upperBounds.get(i), normalized) >= 0)
+          return rows + bucketRows[i] / 2;
+        rows += bucketRows[i];
+      }
+      return rows;
+    }
+
+    /**
+     * @return the estimated rows holding any one value, taking every value to be as frequent
+     */
+    public long estimateRowsEqual() {
+      return distinctValues == 0 ? 0 : nonNullRows() / distinctValues;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d distinct, %d null, bounds %s, rows %s", distinctValues, nullRows, upperBounds,
+              Arrays.toString(bucketRows));
+    }
+  }
+
+  /**
+   * A table's statistics as last collected, with its current row count when that is kept
+   */
+  public static class Statistics {
+    public final long estimatedBytes;
+    public final long estimatedRows;
+    public final long sampledRows;
+    public final long collectedAtMillis;
+    // attributes in declared order, without those added since the statistics were collected
+    public final Map<String, Histogram> histograms;
+
+    Statistics(long estimatedBytes, long estimatedRows, long sampledRows, long collectedAtMillis,
+               Map<String, Histogram> histograms) {
+      this.estimatedBytes = estimatedBytes;
+      this.estimatedRows = estimatedRows;
+      this.sampledRows = sampledRows;
+      this.collectedAtMillis = collectedAtMillis;
+      this.histograms = histograms;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d bytes, %d rows, %d sampled: %s", estimatedBytes, estimatedRows, sampledRows,
+              histograms);
+    }
+  }
+
+  public StatisticsCollector(TableManagerImpl tableManager) {
+    this.tableManager = tableManager;
+  }
+
+  public StatisticsCollector setSampleRows(int sampleRows) {
+    this.sampleRows = sampleRows;
+    return this;
+  }
+
+  public StatisticsCollector setHistogramBuckets(int histogramBuckets) {
+    this.histogramBuckets = histogramBuckets;
+    return this;
+  }
+
+  /**
+   * @param sampleRanges key ranges a table too big for the sample is sampled in
+   */
+  public StatisticsCollector setSampleRanges(int sampleRanges) {
+    this.sampleRanges = sampleRanges;
+    return this;
+  }
+
+  public StatisticsCollector setChunkRows(int chunkRows) {
+    this.chunkRows = chunkRows;
+    return this;
+  }
+
+  /**
+   * @param maxRowsPerSecond rows read per second at most, 0 for no limit
+   */
+  public StatisticsCollector setMaxRowsPerSecond(double maxRowsPerSecond) {
+    this.maxRowsPerSecond = maxRowsPerSecond;
+    return this;
+  }
+
+  /**
+   * @param staleFraction how far a table's row count or bytes may move, as a fraction of what they were
+   * when its statistics were collected, before the background refresh collects them again
+   */
+  public StatisticsCollector setStaleFraction(double staleFraction) {
+    this.staleFraction = staleFraction;
+    return this;
+  }
+
+  private static byte[] collectedKey(Subspace metaDir) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.STATISTICS_TAG, "collected"));
+  }
+
+  private static Subspace histograms(Subspace metaDir) {
+    return metaDir.subspace(Tuple.from(TableManagerImpl.STATISTICS_TAG, "histogram"));
+  }
+
+  // what a collection reads and has read so far
+  private static final class Collection {
+    // the table as it was when the collection started
+    final TableSchema table;
+    final Subspace rawDir;
+    // where the sampled ranges start, ascending, each one ends where the next starts
+    final List<byte[]> starts;
+    // false if the ranges are read to their ends, however many rows they hold
+    final boolean limited;
+    final List<Record> sample = new ArrayList<>();
+    long rowsRead;
+    long bytesRead;
+    // the range being read and the rows left to read of it
+    int range;
+    long rangeRows;
+    // false once a range was left before its end, the rows read are then not the whole table
+    boolean complete = true;
+    // true if the table was created again under the same name meanwhile
+    boolean recreated;
+
+    Collection(TableSchema table, Subspace rawDir, List<byte[]> starts, boolean limited) {
+      this.table = table;
+      this.rawDir = rawDir;
+      this.starts = starts;
+      this.limited = limited;
+    }
+  }
+
+  // a table's stored summary, with the keys of its first and last rows (null if it has none)
+  private static final class Layout {
+    final Stored stored;
+    final byte[] first;
+    final byte[] last;
+
+    Layout(Stored stored, byte[] first, byte[] last) {
+      this.stored = stored;
+      this.first = first;
+      this.last = last;
+    }
+  }
+
+  // the rows of one chunk, and the table they were read from
+  private static final class Chunk {
+    final TableSchema table;
+    final Subspace rawDir;
+    final List<KeyValue> keyValues;
+
+    Chunk(TableSchema table, Subspace rawDir, List<KeyValue> keyValues) {
+      this.table = table;
+      this.rawDir = rawDir;
+      this.keyValues = keyValues;
+    }
+  }
+
+  /**
+   * Collect a table's statistics, replacing those it had
+   *
+   * @return future of SUCCESS, TABLE_NOT_FOUND if the table does not exist
+   */
+  public CompletableFuture<StatusCode> collectAsync(String tableName) {
+    return tableManager.getMetrics().time("collectStatistics", op -> tableManager.readAsync(op, tx ->
+            readStored(tx, tableName).thenCompose(stored -> {
+              if (stored == null)
+                return CompletableFuture.completedFuture((Layout) null);
+
+              Range range = stored.rawDir.range();
+              return tx.getRange(range.begin, range.end, 1, false).thenCombine(
+                      tx.getRange(range.begin, range.end, 1, true), (first, last) -> new Layout(stored,
+                              first.isEmpty() ? null : first.get(0).getKey(), last.isEmpty() ? null : last.get(0).getKey()));
+            }))).thenCompose(layout -> {
+      if (layout == null)
+        return CompletableFuture.completedFuture(StatusCode.TABLE_NOT_FOUND);
+
+      Range range = layout.stored.rawDir.range();
+      return tableManager.getStore().getEstimatedRangeSizeBytes(range.begin, range.end).thenCompose(estimate ->
+              plan(layout, estimate).thenCompose(collection ->
+                      collectChunk(tableName, collection, nextRange(collection)).thenCompose(found -> {
+                        if (!found)
+                          return CompletableFuture.completedFuture(StatusCode.TABLE_NOT_FOUND);
+                        if (collection.recreated)
+                          return collectAsync(tableName);
+
+                        // rows read are the table's when every range was read to its end, or else the
+                        // live count, or the bytes over the bytes per row read
+                        long rows = collection.complete ? collection.rowsRead : layout.stored.rows >= 0
+                                ? layout.stored.rows : Math.round((double) estimate * collection.rowsRead / collection.bytesRead);
+                        long bytes = estimate >= 0 ? estimate : collection.complete ? collection.bytesRead
+                                : Math.round((double) rows * collection.bytesRead / collection.rowsRead);
+                        return store(tableName, collection, rows, bytes);
+                      })));
+    });
+  }
+
+  public StatusCode collect(String tableName) {
+    return collectAsync(tableName).join();
+  }
+
+  // plans a collection: tables known to fit the sample, and tables whose size cannot be told without
+  // reading them, are read whole. Bigger ones are sampled in sampleRanges ranges starting at the first
+  // row, at shard boundaries (evenly picked if there are more) and at primary keys interpolated
+  // between the first and last rows, the same number of rows from each one
+  private CompletableFuture<Collection> plan(Layout layout, long estimatedBytes) {
+    Stored stored = layout.stored;
+    byte[] first = layout.first;
+    byte[] last = layout.last;
+    List<byte[]> starts = new ArrayList<>();
+    if (first == null)
+      return CompletableFuture.completedFuture(new Collection(stored.table, stored.rawDir, starts, false));
+
+    starts.add(first);
+    if (stored.rows >= 0 ? stored.rows <= sampleRows : estimatedBytes < 0)
+      return CompletableFuture.completedFuture(new Collection(stored.table, stored.rawDir, starts, false));
+
+    return tableManager.getStore().getBoundaryKeys(first, last).thenApply(boundaries -> {
+      int picked = Math.min(boundaries.size(), sampleRanges - 1);
+      for (int i = 0; i < picked; i++) {
+        starts.add(boundaries.get((int) ((long) i * boundaries.size() / picked)));
+      }
+
+      // one key in each of as many equal slices of the first attribute's values, so that repeated
+      // collections do not sample the same rows
+      Object from = stored.rawDir.unpack(first).get(0);
+      Object to = stored.rawDir.unpack(last).get(0);
+      int interpolated = sampleRanges - 1 - picked;
+      for (int i = 0; i < interpolated; i++) {
+        Object value = interpolate(from, to, (i + ThreadLocalRandom.current().nextDouble()) / interpolated);
+        if (value != null)
+          starts.add(stored.rawDir.pack(Tuple.from(value)));
+      }
+
+      TreeSet<byte[]> sorted = new TreeSet<>(ByteArrayUtil::compareUnsigned);
+      for (byte[] start : starts) {
+        if (ByteArrayUtil.compareUnsigned(start, first) >= 0)
+          sorted.add(start);
+      }
+      return new Collection(stored.table, stored.rawDir, new ArrayList<>(sorted), true);
+    });
+  }
+
+  // the value a fraction of the way from a to b, of one attribute type. Strings are interpolated at
+  // the first code point they differ in. Null if there is no such value
+  private static Object interpolate(Object a, Object b, double fraction) {
+    if (a instanceof Long && b instanceof Long) {
+      long from = (Long) a;
+      return (long) (from + ((double) (Long) b - from) * fraction);
+    }
+    if (a instanceof Double && b instanceof Double) {
+      double value = (Double) a + ((Double) b - (Double) a) * fraction;
+      return Double.isFinite(value) ? value : null;
+    }
+    if (a instanceof String && b instanceof String) {
+      String s = (String) a;
+      String t = (String) b;
+      int i = 0;
+      while (i < s.length() && i < t.length() && s.codePointAt(i) == t.codePointAt(i)) {
+        i += Character.charCount(s.codePointAt(i));
+      }
+      if (i == t.length())
+        return null;
+      int from = i < s.length() ? s.codePointAt(i) : 0;
+      int codePoint = from + (int) ((t.codePointAt(i) - from) * fraction);
+      if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)
+        return null;
+      return s.substring(0, i) + new String(Character.toChars(codePoint));
+    }
+    return null;
+  }
+
+  // where the range after the one read so far starts, null if there is none or no rows are left to
+  // sample. The rows left are shared by the ranges left, those a short range leaves go to the next ones
+  private byte[] nextRange(Collection collection) {
+    int rangesLeft = collection.starts.size() - collection.range;
+    if (rangesLeft == 0)
+      return null;
+
+    collection.rangeRows = collection.limited
+            ? (sampleRows - collection.rowsRead + rangesLeft - 1) / rangesLeft : Long.MAX_VALUE;
+    if (collection.rangeRows <= 0) {
+      collection.complete = false;
+      return null;
+    }
+    return collection.starts.get(collection.range);
+  }
+
+  // samples one chunk of the range being read from begin, then schedules the next one. Completes with
+  // false if the table does not exist
+  private CompletableFuture<Boolean> collectChunk(String tableName, Collection collection, byte[] begin) {
+    if (begin == null)
+      return CompletableFuture.completedFuture(true);
+
+    int limit = (int) Math.min(chunkRows, collection.rangeRows);
+    byte[] end = collection.range + 1 < collection.starts.size() ? collection.starts.get(collection.range + 1)
+            : collection.rawDir.range().end;
+
+    long start = System.nanoTime();
+    return tableManager.getMetrics().time("collectStatistics", op -> tableManager.readAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+              if (table == null)
+                return CompletableFuture.completedFuture((Chunk) null);
+
+              return tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir ->
+                      tx.getRange(begin, end, limit, false).thenApply(keyValues -> new Chunk(table, rawDir, keyValues)));
+            }))).thenCompose(chunk -> {
+      if (chunk == null)
+        return CompletableFuture.completedFuture(false);
+
+      // a table created again under the same name meanwhile is collected again from its start
+      if (!Arrays.equals(collection.rawDir.getKey(), chunk.rawDir.getKey())) {
+        collection.recreated = true;
+        return CompletableFuture.completedFuture(true);
+      }
+
+      sample(collection, chunk);
+      collection.rangeRows -= chunk.keyValues.size();
+      byte[] next;
+      if (chunk.keyValues.size() == limit && collection.rangeRows > 0) {
+        // the chunk's last key followed by 0x00 is where the next chunk starts
+        next = ByteArrayUtil.join(chunk.keyValues.get(chunk.keyValues.size() - 1).getKey(), new byte[]{0});
+      } else {
+        if (chunk.keyValues.size() == limit)
+          collection.complete = false;
+        collection.range++;
+        next = nextRange(collection);
+      }
+
+      // keep to maxRowsPerSecond by waiting out what is left of the chunk's share of a second
+      long waitNanos = maxRowsPerSecond <= 0 || next == null ? 0
+              : (long) (chunk.keyValues.size() * 1e9 / maxRowsPerSecond) - (System.nanoTime() - start);
+      if (waitNanos <= 0)
+        return collectChunk(tableName, collection, next);
+      return CompletableFuture.supplyAsync(() -> null,
+              CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS))
+              .thenCompose(waited -> collectChunk(tableName, collection, next));
+    });
+  }
+
+  // adds a chunk's rows to the sample, each row read so far is in it with the same chance (reservoir
+  // sampling). Only the rows that make it into the sample are decoded
+  private void sample(Collection collection, Chunk chunk) {
+    for (KeyValue kv : chunk.keyValues) {
+      collection.rowsRead++;
+      collection.bytesRead += kv.getKey().length + kv.getValue().length;
+
+      int slot = collection.sample.size() < sampleRows ? collection.sample.size()
+              : (int) Math.min(ThreadLocalRandom.current().nextLong(collection.rowsRead), sampleRows);
+      if (slot >= sampleRows)
+        continue;
+
+      Record record = RecordManagerImpl.decode(chunk.table, chunk.rawDir.unpack(kv.getKey()), kv.getValue());
+      if (slot == collection.sample.size())
+        collection.sample.add(record);
+      else
+        collection.sample.set(slot, record);
+    }
+  }
+
+  // stores what a collection found in one transaction, replacing the statistics the table had
+  private CompletableFuture<StatusCode> store(String tableName, Collection collection, long rows,
+                                              long estimatedBytes) {
+    TableSchema table = collection.table;
+    List<Histogram> histograms = new ArrayList<>(table.getAttributeCount());
+    for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+      histograms.add(histogram(table.getAttributeName(ordinal), collection.sample, rows));
+    }
+
+    return tableManager.getMetrics().time("storeStatistics", op -> tableManager.runAsync(op, tx ->
+            tableManager.resolveTable(tx, tableName).thenCompose(current -> {
+              if (current == null)
+                return CompletableFuture.completedFuture(StatusCode.TABLE_NOT_FOUND);
+
+              return tableManager.openTableDir(tx, tableName, "meta").thenApply(metaDir -> {
+                tx.clear(histograms(metaDir).range());
+                tx.set(collectedKey(metaDir), Tuple.from(table.getSchemaVersion(), estimatedBytes, rows,
+                        collection.sample.size(), System.currentTimeMillis()).pack());
+                for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+                  Histogram histogram = histograms.get(ordinal);
+                  List<Object> bucketRows = new ArrayList<>(histogram.bucketRows.length);
+                  for (long bucket : histogram.bucketRows) {
+                    bucketRows.add(bucket);
+                  }
+                  tx.set(histograms(metaDir).pack(Tuple.from(table.getAttributeName(ordinal))),
+                          Tuple.from(histogram.nullRows, histogram.distinctValues, Tuple.fromList(histogram.upperBounds),
+                                  Tuple.fromList(bucketRows)).pack());
+                }
+                return StatusCode.SUCCESS;
+              });
+            })));
+  }
+
+  // the histogram of an attribute's values in a sample of rows rows
+  private Histogram histogram(String attributeName, List<Record> sample, long rows) {
+    List<Object> values = new ArrayList<>(sample.size());
+    for (Record record : sample) {
+      Object value = Record.normalize(record.getValue(attributeName));
+      if (value != null)
+        values.add(value);
+    }
+    values.sort(Record::compareValues);
+    double scale = sample.isEmpty() ? 0 : (double) rows / sample.size();
+
+    // equi-depth buckets, each one ending after the last copy of its upper bound
+    List<Object> upperBounds = new ArrayList<>();
+    List<Long> bucketRows = new ArrayList<>();
+    int buckets = Math.min(histogramBuckets, values.size());
+    int taken = 0;
+    for (int i = 1; i <= buckets; i++) {
+      int end = (int) ((long) i * values.size() / buckets);
+      while (end < values.size() && Record.compareValues(values.get(end), values.get(end - 1)) == 0) {
+        end++;
+      }
+      if (end <= taken)
+        continue;
+      upperBounds.add(values.get(end - 1));
+      bucketRows.add(Math.round((end - taken) * scale));
+      taken = end;
+    }
+
+    int distinct = 0;
+    int seenOnce = 0;
+    for (int i = 0; i < values.size(); ) {
+      int j = i + 1;
+      while (j < values.size() && Record.compareValues(values.get(j), values.get(i)) == 0) {
+        j++;
+      }
+      distinct++;
+      if (j - i == 1)
+        seenOnce++;
+      i = j;
+    }
+    long distinctValues = sample.size() >= rows ? distinct : Math.round(Math.sqrt(scale) * seenOnce + distinct - seenOnce);
+
+    long[] rowsPerBucket = new long[bucketRows.size()];
+    for (int i = 0; i < rowsPerBucket.length; i++) {
+      rowsPerBucket[i] = bucketRows.get(i);
+    }
+    return new Histogram(Math.round((sample.size() - values.size()) * scale), distinctValues, upperBounds, rowsPerBucket);
+  }
+
+  // a table's stored summary, with its live row count (-1 if that is not kept) and directories
+  private static final class Stored {
+    final TableSchema table;
+    final Subspace metaDir;
+    final Subspace rawDir;
+    // null if the table's statistics were never collected
+    final Tuple collected;
+    final long rows;
+
+    Stored(TableSchema table, Subspace metaDir, Subspace rawDir, Tuple collected, long rows) {
+      this.table = table;
+      this.metaDir = metaDir;
+      this.rawDir = rawDir;
+      this.collected = collected;
+      this.rows = rows;
+    }
+  }
+
+  // reads a table's stored summary in tx, completes with null if the table does not exist
+  private CompletableFuture<Stored> readStored(KeyValueTransaction tx, String tableName) {
+    return tableManager.resolveTable(tx, tableName).thenCompose(table -> {
+      if (table == null)
+        return CompletableFuture.completedFuture(null);
+
+      boolean counted = table.getCountState() == TableMetadata.IndexState.READY;
+      return tableManager.openTableDir(tx, tableName, "meta").thenCompose(metaDir ->
+              tableManager.openTableDir(tx, tableName, "raw").thenCompose(rawDir -> {
+                CompletableFuture<byte[]> collected = tx.get(collectedKey(metaDir));
+                CompletableFuture<byte[]> count = counted ? tx.get(TableStatistics.countKey(metaDir))
+                        : CompletableFuture.completedFuture(null);
+                return collected.thenCombine(count, (summary, rows) -> new Stored(table, metaDir, rawDir,
+                        summary == null ? null : Tuple.fromBytes(summary), counted ? TableStatistics.decodeCount(rows) : -1));
+              }));
+    });
+  }
+
+  /**
+   * Read a table's statistics as last collected, without reading its records
+   *
+   * @return future of the statistics, null if the table does not exist or they were never collected
+   */
+  public CompletableFuture<Statistics> getStatisticsAsync(String tableName) {
+    return tableManager.getMetrics().time("getStatistics", op -> tableManager.readAsync(op, tx ->
+            readStored(tx, tableName).thenCompose(stored -> {
+              if (stored == null || stored.collected == null)
+                return CompletableFuture.completedFuture(null);
+
+              Subspace histograms = histograms(stored.metaDir);
+              return tx.getRange(histograms.range()).thenApply(keyValues -> {
+                Map<String, Tuple> byName = new HashMap<>();
+                for (KeyValue kv : keyValues) {
+                  byName.put(histograms.unpack(kv.getKey()).getString(0), Tuple.fromBytes(kv.getValue()));
+                }
+
+                // attributes added since (or dropped and added again) have no histogram yet
+                TableSchema table = stored.table;
+                Tuple collected = stored.collected;
+                Map<String, Histogram> byAttribute = new LinkedHashMap<>();
+                for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+                  Tuple histogram = byName.get(table.getAttributeName(ordinal));
+                  if (histogram == null || table.getSinceVersion(ordinal) > collected.getLong(0))
+                    continue;
+
+                  Tuple bucketRows = histogram.getNestedTuple(3);
+                  long[] rows = new long[bucketRows.size()];
+                  for (int i = 0; i < rows.length; i++) {
+                    rows[i] = bucketRows.getLong(i);
+                  }
+                  byAttribute.put(table.getAttributeName(ordinal), new Histogram(histogram.getLong(0),
+                          histogram.getLong(1), histogram.getNestedTuple(2).getItems(), rows));
+                }
+                return new Statistics(collected.getLong(1), stored.rows >= 0 ? stored.rows : collected.getLong(2),
+                        collected.getLong(3), collected.getLong(4), byAttribute);
+              });
+            })));
+  }
+
+  public Statistics getStatistics(String tableName) {
+    return getStatisticsAsync(tableName).join();
+  }
+
+  /**
+   * @return future of true if a table has no statistics, its attributes changed since they were
+   * collected, or its row count or bytes moved by more than staleFraction. False if it does not exist
+   */
+  public CompletableFuture<Boolean> isStaleAsync(String tableName) {
+    return tableManager.readAsync(null, tx -> readStored(tx, tableName)).thenCompose(stored -> {
+      if (stored == null)
+        return CompletableFuture.completedFuture(false);
+      if (stored.collected == null || stored.collected.getLong(0) != stored.table.getSchemaVersion())
+        return CompletableFuture.completedFuture(true);
+      if (stored.rows >= 0 && moved(stored.collected.getLong(2), stored.rows))
+        return CompletableFuture.completedFuture(true);
+
+      return tableManager.getStore().getEstimatedRangeSizeBytes(stored.rawDir.range().begin, stored.rawDir.range().end)
+              .thenApply(bytes -> bytes >= 0 && moved(stored.collected.getLong(1), bytes));
+    });
+  }
+
+  private boolean moved(long collected, long now) {
+    return Math.abs(now - collected) > staleFraction * Math.max(collected, 1);
+  }
+
+  /**
+   * Collect the statistics of every table whose are stale (see isStaleAsync), one table at a time
+   *
+   * @return the number of tables collected
+   */
+  public int collectStale() {
+    int collected = 0;
+    String startAfter = null;
+    List<String> tableNames;
+    do {
+      tableNames = tableManager.listTableNames(startAfter, 1000);
+      for (String tableName : tableNames) {
+        if (isStaleAsync(tableName).join() && collectAsync(tableName).join() == StatusCode.SUCCESS)
+          collected++;
+      }
+      if (!tableNames.isEmpty())
+        startAfter = tableNames.get(tableNames.size() - 1);
+    } while (tableNames.size() == 1000);
+    return collected;
+  }
+
+  /**
+   * Collect stale statistics in the background, on a thread of its own, periodMillis after the
+   * previous round finished. Stopped by close()
+   */
+  public synchronized StatisticsCollector start(long periodMillis) {
+    if (background != null)
+      return this;
+
+    background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "statistics-collector");
+      thread.setDaemon(true);
+      return thread;
+    });
+    background.scheduleWithFixedDelay(() -> {
+      try {
+        collectStale();
+      } catch (RuntimeException e) {
+        System.out.println("ERROR: statistics not collected: " + e);
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Stop the background refresh, a round in progress is interrupted
+   */
+  @Override
+  public synchronized void close() {
+    if (background != null) {
+      background.shutdownNow();
+      background = null;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+public class StatisticsCollectorTest {
+  public static String EmployeeTableName = "Employee";
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary"};
+  public static AttributeType[] EmployeeTableAttributeTypes =
+      new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR, AttributeType.DOUBLE};
+  public static String[] EmployeeTablePKAttributes = new String[]{"SSN"};
+
+  private static final int ROWS = 5000;
+
+  private TableManagerImpl tableManager;
+  private RecordManagerImpl recordManager;
+  private StatisticsCollector collector;
+
+  @Before
+  public void init() {
+    tableManager = new TableManagerImpl(new InMemoryKeyValueStore());
+    recordManager = new RecordManagerImpl(tableManager);
+    collector = new StatisticsCollector(tableManager);
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    new BulkLoader(tableManager).load(EmployeeTableName, "employees", new Iterator<Record>() {
+      int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < ROWS;
+      }
+
+      @Override
+      public Record next() {
+        int ssn = next++;
+        Record record = new Record().setValue("SSN", ssn).setValue("Name", "Employee" + (ssn % 100));
+        return ssn % 10 == 0 ? record : record.setValue("Salary", (double) ssn);
+      }
+    });
+  }
+
+  @After
+  public void shutDown() {
+    collector.close();
+  }
+
+  @Test
+  public void collectsSizesAndHistograms() {
+    assertNull(collector.getStatistics(EmployeeTableName));
+    assertEquals(StatusCode.SUCCESS, collector.collect(EmployeeTableName));
+
+    // the sample is the whole table, so every figure is exact
+    StatisticsCollector.Statistics statistics = collector.getStatistics(EmployeeTableName);
+    assertTrue(statistics.estimatedBytes > ROWS * 10);
+    assertEquals(ROWS, statistics.estimatedRows);
+    assertEquals(ROWS, statistics.sampledRows);
+    assertEquals(3, statistics.histograms.size());
+
+    StatisticsCollector.Histogram ssn = statistics.histograms.get("SSN");
+    assertEquals(ROWS, ssn.distinctValues);
+    assertEquals(0, ssn.nullRows);
+    assertEquals(ROWS, ssn.nonNullRows());
+    assertEquals(32, ssn.upperBounds.size());
+    assertEquals((long) ROWS - 1, ssn.upperBounds.get(31));
+    assertEquals(1, ssn.estimateRowsEqual());
+    assertTrue(Math.abs(ssn.estimateRowsBelow(2500) - 2500) <= ROWS / 32);
+
+    StatisticsCollector.Histogram salary = statistics.histograms.get("Salary");
+    assertEquals(ROWS / 10, salary.nullRows);
+    assertEquals(ROWS - ROWS / 10, salary.distinctValues);
+    assertEquals(ROWS - ROWS / 10, salary.estimateRowsBelow(1e9));
+
+    // equal values are never split over buckets
+    StatisticsCollector.Histogram name = statistics.histograms.get("Name");
+    assertEquals(100, name.distinctValues);
+    assertEquals(ROWS / 100, name.estimateRowsEqual());
+    for (long rows : name.bucketRows)
+      assertEquals(0, rows % (ROWS / 100));
+
+    assertEquals(StatusCode.TABLE_NOT_FOUND, collector.collect("Missing"));
+    assertNull(collector.getStatistics("Missing"));
+  }
+
+  @Test
+  public void samplesAreScaledToTheTable() {
+    tableManager.getMetrics().reset();
+    collector.setSampleRows(500).setChunkRows(300).collect(EmployeeTableName);
+
+    // one read for the first and last rows, then one chunk of each of the 32 ranges at most
+    OperationMetrics.Snapshot collecting = tableManager.getMetrics().snapshot().get("collectStatistics");
+    StatisticsCollector.Statistics statistics = collector.getStatistics(EmployeeTableName);
+    assertTrue(collecting.toString(), collecting.calls <= 33);
+    assertTrue(collecting.toString(), collecting.bytesRead < statistics.estimatedBytes / 4);
+
+    assertEquals(ROWS, statistics.estimatedRows);
+    assertTrue(String.valueOf(statistics.sampledRows), statistics.sampledRows > 400 && statistics.sampledRows <= 500);
+    StatisticsCollector.Histogram ssn = statistics.histograms.get("SSN");
+    assertTrue(Math.abs(ssn.nonNullRows() - ROWS) <= 32);
+    assertTrue(ssn.toString(), Math.abs(ssn.estimateRowsBelow(2500) - 2500) <= ROWS / 5);
+
+    // most names are sampled more than once, so few are scaled up
+    long names = statistics.histograms.get("Name").distinctValues;
+    assertTrue(String.valueOf(names), names >= 90 && names <= 150);
+  }
+
+  @Test
+  public void staleStatisticsAreCollectedAgain() throws Exception {
+    assertTrue(collector.isStaleAsync(EmployeeTableName).join());
+    assertEquals(1, collector.collectStale());
+    assertEquals(0, collector.collectStale());
+
+    // a few writes keep the statistics, the row count is read live
+    for (int ssn = ROWS; ssn < ROWS + 100; ssn++)
+      recordManager.insertRecord(EmployeeTableName, new Record().setValue("SSN", ssn));
+    assertFalse(collector.isStaleAsync(EmployeeTableName).join());
+    assertEquals(ROWS + 100, collector.getStatistics(EmployeeTableName).estimatedRows);
+
+    for (int ssn = ROWS + 100; ssn < ROWS + 1500; ssn++)
+      recordManager.insertRecord(EmployeeTableName, new Record().setValue("SSN", ssn));
+    assertTrue(collector.isStaleAsync(EmployeeTableName).join());
+    assertEquals(1, collector.collectStale());
+    assertEquals(ROWS + 1500, collector.getStatistics(EmployeeTableName).histograms.get("SSN").distinctValues);
+
+    // attributes added since have no histogram until the background refresh collects one
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(EmployeeTableName, "Name", AttributeType.INT, 7L));
+    assertFalse(collector.getStatistics(EmployeeTableName).histograms.containsKey("Name"));
+
+    collector.start(10);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!collector.getStatistics(EmployeeTableName).histograms.containsKey("Name")
+        && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    StatisticsCollector.Histogram name = collector.getStatistics(EmployeeTableName).histograms.get("Name");
+    assertEquals(1, name.distinctValues);
+    assertEquals(7L, name.upperBounds.get(0));
+  }
+}
@@ -1,5 +1,5 @@
 /**
- * StatusCode defines the status code that may returns by the {TableManager}
+ * StatusCode defines the status code that may returns by the {TableManager} and {RecordManager}
  */
 public enum StatusCode {
 
@@ -11,6 +11,15 @@ public enum StatusCode {
   ATTRIBUTE_TYPE_NOT_SUPPORTED,
   TABLE_NOT_FOUND,
   ATTRIBUTE_ALREADY_EXISTS,
-  ATTRIBUTE_NOT_FOUND
+  ATTRIBUTE_NOT_FOUND,
+  ATTRIBUTE_TYPE_MISMATCH,
+  ATTRIBUTE_IN_PRIMARY_KEY,
+  RECORD_ALREADY_EXISTS,
+  RECORD_NOT_FOUND,
+  RECORD_PRIMARY_KEY_INVALID,
+  INDEX_ALREADY_EXISTS,
+  INDEX_NOT_FOUND,
+  AGGREGATE_ALREADY_EXISTS,
+  AGGREGATE_NOT_FOUND
 
 }
@@ -0,0 +1,35 @@
+/**
+ * TableDefinition holds the arguments of one {TableManager#createTable} call, so that many
+ * tables can be created by a single {TableManager#createTables} call.
+ */
+public class TableDefinition {
+
+  private String tableName;
+  private String[] attributeNames;
+  private AttributeType[] attributeTypes;
+  private String[] primaryKeyAttributeNames;
+
+  public TableDefinition(String tableName, String[] attributeNames, AttributeType[] attributeTypes,
+                         String[] primaryKeyAttributeNames) {
+    this.tableName = tableName;
+    this.attributeNames = attributeNames;
+    this.attributeTypes = attributeTypes;
+    this.primaryKeyAttributeNames = primaryKeyAttributeNames;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  public String[] getAttributeNames() {
+    return attributeNames;
+  }
+
+  public AttributeType[] getAttributeTypes() {
+    return attributeTypes;
+  }
+
+  public String[] getPrimaryKeyAttributeNames() {
+    return primaryKeyAttributeNames;
+  }
+}
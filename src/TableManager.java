@@ -1,4 +1,7 @@
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * TableManager defines the interfaces that need to be implemented to support the table
@@ -25,6 +28,18 @@ public interface TableManager {
    */
   public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeTypes, String[] primaryKeyAttributeNames);
 
+  /**
+   * Create many tables at once. Every definition is validated before anything is written, and the
+   * tables are packed into as few transactions as FDB's size limits allow.
+   *
+   * Each definition gets the StatusCode createTable would return for it. A name that appears more
+   * than once in the batch is created once, the later definitions get TABLE_ALREADY_EXISTS.
+   *
+   * @param definitions the tables to create
+   * @return status codes, in the same order as definitions
+   */
+  public List<StatusCode> createTables(List<TableDefinition> definitions);
+
 
   /**
    * Delete a table by its name
@@ -44,6 +59,25 @@ public interface TableManager {
    */
   public HashMap<String, TableMetadata> listTables();
 
+  /**
+   * List one page of the tables in the database, ordered by name. Only the page is read, so the
+   * cost is proportional to limit rather than to the number of tables.
+   *
+   * @param startAfter the page starts with the first table after this name, null for the first page
+   * @param limit max number of tables the page covers
+   * @return the page, its continuation is the startAfter of the next page
+   */
+  public TablePage listTables(String startAfter, int limit);
+
+  /**
+   * List the names of one page of tables, ordered by name. No metadata is read.
+   *
+   * @param startAfter the page starts with the first table after this name, null for the first page
+   * @param limit max number of names
+   * @return the names, fewer than limit on the last page
+   */
+  public List<String> listTableNames(String startAfter, int limit);
+
   /**
    * Add a new attribute to a table
    *
@@ -59,12 +93,43 @@ public interface TableManager {
    */
   public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType);
 
+  /**
+   * Add a new attribute to a table, which records stored before reads as defaultValue. Stored
+   * records are not rewritten, see {SchemaMigrator}
+   *
+   * ERROR Checking, besides those of addAttribute:
+   * - defaultValue is not of attributeType --> ATTRIBUTE_TYPE_MISMATCH
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributeName the name of the attribute to be added
+   * @param attributeType the type of the attribute to be added
+   * @param defaultValue the value of the attribute in records stored before, null for none
+   * @return status code
+   */
+  public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType,
+                                 Object defaultValue);
+
+  /**
+   * Add many new attributes to a table at once
+   *
+   * ERROR Checking, per attribute:
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - attributeName already exists in the table --> ATTRIBUTE_ALREADY_EXISTS
+   * - attributeType is not supported --> ATTRIBUTE_TYPE_NOT_SUPPORTED
+   *
+   * @param tableName the name of the table to be altered
+   * @param attributes map from name to type of the attributes to be added
+   * @return map from attribute name to its status code, in the iteration order of attributes
+   */
+  public LinkedHashMap<String, StatusCode> addAttributes(String tableName, Map<String, AttributeType> attributes);
+
   /**
    * Drop an existing attribute in a table
    *
    * ERROR checking and the StatusCode that should return
    * - tableName does not exist --> TABLE_NOT_FOUND
    * - attributeName does not exist --> ATTRIBUTE_NOT_FOUND
+   * - attributeName is part of the primary key and the table has records --> ATTRIBUTE_IN_PRIMARY_KEY
    *
    * @param tableName the name of the table to be altered
    * @param attributeName the name of the attribute to be dropped
@@ -72,6 +137,36 @@ public interface TableManager {
    */
   public StatusCode dropAttribute(String tableName, String attributeName);
 
+  /**
+   * Create a secondary index on an attribute. Records written from now on maintain it, existing
+   * records are backfilled before this returns and the index is used for lookups from then on.
+   * Calling it again for an index whose backfill was interrupted resumes building it.
+   * Dropping the attribute drops its index too.
+   *
+   * ERROR checking and the StatusCode that should return
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - attributeName does not exist --> ATTRIBUTE_NOT_FOUND
+   * - the attribute is already indexed --> INDEX_ALREADY_EXISTS
+   *
+   * @param tableName the name of the table
+   * @param attributeName the name of the attribute to index
+   * @return status code
+   */
+  public StatusCode createIndex(String tableName, String attributeName);
+
+  /**
+   * Drop the secondary index of an attribute
+   *
+   * ERROR checking and the StatusCode that should return
+   * - tableName does not exist --> TABLE_NOT_FOUND
+   * - the attribute is not indexed --> INDEX_NOT_FOUND
+   *
+   * @param tableName the name of the table
+   * @param attributeName the name of the indexed attribute
+   * @return status code
+   */
+  public StatusCode dropIndex(String tableName, String attributeName);
+
   /**
    * Drop all tables in the database
    * @return status code
@@ -0,0 +1,90 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * TableManagerFactory makes {TableManagerImpl}s that share one store (for FoundationDB, one Database
+ * and its network thread), one resolved root directory, one catalog cache and one set of metrics.
+ * The root directory is opened once, by the factory, so making a table manager costs no I/O and
+ * one can be made per request. A table manager made here needs no closing; closing it does nothing.
+ *
+ * Closing the factory closes the store, the table managers it made must not be used after that.
+ */
+public class TableManagerFactory implements AutoCloseable {
+
+  private final KeyValueStore store;
+  private final TableManagerImpl.Catalog catalog = new TableManagerImpl.Catalog();
+  private final TableManagerMetrics metrics = new TableManagerMetrics();
+  private volatile long maxCatalogStalenessMillis;
+  private volatile boolean closed;
+
+  /**
+   * A factory on FoundationDB, or on the in-memory store with -Dtablemanager.store=memory
+   */
+  public TableManagerFactory() {
+    this(TableManagerImpl.openDefaultStore());
+  }
+
+  /**
+   * @param store the store, closed with the factory
+   */
+  public TableManagerFactory(KeyValueStore store) {
+    this.store = store;
+    newTableManager().openRoot();
+  }
+
+  private TableManagerImpl newTableManager() {
+    return new TableManagerImpl(store, false, catalog, metrics);
+  }
+
+  /**
+   * @return a table manager sharing this factory's store and cache
+   */
+  public TableManagerImpl create() {
+    if (closed)
+      throw new IllegalStateException("table manager factory is closed");
+    TableManagerImpl tableManager = newTableManager();
+    tableManager.setMaxCatalogStalenessMillis(maxCatalogStalenessMillis);
+    return tableManager;
+  }
+
+  /**
+   * Set the catalog staleness of the table managers made from now on, see
+   * {TableManagerImpl#setMaxCatalogStalenessMillis}
+   */
+  public TableManagerFactory setMaxCatalogStalenessMillis(long maxStalenessMillis) {
+    this.maxCatalogStalenessMillis = maxStalenessMillis;
+    return this;
+  }
+
+  /**
+   * Load the whole catalog into the shared cache, to be called at startup so the first requests
+   * find it there
+   *
+   * @return future of the number of tables loaded
+   */
+  public CompletableFuture<Integer> prewarmAsync() {
+    return create().prewarmAsync();
+  }
+
+  public int prewarm() {
+    return prewarmAsync().join();
+  }
+
+  /**
+   * @return the metrics of every table manager made by this factory
+   */
+  public TableManagerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Unregister the metrics' MBeans and close the store
+   */
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    metrics.unregisterMBeans();
+    store.close();
+  }
+}
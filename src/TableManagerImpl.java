@@ -1,77 +1,412 @@
 
-import com.apple.foundationdb.*;
-import com.apple.foundationdb.async.AsyncIterable;
-import com.apple.foundationdb.directory.DirectoryLayer;
-import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.async.AsyncUtil;
 import com.apple.foundationdb.directory.PathUtil;
 import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
 import com.apple.foundationdb.tuple.Tuple;
-import jdk.net.SocketFlow;
-import org.w3c.dom.Attr;
 
-import java.security.Key;
-import java.sql.Array;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * TableManagerImpl implements interfaces in {#TableManager}. You should put your implementation
  * in this class.
+ *
+ * The catalog (every table's metadata) is cached in memory as immutable {TableSchema}s. Every table
+ * has a descriptor key, rewritten by each DDL on it, holding the table's version and the prefixes of
+ * its directories. A transaction validates a cached table with that one point read, so it only
+ * conflicts with DDL on the tables it uses (and dropAllTables), never with DDL on other tables. A
+ * catalog version key is bumped with an atomic add by every DDL, it only tells listTables whether
+ * the cached list of tables is still current.
+ *
+ * The class is safe to use from many threads: the state of a call lives in its own futures, the
+ * cache is guarded by the instance, every transaction is retried with backoff when it conflicts,
+ * and every DDL call commits at most once, even when its commit has to be retried (see runDdl).
+ *
+ * All work is done by the {#AsyncTableManager} methods, which chain futures of the underlying
+ * {#KeyValueStore} without blocking. The {#TableManager} methods just wait for them.
+ *
+ * Every change to a table's attributes bumps the table's schema version as well. Stored records are
+ * not rewritten by it: they are read as of the current version, and {SchemaMigrator} rewrites them
+ * in the background.
+ *
+ * dropAllTables does not remove tables one by one: it switches the catalog to a new, empty
+ * generation of the root directory ("Tables", "Tables.1", ...) in one transaction and removes the
+ * old generation in the background.
+ *
+ * Every operation's latency and the transactions, reads and writes it costs are recorded in
+ * {#TableManagerMetrics}, see getMetrics().
+ *
+ * The store is FoundationDB unless the system property tablemanager.store is set to "memory".
+ * Table managers made by a {TableManagerFactory} share one store and one cache, and cost no I/O to make.
  */
-public class TableManagerImpl implements TableManager{
+public class TableManagerImpl implements TableManager, AsyncTableManager, AutoCloseable {
+
+  // directory holding one subdirectory per table, dropAllTables replaces it with a new generation
+  private static final String ROOT_NAME = "Tables";
+
+  // keys outside of the "Tables" directories, so dropAllTables never resets them: the catalog version,
+  // the generation of the root directory in use, and the generations dropAllTables left to be removed
+  private static final Subspace CATALOG = new Subspace(Tuple.from("TablesCatalog"));
+  private static final byte[] CATALOG_VERSION_KEY = CATALOG.pack(Tuple.from("version"));
+  private static final byte[] ROOT_GENERATION_KEY = CATALOG.pack(Tuple.from("root"));
+  private static final Subspace GARBAGE_ROOTS = CATALOG.get("garbage");
+
+  // table descriptors, (generation, tableName) -> (tableVersion, metaPrefix, rawPrefix, indexPrefix),
+  // indexPrefix being null until the table gets an index. Tables created before descriptors were
+  // stored have none, they are found through the directory layer (see migrateCatalog)
+  private static final Subspace DESCRIPTORS = CATALOG.get("tables");
+
+  // statuses of DDL calls that committed, (createdMillis, callId) -> (statusName, resultStatusNames...),
+  // see runDdl. Markers older than DDL_MARKER_TTL_MILLIS are cleared in bulk: a call's retries of a
+  // commit_unknown_result are over within seconds, the margin covers clock skew between clients
+  private static final Subspace DDL_MARKERS = CATALOG.get("ddl");
+  private static final long DDL_MARKER_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  // batched DDL splits its work so every transaction stays well under FDB's 10MB / 5s limits
+  private static final long MAX_TRANSACTION_BYTES = 1_000_000;
+  private static final int MAX_TABLES_PER_TRANSACTION = 100;
+
+  // tables whose metadata and directories a catalog keeps cached
+  private static final int TABLE_CACHE_SIZE = 4096;
+
+  // rough bytes written per table (directory entries) and per attribute entry besides their names
+  private static final long TABLE_OVERHEAD_BYTES = 300;
+  private static final long ATTRIBUTE_OVERHEAD_BYTES = 30;
+
+  // first element of the meta keys that are not attribute entries, attribute entries start with
+  // their name so the two never collide:
+  // an index definition, (INDEX_TAG, attributeName) -> (stateName),
+  // the table's schema version, (SCHEMA_VERSION_TAG) -> (version),
+  // how far its records have been rewritten to that version, (SCHEMA_MIGRATION_TAG) -> see SchemaMigrator,
+  // the state of its row count, (AGGREGATE_TAG) -> (stateName), and of an attribute's aggregates,
+  // (AGGREGATE_TAG, attributeName) -> (stateName),
+  // and the statistics' counters, (STATISTICS_TAG, ...) -> see TableStatistics. Those are changed by
+  // every record write, so they sort last and are never read along with the metadata
+  private static final long INDEX_TAG = 0;
+  private static final long SCHEMA_VERSION_TAG = 1;
+  static final long SCHEMA_MIGRATION_TAG = 2;
+  private static final long AGGREGATE_TAG = 3;
+  static final long STATISTICS_TAG = 4;
+
+  // records read per transaction while backfilling an index or building a statistic
+  private static final int BACKFILL_CHUNK_ROWS = 1000;
+
+  private static final StatusCode[] NO_RESULTS = new StatusCode[0];
+
+  // in-memory catalog, shared by the table managers of a {TableManagerFactory}
+  private final Catalog catalog;
+
+  private final KeyValueStore store;
+  private final KeyValueDirectory directory;
+
+  // true if close() closes the store, which this table manager opened itself
+  private final boolean ownsStore;
+
+  // latency and round trips of every operation
+  private final TableManagerMetrics metrics;
+
+  // how old a read version the read-only catalog calls may reuse, see setMaxCatalogStalenessMillis
+  private volatile long maxCatalogStalenessMillis;
+
+  // the cached catalog of a store, guarded by itself, callbacks run on the store's threads. tables
+  // holds the TABLE_CACHE_SIZE tables transactions used last, each one is checked against its
+  // descriptor whenever it is used, so an evicted table is only read again; listed is the whole
+  // catalog as of catalog version listedVersion, null until it is listed
+  static final class Catalog {
+    private final LinkedHashMap<String, CachedTable> tables = new LinkedHashMap<String, CachedTable>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedTable> eldest) {
+        return size() > TABLE_CACHE_SIZE;
+      }
+    };
+    private TreeMap<String, TableSchema> listed;
+    private long listedVersion = -1;
 
-  // make hierarchy of directories, root directory of key value pairs
+    // generation of the root directory the cache belongs to
+    private long rootGeneration;
 
-  private HashMap<String, TableMetadata> tables;
-  private FDB fdb;
-  private Database db;
-  private DirectorySubspace rootDir;
-  private DirectorySubspace meta;
-  private DirectorySubspace raw;
+    // when a DDL call last committed through this catalog, if one has
+    private boolean changed;
+    private long changedNanos;
+  }
 
-  // constructor for class
-  public TableManagerImpl(){
-    tables = new HashMap<>();
-    fdb = FDB.selectAPIVersion(710);
+  // a table as of one of its descriptors: its schema and directories. It is only used by transactions
+  // that read the very same descriptor
+  private static final class CachedTable {
+    final long generation;
+    // null for a table without a descriptor
+    final byte[] descriptor;
+    final long version;
+    final TableSchema schema;
+    final Subspace metaDir;
+    final Subspace rawDir;
+    // null while the table has no index directory
+    final Subspace indexDir;
+
+    CachedTable(long generation, byte[] descriptor, TableSchema schema, Subspace metaDir, Subspace rawDir,
+                Subspace indexDir) {
+      this.generation = generation;
+      this.descriptor = descriptor;
+      this.version = descriptor == null ? 0 : Tuple.fromBytes(descriptor).getLong(0);
+      this.schema = schema;
+      this.metaDir = metaDir;
+      this.rawDir = rawDir;
+      this.indexDir = indexDir;
+    }
+  }
 
-    // open database
-    try {
-      db = fdb.open();
+  // outcome of a DDL transaction, with the change to make to the cache once it has committed (null
+  // if it wrote nothing)
+  private static final class DdlOutcome {
+    final StatusCode status;
+    final Runnable change;
 
-      System.out.println("Database opened!");
-    } catch (Exception e) {
-      System.out.println("ERROR: the database not successfully opened: " + e);
+    DdlOutcome(StatusCode status, Runnable change) {
+      this.status = status;
+      this.change = change;
     }
+  }
+
+  // constructor for class, the store it opens is closed by close()
+  public TableManagerImpl(){
+    this(openDefaultStore(), true);
+  }
 
+  /**
+   * @param store the store, left open by close() so other table managers can keep using it
+   */
+  public TableManagerImpl(KeyValueStore store){
+    this(store, false);
+  }
+
+  private TableManagerImpl(KeyValueStore store, boolean ownsStore){
+    this(store, ownsStore, new Catalog(), new TableManagerMetrics());
+    openRoot();
+  }
+
+  // a table manager sharing the catalog and metrics of a TableManagerFactory, the factory has
+  // already opened the root directory
+  TableManagerImpl(KeyValueStore store, boolean ownsStore, Catalog catalog, TableManagerMetrics metrics){
+    this.store = store;
+    this.ownsStore = ownsStore;
+    this.catalog = catalog;
+    this.metrics = metrics;
+    directory = store.directory();
+  }
+
+  // creates the root directory if need be, and finishes removing what an interrupted dropAllTables
+  // left behind
+  void openRoot()
+  {
     // instantiate root directory
     try {
-      if (rootDir == null)
+      long generation = store.runAsync(tx -> tx.get(ROOT_GENERATION_KEY).thenCompose(value ->
+              directory.createOrOpen(tx, rootPath(decodeVersion(value))).thenApply(dir -> decodeVersion(value)))).join();
+      synchronized (catalog)
       {
-        rootDir = DirectoryLayer.getDefault().createOrOpen(db,
-                PathUtil.from("Tables")).join();
-        System.out.println("Root dir made!");
-
+        catalog.rootGeneration = Math.max(catalog.rootGeneration, generation);
       }
+      System.out.println("Root dir made!");
     } catch (Exception e) {
       System.out.println("ERROR: root dir not made: " + e);
     }
+
+    collectGarbage();
   }
-  // helper functions
-  public boolean tableExists(String tableName)
+
+  /**
+   * Close the store if this table manager opened it, and unregister its metrics' MBeans
+   */
+  @Override
+  public void close()
+  {
+    if (!ownsStore)
+      return;
+    metrics.unregisterMBeans();
+    store.close();
+  }
+
+  /**
+   * Load the whole catalog into the cache, so the first calls do not have to
+   *
+   * @return future of the number of tables loaded
+   */
+  public CompletableFuture<Integer> prewarmAsync()
   {
+    return metrics.time("prewarm", op -> readCatalogAsync(op, tx -> tx.get(CATALOG_VERSION_KEY)
+            .thenCompose(value -> loadCatalog(tx, decodeVersion(value)))).thenApply(TreeMap::size));
+  }
+
+  // FoundationDB, or the embedded in-memory store with -Dtablemanager.store=memory
+  static KeyValueStore openDefaultStore()
+  {
+    if ("memory".equals(System.getProperty("tablemanager.store")))
+      return new InMemoryKeyValueStore();
+
+    // open database
+    KeyValueStore store = null;
     try {
-      List<String> tableNames = rootDir.list(db).join();
-      boolean found = false;
+      store = new FDBKeyValueStore();
+
+      System.out.println("Database opened!");
+    } catch (Exception e) {
+      System.out.println("ERROR: the database not successfully opened: " + e);
+    }
+    return store;
+  }
+
+  // path of a generation of the root directory, the first one is plain "Tables"
+  private static List<String> rootPath(long generation)
+  {
+    return PathUtil.from(generation == 0 ? ROOT_NAME : ROOT_NAME + "." + generation);
+  }
+
+  // path of a table's directory, or of one of its subdirectories
+  private static List<String> tablePath(long generation, String tableName, String... subDirs)
+  {
+    List<String> path = new ArrayList<>(rootPath(generation));
+    path.add(tableName);
+    path.addAll(Arrays.asList(subDirs));
+    return path;
+  }
+
+  private static byte[] descriptorKey(long generation, String tableName)
+  {
+    return DESCRIPTORS.pack(Tuple.from(generation, tableName));
+  }
+
+  private long currentGeneration()
+  {
+    synchronized (catalog)
+    {
+      return catalog.rootGeneration;
+    }
+  }
 
-      for (String name : tableNames)
+  /**
+   * @return the metrics of this table manager's operations
+   */
+  public TableManagerMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  KeyValueStore getStore()
+  {
+    return store;
+  }
+
+  // runs a transaction, counting it towards op (null when metrics are disabled)
+  <T> CompletableFuture<T> runAsync(OperationMetrics op, Function<KeyValueTransaction, CompletableFuture<T>> retryable)
+  {
+    return TableManagerMetrics.runAsync(store, op, retryable);
+  }
+
+  <T> CompletableFuture<T> readAsync(OperationMetrics op, Function<KeyValueTransaction, CompletableFuture<T>> retryable)
+  {
+    return TableManagerMetrics.readAsync(store, op, retryable);
+  }
+
+  /**
+   * Let tableExists and the table listings reuse a read version up to maxStalenessMillis old instead
+   * of getting a fresh one for every call, so they may miss DDL committed by others in that time.
+   * DDL made through this table manager (or its factory) is always seen, the calls read a fresh
+   * version for maxStalenessMillis after it. Read versions are never reused for longer than
+   * {KeyValueStore#MAX_READ_VERSION_AGE_MILLIS}.
+   *
+   * @param maxStalenessMillis 0, the default, for a fresh read version every call
+   */
+  public void setMaxCatalogStalenessMillis(long maxStalenessMillis)
+  {
+    this.maxCatalogStalenessMillis = maxStalenessMillis;
+  }
+
+  // runs a read-only catalog call in a snapshot transaction: it only reads what DDL makes consistent
+  // anyway, so it needs no read conflicts, and it may reuse a read version
+  <T> CompletableFuture<T> readCatalogAsync(OperationMetrics op, Function<KeyValueTransaction, CompletableFuture<T>> retryable)
+  {
+    long maxStalenessMillis = maxCatalogStalenessMillis;
+    synchronized (catalog)
+    {
+      // our own DDL must not be missed
+      if (catalog.changed && System.nanoTime() - catalog.changedNanos <= TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis))
+        maxStalenessMillis = 0;
+    }
+    return TableManagerMetrics.snapshotAsync(store, op, maxStalenessMillis, retryable);
+  }
+
+  // runs a DDL transaction so that the call commits at most once. The attempt that commits records
+  // the statuses it made under a marker of the call's own, so an attempt retried after a commit that
+  // went through after all (FoundationDB's commit_unknown_result) returns those statuses instead of
+  // making the change again. ddl fills in results, the statuses of a batch's items; the cache change
+  // is only made by the attempt that committed. The same commit clears the markers that expired, so
+  // a call never commits twice to clean up after itself
+  private CompletableFuture<DdlOutcome> runDdl(OperationMetrics op, StatusCode[] results,
+                                               Function<KeyValueTransaction, CompletableFuture<DdlOutcome>> ddl)
+  {
+    byte[] marker = DDL_MARKERS.pack(Tuple.from(System.currentTimeMillis(), UUID.randomUUID()));
+    return runAsync(op, tx -> tx.get(marker).thenCompose(recorded -> {
+      if (recorded != null)
       {
-        if (tableName.equals(name))
+        Tuple statuses = Tuple.fromBytes(recorded);
+        for (int i = 0; i < results.length; i++)
         {
-          found = true;
-          break;
+          results[i] = StatusCode.valueOf(statuses.getString(i + 1));
         }
+        return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.valueOf(statuses.getString(0)), null));
       }
-      return found;
+
+      return ddl.apply(tx).thenApply(outcome -> {
+        if (outcome.change != null)
+        {
+          List<Object> statuses = new ArrayList<>(results.length + 1);
+          statuses.add(outcome.status.name());
+          for (StatusCode result : results)
+          {
+            statuses.add(result.name());
+          }
+          tx.set(marker, Tuple.fromList(statuses).pack());
+          clearExpiredDdlMarkers(tx);
+        }
+        return outcome;
+      });
+    })).thenApply(outcome -> {
+      if (outcome.change != null)
+      {
+        synchronized (catalog)
+        {
+          outcome.change.run();
+          catalog.changed = true;
+          catalog.changedNanos = System.nanoTime();
+        }
+      }
+      return outcome;
+    });
+  }
+
+  // a blind range clear: it adds no read conflict, and concurrent calls' markers are too recent for it
+  private static void clearExpiredDdlMarkers(KeyValueTransaction tx)
+  {
+    long expiredBefore = System.currentTimeMillis() - DDL_MARKER_TTL_MILLIS;
+    tx.clear(new Range(DDL_MARKERS.range().begin, DDL_MARKERS.pack(Tuple.from(expiredBefore))));
+  }
+
+  // helper functions
+  public boolean tableExists(String tableName)
+  {
+    try {
+      return metrics.time("tableExists", op -> readCatalogAsync(op, tx -> resolveEntry(tx, tableName)
+              .thenApply(table -> table != null))).join();
     }
     catch (Exception e)
     {
@@ -81,11 +416,360 @@ public class TableManagerImpl implements TableManager{
     return false;
   }
 
-  // primaryKeyAttributeNames is subset of attributeNames
-  @Override
-  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeType,
-                         String[] primaryKeyAttributeNames) {
+  private static long decodeVersion(byte[] value)
+  {
+    if (value == null)
+      return 0;
+    return ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  private static byte[] encodeVersion(long version)
+  {
+    return ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(version).array();
+  }
+
+  // bumps the catalog version in tx. An atomic add does not read the key, so DDLs on different
+  // tables do not conflict on it
+  private static void bumpCatalogVersion(KeyValueTransaction tx)
+  {
+    tx.mutate(MutationType.ADD, CATALOG_VERSION_KEY, encodeVersion(1));
+  }
+
+  // the schema of a table as tx sees it, null if there is no such table. tx conflicts with any DDL
+  // on the table committed before it does
+  CompletableFuture<TableSchema> resolveTable(KeyValueTransaction tx, String tableName)
+  {
+    return resolveEntry(tx, tableName).thenApply(table -> table == null ? null : table.schema);
+  }
+
+  // opens a table's meta, raw or index directory, from the prefixes the table's descriptor holds.
+  // Completes with null for the index directory of a table that never had an index
+  CompletableFuture<Subspace> openTableDir(KeyValueTransaction tx, String tableName, String subDir)
+  {
+    return resolveEntry(tx, tableName).thenApply(table -> {
+      if (table == null)
+        throw new IllegalStateException("table does not exist: " + tableName);
+      switch (subDir)
+      {
+        case "meta":
+          return table.metaDir;
+        case "raw":
+          return table.rawDir;
+        case "index":
+          return table.indexDir;
+        default:
+          throw new IllegalArgumentException("no such table directory: " + subDir);
+      }
+    });
+  }
+
+  // a table as tx sees it, null if there is no such table. Reads the root generation and the table's
+  // descriptor, the descriptor is read along with the generation the cache is at since that is
+  // almost always the one tx sees
+  private CompletableFuture<CachedTable> resolveEntry(KeyValueTransaction tx, String tableName)
+  {
+    return resolveEntry(tx, readRootGeneration(tx), tableName);
+  }
+
+  // a table as tx sees it, in the generation of the root directory tx has read (see readRootGeneration)
+  private CompletableFuture<CachedTable> resolveEntry(KeyValueTransaction tx, CompletableFuture<Long> rootGeneration,
+                                                      String tableName)
+  {
+    long cachedGeneration = currentGeneration();
+    CompletableFuture<byte[]> descriptor = tx.get(descriptorKey(cachedGeneration, tableName));
+    return rootGeneration.thenCompose(generation -> {
+      if (generation != cachedGeneration)
+        return readEntry(tx, generation, tableName, tx.get(descriptorKey(generation, tableName)));
+      return readEntry(tx, generation, tableName, descriptor);
+    });
+  }
+
+  // the generation of the root directory tx sees. A newer one than the cache's, set by dropAllTables
+  // through another table manager, empties the cache, whether or not tx finds the table it looks for
+  private CompletableFuture<Long> readRootGeneration(KeyValueTransaction tx)
+  {
+    return tx.get(ROOT_GENERATION_KEY).thenApply(value -> {
+      long generation = decodeVersion(value);
+      synchronized (catalog)
+      {
+        if (generation > catalog.rootGeneration)
+          resetCatalog(generation);
+      }
+      return generation;
+    });
+  }
+
+  // the cached table for descriptor, or the table read from the prefixes it holds
+  private CompletableFuture<CachedTable> readEntry(KeyValueTransaction tx, long generation, String tableName,
+                                                   CompletableFuture<byte[]> descriptorRead)
+  {
+    return descriptorRead.thenCompose(descriptor -> {
+      if (descriptor == null)
+        return readUndescribedEntry(tx, generation, tableName);
+
+      synchronized (catalog)
+      {
+        CachedTable cached = catalog.tables.get(tableName);
+        if (cached != null && cached.generation == generation && Arrays.equals(cached.descriptor, descriptor))
+          return CompletableFuture.completedFuture(cached);
+      }
+
+      Tuple prefixes = Tuple.fromBytes(descriptor);
+      Subspace metaDir = new Subspace(prefixes.getBytes(1));
+      Subspace rawDir = new Subspace(prefixes.getBytes(2));
+      Subspace indexDir = prefixes.get(3) == null ? null : new Subspace(prefixes.getBytes(3));
+      return tx.getRange(metadataRange(metaDir)).thenApply(keyValues -> {
+        CachedTable table = new CachedTable(generation, descriptor, decodeMetadata(metaDir, keyValues),
+                metaDir, rawDir, indexDir);
+        cacheTable(tableName, table);
+        return table;
+      });
+    });
+  }
+
+  // a table without a descriptor: one created before descriptors were stored, found through the
+  // directory layer every time it is used, or no table at all (null)
+  private CompletableFuture<CachedTable> readUndescribedEntry(KeyValueTransaction tx, long generation,
+                                                             String tableName)
+  {
+    List<String> metaPath = tablePath(generation, tableName, "meta");
+    List<String> indexPath = tablePath(generation, tableName, "index");
+    return directory.exists(tx, metaPath).thenCompose(exists -> {
+      if (!exists)
+        return CompletableFuture.completedFuture(null);
+
+      return directory.open(tx, metaPath).thenCompose(metaDir ->
+              directory.open(tx, tablePath(generation, tableName, "raw")).thenCompose(rawDir ->
+                      directory.exists(tx, indexPath).thenCompose(indexed -> indexed
+                              ? directory.open(tx, indexPath) : CompletableFuture.completedFuture((Subspace) null))
+                              .thenCompose(indexDir -> tx.getRange(metadataRange(metaDir)).thenApply(keyValues ->
+                                      new CachedTable(generation, null, decodeMetadata(metaDir, keyValues), metaDir,
+                                              rawDir, indexDir)))));
+    });
+  }
+
+  // the entries of a meta directory a table's metadata is read from: all of them but the statistics'
+  // counters, so reading a table does not conflict with record writes
+  private static Range metadataRange(Subspace metaDir)
+  {
+    return new Range(metaDir.range().begin, metaDir.pack(Tuple.from(STATISTICS_TAG)));
+  }
 
+  // caches a table read or written by a transaction, a newer generation of the root directory
+  // drops everything cached for older ones
+  private void cacheTable(String tableName, CachedTable table)
+  {
+    synchronized (catalog)
+    {
+      if (table.generation > catalog.rootGeneration)
+        resetCatalog(table.generation);
+      if (table.generation == catalog.rootGeneration && table.descriptor != null)
+        catalog.tables.put(tableName, table);
+    }
+  }
+
+  // empties the cache for a generation of the root directory, called with the catalog held
+  private void resetCatalog(long generation)
+  {
+    catalog.tables.clear();
+    catalog.listed = null;
+    catalog.listedVersion = -1;
+    catalog.rootGeneration = generation;
+  }
+
+  // writes the descriptor of a table's new state in tx, one version after table's, and bumps the
+  // catalog version. Returns that state, to be cached once tx has committed
+  private static CachedTable writeDescriptor(KeyValueTransaction tx, String tableName, CachedTable table,
+                                             TableSchema schema, Subspace indexDir)
+  {
+    byte[] descriptor = Tuple.from(table.version + 1, table.metaDir.getKey(), table.rawDir.getKey(),
+            indexDir == null ? null : indexDir.getKey()).pack();
+    tx.set(descriptorKey(table.generation, tableName), descriptor);
+    bumpCatalogVersion(tx);
+    return new CachedTable(table.generation, descriptor, schema, table.metaDir, table.rawDir, indexDir);
+  }
+
+  private static CachedTable writeDescriptor(KeyValueTransaction tx, String tableName, CachedTable table,
+                                             TableSchema schema)
+  {
+    return writeDescriptor(tx, tableName, table, schema, table.indexDir);
+  }
+
+  // reads every table of the catalog tx sees and installs them as the list of tables for catalog
+  // version. Tables whose descriptors match the cached ones are not read again
+  private CompletableFuture<TreeMap<String, TableSchema>> loadCatalog(KeyValueTransaction tx, long version)
+  {
+    long[] generation = new long[1];
+
+    // List all subdirectories under root ("tables"), these are the individual tables
+    return tx.get(ROOT_GENERATION_KEY).thenCompose(value -> {
+      generation[0] = decodeVersion(value);
+      return directory.list(tx, rootPath(generation[0]));
+    }).thenCompose(tableNames -> readEntries(tx, generation[0], tableNames).thenApply(entries -> {
+      TreeMap<String, TableSchema> result = new TreeMap<>();
+      for (int i = 0; i < tableNames.size(); i++)
+      {
+        if (entries.get(i) != null)
+          result.put(tableNames.get(i), entries.get(i).schema);
+      }
+
+      installListed(generation[0], version, result);
+      return result;
+    }));
+  }
+
+  // installs the list of tables of a generation as of catalog version, unless a newer list has been
+  // installed meanwhile
+  private void installListed(long generation, long version, TreeMap<String, TableSchema> listed)
+  {
+    synchronized (catalog)
+    {
+      if (generation >= catalog.rootGeneration && version > catalog.listedVersion)
+      {
+        if (generation > catalog.rootGeneration)
+          resetCatalog(generation);
+        catalog.listed = listed;
+        catalog.listedVersion = version;
+      }
+    }
+  }
+
+  // reads the given tables, all at once at tx's read version
+  private CompletableFuture<List<CachedTable>> readEntries(KeyValueTransaction tx, long generation,
+                                                           List<String> tableNames)
+  {
+    List<CompletableFuture<CachedTable>> reads = new ArrayList<>(tableNames.size());
+    for (String tableName : tableNames)
+    {
+      reads.add(readEntry(tx, generation, tableName, tx.get(descriptorKey(generation, tableName))));
+    }
+    return AsyncUtil.getAll(reads);
+  }
+
+  // makes a TableSchema from the key-value pairs of a meta directory
+  //
+  // an attribute is stored as (attributeName) -> (typeName, primaryKeyIndex, position, sinceVersion,
+  // defaultValue), primaryKeyIndex being its place in the primary key or -1, and position ordering the
+  // attributes as they were declared. Entries written before positions were stored have none and come
+  // first, by name; entries without sinceVersion were there from version 0 on, without a default.
+  // Catalogs written before that layout store (attributeName, typeName) -> (isPrimaryKey), those
+  // entries are still read (see migrateCatalog)
+  private static TableSchema decodeMetadata(Subspace metaDir, List<KeyValue> keyValues)
+  {
+    TableSchema.Builder builder = new TableSchema.Builder();
+    TreeMap<Long, String> primaryKeyAttributeNames = new TreeMap<>();
+    List<String> legacyPrimaryKeyAttributeNames = new ArrayList<>();
+    HashMap<String, TableMetadata.IndexState> indexes = new HashMap<>();
+    HashMap<String, TableMetadata.IndexState> aggregates = new HashMap<>();
+
+    for (KeyValue kv : keyValues)
+    {
+      // use Tuple api to transform bytes to key and value tuples
+      Tuple keyTuple = metaDir.unpack(kv.getKey());
+      Tuple valueTuple = Tuple.fromBytes(kv.getValue());
+
+      if (isTaggedEntry(keyTuple))
+      {
+        if (keyTuple.getLong(0) == INDEX_TAG)
+          indexes.put(keyTuple.getString(1), TableMetadata.IndexState.valueOf(valueTuple.getString(0)));
+        else if (keyTuple.getLong(0) == SCHEMA_VERSION_TAG)
+          builder.setSchemaVersion((int) valueTuple.getLong(0));
+        else if (keyTuple.getLong(0) == AGGREGATE_TAG && keyTuple.size() == 1)
+          builder.setCountState(TableMetadata.IndexState.valueOf(valueTuple.getString(0)));
+        else if (keyTuple.getLong(0) == AGGREGATE_TAG)
+          aggregates.put(keyTuple.getString(1), TableMetadata.IndexState.valueOf(valueTuple.getString(0)));
+        continue;
+      }
+
+      String attributeName = keyTuple.getString(0);
+      if (keyTuple.size() == 1)
+      {
+        int position = valueTuple.size() > 2 ? (int) valueTuple.getLong(2) : -1;
+        int sinceVersion = valueTuple.size() > 3 ? (int) valueTuple.getLong(3) : 0;
+        Object defaultValue = valueTuple.size() > 4 ? valueTuple.get(4) : null;
+        builder.addAttribute(attributeName, AttributeType.valueOf(valueTuple.getString(0)), position, sinceVersion,
+                defaultValue);
+
+        long primaryKeyIndex = valueTuple.getLong(1);
+        if (primaryKeyIndex >= 0)
+          primaryKeyAttributeNames.put(primaryKeyIndex, attributeName);
+      }
+      else
+      {
+        builder.addAttribute(attributeName, AttributeType.valueOf(keyTuple.getString(1)), -1, 0, null);
+
+        // check if primary key attribute
+        if (valueTuple.getBoolean(0))
+          legacyPrimaryKeyAttributeNames.add(attributeName);
+      }
+    }
+
+    // the legacy layout does not record key order, its primary keys are listed in reverse as they always were
+    List<String> primaryKeys = new ArrayList<>(primaryKeyAttributeNames.values());
+    Collections.reverse(legacyPrimaryKeyAttributeNames);
+    primaryKeys.addAll(legacyPrimaryKeyAttributeNames);
+
+    builder.setPrimaryKeys(primaryKeys.toArray(new String[primaryKeys.size()]));
+    for (Map.Entry<String, TableMetadata.IndexState> index : indexes.entrySet())
+    {
+      builder.setIndex(index.getKey(), index.getValue());
+    }
+    for (Map.Entry<String, TableMetadata.IndexState> aggregate : aggregates.entrySet())
+    {
+      builder.setAggregate(aggregate.getKey(), aggregate.getValue());
+    }
+    return builder.build();
+  }
+
+  private static boolean isTaggedEntry(Tuple keyTuple)
+  {
+    return keyTuple.get(0) instanceof Long;
+  }
+
+  // sets the definition of an index in a table's meta directory
+  private static void writeIndexState(KeyValueTransaction tx, Subspace metaDir, String attributeName,
+                                      TableMetadata.IndexState state)
+  {
+    tx.set(metaDir.pack(Tuple.from(INDEX_TAG, attributeName)), Tuple.from(state.name()).pack());
+  }
+
+  // sets the state of a statistic in a table's meta directory, attributeName null for the row count
+  private static void writeStatisticState(KeyValueTransaction tx, Subspace metaDir, String attributeName,
+                                          TableMetadata.IndexState state)
+  {
+    Tuple key = attributeName == null ? Tuple.from(AGGREGATE_TAG) : Tuple.from(AGGREGATE_TAG, attributeName);
+    tx.set(metaDir.pack(key), Tuple.from(state.name()).pack());
+  }
+
+  // a schema with the state of a statistic changed, attributeName null for the row count
+  private static TableSchema withStatistic(TableSchema schema, String attributeName, TableMetadata.IndexState state)
+  {
+    TableSchema.Builder builder = schema.toBuilder();
+    return (attributeName == null ? builder.setCountState(state) : builder.setAggregate(attributeName, state)).build();
+  }
+
+  // sets a table's schema version in its meta directory
+  private static void writeSchemaVersion(KeyValueTransaction tx, Subspace metaDir, int schemaVersion)
+  {
+    tx.set(metaDir.pack(Tuple.from(SCHEMA_VERSION_TAG)), Tuple.from(schemaVersion).pack());
+  }
+
+  // true if a meta directory still holds entries in the legacy (attributeName, typeName) layout
+  private static boolean hasLegacyEntries(Subspace metaDir, List<KeyValue> keyValues)
+  {
+    for (KeyValue kv : keyValues)
+    {
+      Tuple keyTuple = metaDir.unpack(kv.getKey());
+      if (!isTaggedEntry(keyTuple) && keyTuple.size() != 1)
+        return true;
+    }
+    return false;
+  }
+
+  // checks createTable's arguments, null if they are valid
+  private static StatusCode validateTableCreation(String[] attributeNames, AttributeType[] attributeType,
+                                                  String[] primaryKeyAttributeNames)
+  {
     if (attributeNames == null || attributeType == null)
     {
       return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
@@ -122,317 +806,1142 @@ public class TableManagerImpl implements TableManager{
       return StatusCode.TABLE_CREATION_ATTRIBUTE_INVALID;
     }
 
+    return null;
+  }
 
-    // create table
-    final DirectorySubspace tableDir = rootDir.createOrOpen(db, PathUtil.from(tableName)).join();
+  // primaryKeyAttributeNames is subset of attributeNames
+  @Override
+  public CompletableFuture<StatusCode> createTableAsync(String tableName, String[] attributeNames,
+                                                       AttributeType[] attributeType, String[] primaryKeyAttributeNames) {
+    return metrics.time("createTable", op -> {
+      StatusCode invalid = validateTableCreation(attributeNames, attributeType, primaryKeyAttributeNames);
+      if (invalid != null)
+        return CompletableFuture.completedFuture(invalid);
+
+      // directories, attribute entries and the descriptor all go into one transaction
+      return runDdl(op, NO_RESULTS, tx -> {
+        CompletableFuture<Long> generation = readRootGeneration(tx);
+        return resolveEntry(tx, generation, tableName).thenCompose(table -> {
+          if (table != null)
+            return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.TABLE_ALREADY_EXISTS, null));
+
+          return writeTable(tx, generation.join(), tableName,
+                  TableSchema.of(attributeNames, attributeType, primaryKeyAttributeNames))
+                  .thenApply(created -> new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, created)));
+        });
+      }).thenApply(outcome -> outcome.status);
+    });
+  }
 
-    // make meta data and raw data
-    meta = tableDir.createOrOpen(db, PathUtil.from("meta")).join();
-    raw = tableDir.createOrOpen(db, PathUtil.from("raw")).join();
+  // creates a table's directories, meta entries and descriptor in tx, under the generation of the root
+  // directory tx has read, completes with the table. A schema with indexes gets its index directory
+  // right away, there are no records to backfill. For the same reason its row count and aggregates are
+  // READY from the start
+  private CompletableFuture<CachedTable> writeTable(KeyValueTransaction tx, long generation, String tableName,
+                                                    TableSchema tableSchema)
+  {
+    TableSchema.Builder counted = tableSchema.toBuilder().setCountState(TableMetadata.IndexState.READY);
+    for (int i = 0; i < tableSchema.getAttributeCount(); i++)
+    {
+      if (tableSchema.getAggregateState(i) != null)
+        counted.setAggregate(tableSchema.getAttributeName(i), TableMetadata.IndexState.READY);
+    }
+    TableSchema schema = counted.build();
+
+    // create table, then make meta data and raw data
+    return directory.create(tx, tablePath(generation, tableName))
+            .thenCompose(tableDir -> directory.create(tx, tablePath(generation, tableName, "meta"))
+                    .thenCompose(metaDir -> directory.create(tx, tablePath(generation, tableName, "raw"))
+                            .thenCompose(rawDir -> (schema.hasIndexes()
+                                    ? directory.create(tx, tablePath(generation, tableName, "index"))
+                                    : CompletableFuture.completedFuture((Subspace) null)).thenApply(indexDir -> {
+                              for (int i = 0; i < schema.getAttributeCount(); i++)
+                              {
+                                // position in the primary key, -1 if not part of it
+                                writeAttribute(tx, metaDir, schema.getAttributeName(i), schema.getAttributeType(i),
+                                        schema.primaryKeyIndexOf(i), i, schema.getSinceVersion(i), schema.getDefaultValue(i));
+                                if (schema.getIndexState(i) != null)
+                                  writeIndexState(tx, metaDir, schema.getAttributeName(i), schema.getIndexState(i));
+                                if (schema.getAggregateState(i) != null)
+                                  writeStatisticState(tx, metaDir, schema.getAttributeName(i), schema.getAggregateState(i));
+                              }
+                              writeStatisticState(tx, metaDir, null, schema.getCountState());
+                              if (schema.getSchemaVersion() != 0)
+                                writeSchemaVersion(tx, metaDir, schema.getSchemaVersion());
+
+                              byte[] descriptor = Tuple.from(1L, metaDir.getKey(), rawDir.getKey(),
+                                      indexDir == null ? null : indexDir.getKey()).pack();
+                              tx.set(descriptorKey(generation, tableName), descriptor);
+                              bumpCatalogVersion(tx);
+                              return new CachedTable(generation, descriptor, schema, metaDir, rawDir, indexDir);
+                            }))));
+  }
+
+  // sets one attribute entry of a table's meta directory, keyed by the name alone so it can be
+  // checked and cleared with point operations
+  private static void writeAttribute(KeyValueTransaction tx, Subspace metaDir, String attributeName,
+                                     AttributeType attributeType, int primaryKeyIndex, int position,
+                                     int sinceVersion, Object defaultValue)
+  {
+    tx.set(metaDir.pack(Tuple.from(attributeName)),
+            Tuple.from(attributeType.name(), primaryKeyIndex, position, sinceVersion, defaultValue).pack());
+  }
 
-    int transactionCount = 3;
-    Transaction tx = db.createTransaction();
-    //completeKey = completeKey.add(0).add(primaryKeyAttributeNames[0]);
-    for (int i = 0; i < attributeNames.length; i++)
+  // rough number of bytes a table's creation writes, used to size batches
+  private static long estimateTableBytes(TableDefinition definition)
+  {
+    long bytes = TABLE_OVERHEAD_BYTES + definition.getTableName().length();
+    for (String attributeName : definition.getAttributeNames())
     {
-      // resets transaction
-      if (transactionCount <= 0)
+      bytes += ATTRIBUTE_OVERHEAD_BYTES + attributeName.length();
+    }
+    return bytes;
+  }
+
+  private static long estimateTableBytes(String tableName, TableSchema schema)
+  {
+    long bytes = TABLE_OVERHEAD_BYTES + tableName.length();
+    for (int i = 0; i < schema.getAttributeCount(); i++)
+    {
+      bytes += ATTRIBUTE_OVERHEAD_BYTES + schema.getAttributeName(i).length();
+    }
+    return bytes;
+  }
+
+  @Override
+  public CompletableFuture<List<StatusCode>> createTablesAsync(List<TableDefinition> definitions) {
+    return metrics.time("createTables", op -> {
+      StatusCode[] statuses = new StatusCode[definitions.size()];
+
+      // validate everything up front, a name used twice in the batch only gets created once
+      Set<String> names = new HashSet<>();
+      List<List<Integer>> batches = new ArrayList<>();
+      List<Integer> batch = new ArrayList<>();
+      long batchBytes = 0;
+      for (int i = 0; i < definitions.size(); i++)
+      {
+        TableDefinition definition = definitions.get(i);
+        StatusCode invalid = validateTableCreation(definition.getAttributeNames(), definition.getAttributeTypes(),
+                definition.getPrimaryKeyAttributeNames());
+        if (invalid != null)
+        {
+          statuses[i] = invalid;
+          continue;
+        }
+        if (!names.add(definition.getTableName()))
+        {
+          statuses[i] = StatusCode.TABLE_ALREADY_EXISTS;
+          continue;
+        }
+
+        // pack tables into transactions until one would get too large or too slow
+        long bytes = estimateTableBytes(definition);
+        if (!batch.isEmpty() && (batch.size() >= MAX_TABLES_PER_TRANSACTION || batchBytes + bytes > MAX_TRANSACTION_BYTES))
+        {
+          batches.add(batch);
+          batch = new ArrayList<>();
+          batchBytes = 0;
+        }
+        batch.add(i);
+        batchBytes += bytes;
+      }
+      if (!batch.isEmpty())
+        batches.add(batch);
+
+      // batches commit one after another, each against the catalog the previous one left behind
+      CompletableFuture<Void> chain = AsyncUtil.DONE;
+      for (List<Integer> indexes : batches)
       {
-        tx.commit().join();
-        tx.close();
-        tx = db.createTransaction();
-        transactionCount = 3;
+        chain = chain.thenCompose(previous -> {
+          List<String> tableNames = new ArrayList<>(indexes.size());
+          List<TableSchema> schemas = new ArrayList<>(indexes.size());
+          for (int index : indexes)
+          {
+            TableDefinition definition = definitions.get(index);
+            tableNames.add(definition.getTableName());
+            schemas.add(TableSchema.of(definition.getAttributeNames(), definition.getAttributeTypes(),
+                    definition.getPrimaryKeyAttributeNames()));
+          }
+          return createTableBatch(op, tableNames, schemas).thenAccept(results -> {
+            for (int i = 0; i < indexes.size(); i++)
+            {
+              statuses[indexes.get(i)] = results[i];
+            }
+          });
+        });
       }
+      return chain.thenApply(done -> Arrays.asList(statuses));
+    });
+  }
 
-      Tuple keyTuple = new Tuple();
-      keyTuple = keyTuple.add(attributeNames[i]);
-      keyTuple = keyTuple.add(attributeType[i].name());
+  // creates the given tables in one transaction, completes with their statuses
+  private CompletableFuture<StatusCode[]> createTableBatch(OperationMetrics op, List<String> tableNames,
+                                                          List<TableSchema> schemas)
+  {
+    StatusCode[] results = new StatusCode[tableNames.size()];
 
-      // primaryKey or not
-      boolean found = false;
-      for (String s : primaryKeyAttributeNames)
+    return runDdl(op, results, tx -> {
+      CompletableFuture<Long> generation = readRootGeneration(tx);
+      List<CompletableFuture<CachedTable>> existing = new ArrayList<>(tableNames.size());
+      for (String tableName : tableNames)
       {
-        if (s.equals(attributeNames[i])) {
-          found = true;
-          break;
-        }
+        existing.add(resolveEntry(tx, generation, tableName));
       }
 
-      Tuple valueTuple = new Tuple();
-      valueTuple = valueTuple.add(found);
+      return AsyncUtil.getAll(existing).thenCompose(resolved -> {
+        CachedTable[] created = new CachedTable[tableNames.size()];
+
+        // directory creations in one transaction are issued one after another
+        CompletableFuture<Void> chain = AsyncUtil.DONE;
+        for (int i = 0; i < tableNames.size(); i++)
+        {
+          if (resolved.get(i) != null)
+          {
+            results[i] = StatusCode.TABLE_ALREADY_EXISTS;
+            continue;
+          }
+          results[i] = StatusCode.SUCCESS;
 
-      tx.set(meta.pack(keyTuple), valueTuple.pack());
+          final int position = i;
+          chain = chain.thenCompose(previous -> writeTable(tx, generation.join(), tableNames.get(position),
+                  schemas.get(position)))
+                  .thenAccept(table -> created[position] = table);
+        }
 
-      transactionCount--;
-    }
+        return chain.thenApply(written -> new DdlOutcome(StatusCode.SUCCESS,
+                !Arrays.asList(results).contains(StatusCode.SUCCESS) ? null : () -> {
+                  for (int i = 0; i < tableNames.size(); i++)
+                  {
+                    if (created[i] != null)
+                      cacheTable(tableNames.get(i), created[i]);
+                  }
+                }));
+      });
+    }).thenApply(outcome -> results);
+  }
 
-    //System.out.println(tableName + " table created successfully!");
+  @Override
+  public List<StatusCode> createTables(List<TableDefinition> definitions) {
+    return createTablesAsync(definitions).join();
+  }
 
-    // commit transaction
-    tx.commit().join();
-    tx.close();
+  @Override
+  public StatusCode createTable(String tableName, String[] attributeNames, AttributeType[] attributeType,
+                         String[] primaryKeyAttributeNames) {
+    return createTableAsync(tableName, attributeNames, attributeType, primaryKeyAttributeNames).join();
+  }
 
-    return StatusCode.SUCCESS;
+  @Override
+  public CompletableFuture<StatusCode> deleteTableAsync(String tableName) {
+    return metrics.time("deleteTable", op -> {
+      return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenCompose(table -> {
+        // check if table exists
+        if (table == null)
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null));
+
+        // the descriptor lives outside the table's directory, so it is cleared along with bumping the
+        // catalog version; removing the directory clears everything stored in it and its subdirectories
+        tx.clear(descriptorKey(table.generation, tableName));
+        bumpCatalogVersion(tx);
+        return directory.remove(tx, tablePath(table.generation, tableName))
+                .thenApply(removed -> new DdlOutcome(StatusCode.SUCCESS, () -> catalog.tables.remove(tableName)));
+      })).thenApply(outcome -> outcome.status);
+    });
   }
 
   @Override
   public StatusCode deleteTable(String tableName) {
-    // check if table exists
-    List<String> tableNames = rootDir.list(db).join();
-    boolean found = false;
+    return deleteTableAsync(tableName).join();
+  }
 
-    for (String name : tableNames)
+  // the list of tables as of the catalog version tx sees, null if it has to be loaded. A list newer
+  // than tx is fine too
+  private TreeMap<String, TableSchema> listedTables(long version)
+  {
+    synchronized (catalog)
     {
-      if (tableName.equals(name))
-      {
-        found = true;
-        break;
-      }
+      return catalog.listed != null && version <= catalog.listedVersion ? catalog.listed : null;
     }
+  }
 
-    if (!found)
-      return StatusCode.TABLE_NOT_FOUND;
-
-     // start deleting
-    final DirectorySubspace tableDir = rootDir.open(db, PathUtil.from(tableName)).join();
-
-    Range r = tableDir.range();
+  @Override
+  public CompletableFuture<HashMap<String, TableMetadata>> listTablesAsync() {
+    return metrics.time("listTables", op -> {
+      return readCatalogAsync(op, tx -> tx.get(CATALOG_VERSION_KEY).thenCompose(value -> {
+        TreeMap<String, TableSchema> catalog = listedTables(decodeVersion(value));
+        return catalog != null ? CompletableFuture.completedFuture(catalog) : loadCatalog(tx, decodeVersion(value));
+      })).thenApply(catalog -> {
+        // initialize HashMap to return
+        HashMap<String, TableMetadata> result = new HashMap<>();
+
+        // hand out mutable copies, the list itself is never changed once installed
+        for (Map.Entry<String, TableSchema> entry : catalog.entrySet())
+        {
+          TableSchema tbm = entry.getValue();
+          if (isListed(tbm))
+          {
+            result.put(entry.getKey(), tbm.toTableMetadata());
+          }
+        }
 
-    // System.out.println("Running deleteTable");
-    Transaction tx = db.createTransaction();
-    tx.clear(r);
-    tx.commit().join();
+        return result;
+      });
+    });
+  }
 
-    rootDir.remove(db, PathUtil.from(tableName)).join();
+  @Override
+  public HashMap<String, TableMetadata> listTables() {
+    return listTablesAsync().join();
+  }
 
-    tx.close();
+  // listTables leaves out tables without attributes or primary key
+  private static boolean isListed(TableSchema table)
+  {
+    return table.getAttributeCount() > 0 && table.getPrimaryKeyCount() > 0;
+  }
 
-    return StatusCode.SUCCESS;
+  @Override
+  public CompletableFuture<TablePage> listTablesAsync(String startAfter, int limit) {
+    return metrics.time("listTablesPage", op -> {
+      return readCatalogAsync(op, tx -> tx.get(CATALOG_VERSION_KEY).thenCompose(value -> {
+        LinkedHashMap<String, TableMetadata> page = new LinkedHashMap<>();
+
+        // an up to date list hands out the page directly
+        TreeMap<String, TableSchema> catalog = listedTables(decodeVersion(value));
+        if (catalog != null)
+        {
+          Iterator<Map.Entry<String, TableSchema>> entries =
+                  (startAfter == null ? catalog : catalog.tailMap(startAfter, false)).entrySet().iterator();
+          String last = null;
+          while (page.size() < limit && entries.hasNext())
+          {
+            Map.Entry<String, TableSchema> entry = entries.next();
+            last = entry.getKey();
+            if (isListed(entry.getValue()))
+              page.put(entry.getKey(), entry.getValue().toTableMetadata());
+          }
+          return CompletableFuture.completedFuture(new TablePage(page, entries.hasNext() ? last : null));
+        }
 
+        // a stale list is not reloaded for one page, only the page's tables are read.
+        // one name more than the page tells whether another page follows
+        long[] generation = new long[1];
+        return tx.get(ROOT_GENERATION_KEY).thenCompose(root -> {
+          generation[0] = decodeVersion(root);
+          return directory.list(tx, rootPath(generation[0]), startAfter, limit + 1);
+        }).thenCompose(names -> {
+          List<String> pageNames = names.subList(0, Math.min(limit, names.size()));
+          return readEntries(tx, generation[0], pageNames).thenApply(entries -> {
+            for (int i = 0; i < pageNames.size(); i++)
+            {
+              if (entries.get(i) != null && isListed(entries.get(i).schema))
+                page.put(pageNames.get(i), entries.get(i).schema.toTableMetadata());
+            }
+            return new TablePage(page, names.size() > limit ? pageNames.get(limit - 1) : null);
+          });
+        });
+      }));
+    });
   }
 
   @Override
-  public HashMap<String, TableMetadata> listTables() {
-    // initialize HashMap to return
-    HashMap<String, TableMetadata> result = new HashMap<>();
+  public TablePage listTables(String startAfter, int limit) {
+    return listTablesAsync(startAfter, limit).join();
+  }
 
-    Transaction tx = db.createTransaction();
+  @Override
+  public CompletableFuture<List<String>> listTableNamesAsync(String startAfter, int limit) {
+    return metrics.time("listTableNames", op -> {
+      return readCatalogAsync(op, tx -> tx.get(CATALOG_VERSION_KEY).thenCompose(value -> {
+        TreeMap<String, TableSchema> catalog = listedTables(decodeVersion(value));
+        if (catalog != null)
+        {
+          List<String> names = new ArrayList<>(limit);
+          for (String name : startAfter == null ? catalog.keySet() : catalog.tailMap(startAfter, false).keySet())
+          {
+            if (names.size() == limit)
+              break;
+            names.add(name);
+          }
+          return CompletableFuture.completedFuture(names);
+        }
 
-    // List all subdirectories under root ("tables"), these are the individual tables
-    List<String> tableDirs = rootDir.list(db).join();
+        return tx.get(ROOT_GENERATION_KEY)
+                .thenCompose(root -> directory.list(tx, rootPath(decodeVersion(root)), startAfter, limit));
+      }));
+    });
+  }
 
-    for (String tableStr : tableDirs)
-    {
-      // System.out.println("Table: " + tableStr);
+  @Override
+  public List<String> listTableNames(String startAfter, int limit) {
+    return listTableNamesAsync(startAfter, limit).join();
+  }
 
-      // initialize TableMetaData properties, to be converted to arrays later
-      List<String> attributeNames = new ArrayList<>();
-      List<AttributeType> attributeTypes = new ArrayList<>();
-      List<String> primaryKeyAttributeNames = new ArrayList<>();
+  @Override
+  public CompletableFuture<StatusCode> addAttributeAsync(String tableName, String attributeName, AttributeType attributeType) {
+    return addAttributeAsync(tableName, attributeName, attributeType, null);
+  }
 
-      // go to meta subdirectory
-      List<String> path = new ArrayList<>();
-      path.add(tableStr);
-      path.add("meta");
-      DirectorySubspace metaDir = rootDir.open(db, path).join();
+  @Override
+  public CompletableFuture<StatusCode> addAttributeAsync(String tableName, String attributeName, AttributeType attributeType,
+                                                         Object defaultValue) {
+    return metrics.time("addAttribute", op -> {
+      if (defaultValue != null && !Record.isOfType(defaultValue, attributeType))
+        return CompletableFuture.completedFuture(StatusCode.ATTRIBUTE_TYPE_MISMATCH);
+      Object storedDefault = Record.normalize(defaultValue);
+
+      return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+        // check if table exists
+        if (entry == null)
+          return new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null);
+
+        // check if attribute already exists
+        TableSchema table = entry.schema;
+        if (table.doesAttributeExist(attributeName))
+          return new DdlOutcome(StatusCode.ATTRIBUTE_ALREADY_EXISTS, null);
+
+        // add attribute if not found, assumes added one cannot be primaryKey. Stored records keep
+        // reading the default until they are rewritten
+        int schemaVersion = table.getSchemaVersion() + 1;
+        writeAttribute(tx, entry.metaDir, attributeName, attributeType, -1, table.getNextPosition(),
+                schemaVersion, storedDefault);
+        writeSchemaVersion(tx, entry.metaDir, schemaVersion);
+        CachedTable changed = writeDescriptor(tx, tableName, entry, table.toBuilder()
+                .setSchemaVersion(schemaVersion)
+                .addAttribute(attributeName, attributeType, storedDefault)
+                .build());
+        return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+      })).thenApply(outcome -> outcome.status);
+    });
+  }
 
-      // get range
-      Range r = metaDir.range();
+  @Override
+  public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType) {
+    return addAttributeAsync(tableName, attributeName, attributeType).join();
+  }
 
-      // iterate over key-value pairs in this range and make TableMetadata object from it
-      List<KeyValue> keyValues = tx.getRange(r).asList().join();
+  @Override
+  public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType,
+                                 Object defaultValue) {
+    return addAttributeAsync(tableName, attributeName, attributeType, defaultValue).join();
+  }
 
-      for (KeyValue kv : keyValues)
+  @Override
+  public CompletableFuture<LinkedHashMap<String, StatusCode>> addAttributesAsync(String tableName,
+                                                                                Map<String, AttributeType> attributes) {
+    return metrics.time("addAttributes", op -> {
+      LinkedHashMap<String, StatusCode> statuses = new LinkedHashMap<>();
+
+      // attributes without a type are rejected up front, the rest are packed into transactions
+      List<List<String>> batches = new ArrayList<>();
+      List<String> batch = new ArrayList<>();
+      long batchBytes = 0;
+      for (Map.Entry<String, AttributeType> attribute : attributes.entrySet())
       {
+        if (attribute.getValue() == null)
         {
-          // use Tuple api to transform bytes to key and value tuples
-          Tuple keyTuple = Tuple.fromBytes(kv.getKey());
-          Tuple valueTuple = Tuple.fromBytes(kv.getValue());
-
-          List<Object> keyItems = keyTuple.getItems();
-          List<Object> valueItems = valueTuple.getItems();
-
-          if (!keyItems.get(1).equals(""))
-          {
-            attributeNames.add((String)keyItems.get(1));
-            attributeTypes.add(AttributeType.valueOf((String) keyItems.get(2)));
-          }
-
-          // check if primary key attribute
-          if ((Boolean) valueItems.get(0))
-          {
-            primaryKeyAttributeNames.add((String)keyItems.get(1));
-          }
+          statuses.put(attribute.getKey(), StatusCode.ATTRIBUTE_TYPE_NOT_SUPPORTED);
+          continue;
+        }
+        statuses.put(attribute.getKey(), null);
 
+        long bytes = ATTRIBUTE_OVERHEAD_BYTES + attribute.getKey().length();
+        if (!batch.isEmpty() && batchBytes + bytes > MAX_TRANSACTION_BYTES)
+        {
+          batches.add(batch);
+          batch = new ArrayList<>();
+          batchBytes = 0;
         }
+        batch.add(attribute.getKey());
+        batchBytes += bytes;
       }
+      if (!batch.isEmpty())
+        batches.add(batch);
 
-      if (!attributeNames.isEmpty() && !attributeNames.isEmpty() && !primaryKeyAttributeNames.isEmpty())
+      CompletableFuture<Void> chain = AsyncUtil.DONE;
+      for (List<String> names : batches)
       {
-        // convert to arrays in reverse order
-        String[] attrNameArr = attributeNames.toArray(new String[attributeNames.size()]);
+        chain = chain.thenCompose(previous -> addAttributeBatch(op, tableName, attributes, names, statuses));
+      }
+      return chain.thenApply(done -> statuses);
+    });
+  }
 
-        AttributeType[] attrTypeArr = attributeTypes.toArray(new AttributeType[attributeTypes.size()]);
+  // adds the named attributes in one transaction, filling in their statuses
+  private CompletableFuture<Void> addAttributeBatch(OperationMetrics op, String tableName,
+                                                    Map<String, AttributeType> attributes, List<String> names,
+                                                    LinkedHashMap<String, StatusCode> statuses)
+  {
+    StatusCode[] results = new StatusCode[names.size()];
 
-        // add in reverse order
-        String[] primKeyAttrNamesArr = new String[primaryKeyAttributeNames.size()];
-        int bigness = primaryKeyAttributeNames.size();
-        for (int i = 0; i < bigness; i++)
+    return runDdl(op, results, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+      if (entry == null)
+      {
+        Arrays.fill(results, StatusCode.TABLE_NOT_FOUND);
+        return new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null);
+      }
+
+      // the whole batch makes one schema version, added in the order their positions are handed out
+      TableSchema table = entry.schema;
+      int position = table.getNextPosition();
+      int schemaVersion = table.getSchemaVersion() + 1;
+      TableSchema.Builder changed = table.toBuilder().setSchemaVersion(schemaVersion);
+      for (int i = 0; i < names.size(); i++)
+      {
+        if (table.doesAttributeExist(names.get(i)))
         {
-          primKeyAttrNamesArr[i] = primaryKeyAttributeNames.get(bigness - 1 - i);
+          results[i] = StatusCode.ATTRIBUTE_ALREADY_EXISTS;
+          continue;
         }
+        writeAttribute(tx, entry.metaDir, names.get(i), attributes.get(names.get(i)), -1, position++,
+                schemaVersion, null);
+        changed.addAttribute(names.get(i), attributes.get(names.get(i)));
+        results[i] = StatusCode.SUCCESS;
+      }
+      writeSchemaVersion(tx, entry.metaDir, schemaVersion);
+      CachedTable written = writeDescriptor(tx, tableName, entry, changed.build());
+      return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, written));
+    })).thenAccept(outcome -> {
+      for (int i = 0; i < names.size(); i++)
+      {
+        statuses.put(names.get(i), results[i]);
+      }
+    });
+  }
 
-        // make TableMetadata object
-        TableMetadata tbm = new TableMetadata(attrNameArr, attrTypeArr, primKeyAttrNamesArr);
+  @Override
+  public LinkedHashMap<String, StatusCode> addAttributes(String tableName, Map<String, AttributeType> attributes) {
+    return addAttributesAsync(tableName, attributes).join();
+  }
 
-        result.put(tableStr, tbm);
-      }
-    }
+  @Override
+  public CompletableFuture<StatusCode> dropAttributeAsync(String tableName, String attributeName) {
+    return metrics.time("dropAttribute", op -> {
+      return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenCompose(entry -> {
+        // check if table exists
+        if (entry == null)
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null));
+
+        TableSchema table = entry.schema;
+        if (!table.doesAttributeExist(attributeName))
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.ATTRIBUTE_NOT_FOUND, null));
+        if (!table.isPrimaryKey(attributeName))
+          return CompletableFuture.completedFuture(clearAttribute(tx, tableName, entry, attributeName));
+
+        // stored records are keyed by the whole primary key, a shorter one would no longer reach them
+        return tx.getRange(entry.rawDir.range().begin, entry.rawDir.range().end, 1, false).thenApply(records ->
+                records.isEmpty() ? clearAttribute(tx, tableName, entry, attributeName)
+                        : new DdlOutcome(StatusCode.ATTRIBUTE_IN_PRIMARY_KEY, null));
+      })).thenApply(outcome -> outcome.status);
+    });
+  }
+
+  // drops an attribute of an existing table in tx
+  private DdlOutcome clearAttribute(KeyValueTransaction tx, String tableName, CachedTable entry, String attributeName)
+  {
+    TableSchema table = entry.schema;
+
+    // begin dropping attribute, the cached type gives us its exact key in the legacy layout too.
+    // Stored values of the attribute are ignored from the new schema version on
+    AttributeType attributeType = table.getAttributeType(attributeName);
+    tx.clear(entry.metaDir.pack(Tuple.from(attributeName)));
+    tx.clear(entry.metaDir.pack(Tuple.from(attributeName, attributeType.name())));
+    writeSchemaVersion(tx, entry.metaDir, table.getSchemaVersion() + 1);
+
+    // its index and aggregates go with it
+    if (table.getIndexState(attributeName) != null)
+      clearIndex(tx, entry, attributeName);
+    if (table.getAggregateState(attributeName) != null)
+      clearAggregate(tx, entry, attributeName);
+
+    CachedTable changed = writeDescriptor(tx, tableName, entry, table.toBuilder()
+            .setSchemaVersion(table.getSchemaVersion() + 1)
+            .dropAttribute(attributeName)
+            .build());
+    return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+  }
 
-    tx.close();
+  @Override
+  public StatusCode dropAttribute(String tableName, String attributeName) {
+    return dropAttributeAsync(tableName, attributeName).join();
+  }
 
-    return result;
+  // clears an index's definition and entries in tx
+  private static void clearIndex(KeyValueTransaction tx, CachedTable table, String attributeName)
+  {
+    tx.clear(table.metaDir.pack(Tuple.from(INDEX_TAG, attributeName)));
+    tx.clear(table.indexDir.range(Tuple.from(attributeName)));
   }
 
   @Override
-  public StatusCode addAttribute(String tableName, String attributeName, AttributeType attributeType) {
-    // check if table exists
-    List<String> tableNames = rootDir.list(db).join();
-    boolean found = false;
+  public CompletableFuture<StatusCode> createIndexAsync(String tableName, String attributeName) {
+    return metrics.time("createIndex", op -> {
+      // the index is defined as BUILDING first, from then on every record write maintains it
+      return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenCompose(entry -> {
+        if (entry == null)
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null));
+
+        TableSchema table = entry.schema;
+        if (!table.doesAttributeExist(attributeName))
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.ATTRIBUTE_NOT_FOUND, null));
+
+        TableMetadata.IndexState state = table.getIndexState(attributeName);
+        if (state == TableMetadata.IndexState.READY)
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.INDEX_ALREADY_EXISTS, null));
+
+        // an interrupted backfill is simply resumed, its entries are set again. Nothing is written
+        if (state == TableMetadata.IndexState.BUILDING)
+          return CompletableFuture.completedFuture(new DdlOutcome(StatusCode.SUCCESS, null));
+
+        CompletableFuture<Subspace> indexDir = entry.indexDir != null ? CompletableFuture.completedFuture(entry.indexDir)
+                : directory.createOrOpen(tx, tablePath(entry.generation, tableName, "index"));
+        return indexDir.thenApply(dir -> {
+          writeIndexState(tx, entry.metaDir, attributeName, TableMetadata.IndexState.BUILDING);
+          CachedTable changed = writeDescriptor(tx, tableName, entry, table.toBuilder()
+                  .setIndex(attributeName, TableMetadata.IndexState.BUILDING)
+                  .build(), dir);
+          return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+        });
+      })).thenCompose(outcome -> {
+        if (outcome.status != StatusCode.SUCCESS)
+          return CompletableFuture.completedFuture(outcome.status);
+
+        return backfillIndex(op, tableName, attributeName, null)
+                .thenCompose(built -> built ? markIndexReady(op, tableName, attributeName)
+                        : CompletableFuture.completedFuture(StatusCode.INDEX_NOT_FOUND));
+      });
+    });
+  }
 
-    for (String name : tableNames)
-    {
-      if (tableName.equals(name))
-      {
-        found = true;
-        break;
-      }
-    }
+  @Override
+  public StatusCode createIndex(String tableName, String attributeName) {
+    return createIndexAsync(tableName, attributeName).join();
+  }
 
-    if (!found)
-      return StatusCode.TABLE_NOT_FOUND;
+  // writes the index entries of the records from begin on, one chunk per transaction. Completes
+  // with false if the index was dropped meanwhile
+  private CompletableFuture<Boolean> backfillIndex(OperationMetrics op, String tableName, String attributeName,
+                                                   byte[] begin)
+  {
+    return runAsync(op, tx -> resolveEntry(tx, tableName).thenCompose(entry -> {
+      if (entry == null || entry.schema.getIndexState(attributeName) != TableMetadata.IndexState.BUILDING)
+        return CompletableFuture.completedFuture(Optional.<byte[]>empty());
+
+      Subspace rawDir = entry.rawDir;
+      return tx.getRange(begin == null ? rawDir.range().begin : begin, rawDir.range().end, BACKFILL_CHUNK_ROWS, false)
+              .thenApply(keyValues -> {
+                for (KeyValue kv : keyValues)
+                {
+                  Tuple primaryKey = rawDir.unpack(kv.getKey());
+                  Record record = RecordManagerImpl.decode(entry.schema, primaryKey, kv.getValue());
+                  RecordManagerImpl.updateIndexes(tx, entry.schema, entry.indexDir, primaryKey, null, record);
+                }
+
+                // the chunk's last key followed by 0x00 is where the next chunk starts, none once the end is reached
+                if (keyValues.size() < BACKFILL_CHUNK_ROWS)
+                  return Optional.of(new byte[0]);
+                return Optional.of(ByteArrayUtil.join(keyValues.get(keyValues.size() - 1).getKey(), new byte[]{0}));
+              });
+    })).thenCompose(next -> {
+      if (!next.isPresent())
+        return CompletableFuture.completedFuture(false);
+      if (next.get().length == 0)
+        return CompletableFuture.completedFuture(true);
+      return backfillIndex(op, tableName, attributeName, next.get());
+    });
+  }
 
+  // marks a backfilled index READY
+  private CompletableFuture<StatusCode> markIndexReady(OperationMetrics op, String tableName, String attributeName)
+  {
+    return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+      if (entry == null || entry.schema.getIndexState(attributeName) != TableMetadata.IndexState.BUILDING)
+        return new DdlOutcome(StatusCode.INDEX_NOT_FOUND, null);
+
+      writeIndexState(tx, entry.metaDir, attributeName, TableMetadata.IndexState.READY);
+      CachedTable changed = writeDescriptor(tx, tableName, entry, entry.schema.toBuilder()
+              .setIndex(attributeName, TableMetadata.IndexState.READY)
+              .build());
+      return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+    })).thenApply(outcome -> outcome.status);
+  }
 
-    // check if attribute already exists
-    List<String> path = new ArrayList<>();
-    path.add(tableName);
-    path.add("meta");
-    DirectorySubspace metaDir = rootDir.open(db, path).join();
+  @Override
+  public CompletableFuture<StatusCode> dropIndexAsync(String tableName, String attributeName) {
+    return metrics.time("dropIndex", op -> {
+      return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+        if (entry == null)
+          return new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null);
+
+        if (entry.schema.getIndexState(attributeName) == null)
+          return new DdlOutcome(StatusCode.INDEX_NOT_FOUND, null);
+
+        clearIndex(tx, entry, attributeName);
+        CachedTable changed = writeDescriptor(tx, tableName, entry, entry.schema.toBuilder()
+                .setIndex(attributeName, null)
+                .build());
+        return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+      })).thenApply(outcome -> outcome.status);
+    });
+  }
 
-    Transaction trans = db.createTransaction();
-    List<KeyValue> keyValues = trans.getRange(metaDir.range()).asList().join();
+  @Override
+  public StatusCode dropIndex(String tableName, String attributeName) {
+    return dropIndexAsync(tableName, attributeName).join();
+  }
 
-    boolean foundAttribute = false;
-    for (KeyValue kv : keyValues)
-    {
-      Tuple keyTuple = Tuple.fromBytes(kv.getKey());
-      List<Object> keyItems = keyTuple.getItems();
+  /**
+   * Keep the sum, minimum and maximum of an INT or DOUBLE attribute's values, read with
+   * {RecordManagerImpl#aggregate}. The records already stored are counted in first, a chunk per
+   * transaction, while record writes keep the aggregates up to date; a call that fails resumes the
+   * counting when made again.
+   *
+   * @return ATTRIBUTE_TYPE_NOT_SUPPORTED for a VARCHAR attribute, AGGREGATE_ALREADY_EXISTS if its
+   * aggregates are kept already, AGGREGATE_NOT_FOUND if they were dropped before they were counted
+   */
+  public CompletableFuture<StatusCode> createAggregateAsync(String tableName, String attributeName)
+  {
+    if (attributeName == null)
+      return CompletableFuture.completedFuture(StatusCode.ATTRIBUTE_NOT_FOUND);
+    return metrics.time("createAggregate", op -> createStatistic(op, tableName, attributeName));
+  }
+
+  public StatusCode createAggregate(String tableName, String attributeName)
+  {
+    return createAggregateAsync(tableName, attributeName).join();
+  }
+
+  // defines a statistic as BUILDING, from then on record writes maintain it, then counts the stored
+  // records into it and marks it READY. attributeName is null for the row count
+  private CompletableFuture<StatusCode> createStatistic(OperationMetrics op, String tableName, String attributeName)
+  {
+    return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+      if (entry == null)
+        return new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null);
 
-      String name = (String)keyItems.get(1);
-      if (name.equals(attributeName))
+      TableSchema table = entry.schema;
+      if (attributeName != null)
       {
-        foundAttribute = true;
-        break;
+        AttributeType attributeType = table.getAttributeType(attributeName);
+        if (attributeType == null)
+          return new DdlOutcome(StatusCode.ATTRIBUTE_NOT_FOUND, null);
+        if (attributeType == AttributeType.VARCHAR)
+          return new DdlOutcome(StatusCode.ATTRIBUTE_TYPE_NOT_SUPPORTED, null);
       }
-    }
-
-    if (foundAttribute)
-      return StatusCode.ATTRIBUTE_ALREADY_EXISTS;
 
-    trans.close();
-    // add attribute if not found
+      TableMetadata.IndexState state = TableStatistics.state(table, attributeName);
+      if (state == TableMetadata.IndexState.READY)
+        return new DdlOutcome(StatusCode.AGGREGATE_ALREADY_EXISTS, null);
+
+      // an interrupted build is resumed from its progress. Nothing is written
+      if (state == TableMetadata.IndexState.BUILDING)
+        return new DdlOutcome(StatusCode.SUCCESS, null);
+
+      writeStatisticState(tx, entry.metaDir, attributeName, TableMetadata.IndexState.BUILDING);
+      CachedTable changed = writeDescriptor(tx, tableName, entry,
+              withStatistic(table, attributeName, TableMetadata.IndexState.BUILDING));
+      return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+    })).thenCompose(outcome -> {
+      if (outcome.status != StatusCode.SUCCESS)
+        return CompletableFuture.completedFuture(outcome.status);
+
+      return buildStatistic(op, tableName, attributeName)
+              .thenCompose(built -> built ? markStatisticReady(op, tableName, attributeName)
+                      : CompletableFuture.completedFuture(StatusCode.AGGREGATE_NOT_FOUND));
+    });
+  }
 
-    Transaction tx = db.createTransaction();
+  // counts the stored records into a statistic being built, one chunk per transaction, from where
+  // its progress key says the build has got to. Completes with false if it was dropped meanwhile
+  private CompletableFuture<Boolean> buildStatistic(OperationMetrics op, String tableName, String attributeName)
+  {
+    return runAsync(op, tx -> resolveEntry(tx, tableName).thenCompose(entry -> {
+      if (entry == null || TableStatistics.state(entry.schema, attributeName) != TableMetadata.IndexState.BUILDING)
+        return CompletableFuture.completedFuture(Optional.<Boolean>empty());
+
+      Subspace rawDir = entry.rawDir;
+      byte[] builtKey = TableStatistics.builtKey(entry.metaDir, attributeName);
+      return tx.get(builtKey).thenCompose(built ->
+              tx.getRange(built == null ? rawDir.range().begin : built, rawDir.range().end, BACKFILL_CHUNK_ROWS, false))
+              .thenApply(keyValues -> {
+                if (attributeName == null)
+                {
+                  TableStatistics.addRows(tx, entry.metaDir, keyValues.size());
+                }
+                else
+                {
+                  List<Record> records = new ArrayList<>(keyValues.size());
+                  for (KeyValue kv : keyValues)
+                  {
+                    records.add(RecordManagerImpl.decode(entry.schema, rawDir.unpack(kv.getKey()), kv.getValue()));
+                  }
+                  TableStatistics.addValues(tx, entry.metaDir, attributeName, records);
+                }
+
+                // the chunk's last key followed by 0x00 is where the next chunk starts, the end of
+                // the records once they are all counted
+                boolean done = keyValues.size() < BACKFILL_CHUNK_ROWS;
+                tx.set(builtKey, done ? rawDir.range().end
+                        : ByteArrayUtil.join(keyValues.get(keyValues.size() - 1).getKey(), new byte[]{0}));
+                return Optional.of(done);
+              });
+    })).thenCompose(done -> {
+      if (!done.isPresent())
+        return CompletableFuture.completedFuture(false);
+      if (done.get())
+        return CompletableFuture.completedFuture(true);
+      return buildStatistic(op, tableName, attributeName);
+    });
+  }
 
-    // key tuples
-    Tuple keyTuple = new Tuple();
-    Tuple valueTuple = new Tuple();
+  // marks a built statistic READY, record writes then change it without reading its progress
+  private CompletableFuture<StatusCode> markStatisticReady(OperationMetrics op, String tableName, String attributeName)
+  {
+    return runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+      if (entry == null || TableStatistics.state(entry.schema, attributeName) != TableMetadata.IndexState.BUILDING)
+        return new DdlOutcome(StatusCode.AGGREGATE_NOT_FOUND, null);
+
+      writeStatisticState(tx, entry.metaDir, attributeName, TableMetadata.IndexState.READY);
+      tx.clear(TableStatistics.builtKey(entry.metaDir, attributeName));
+      CachedTable changed = writeDescriptor(tx, tableName, entry,
+              withStatistic(entry.schema, attributeName, TableMetadata.IndexState.READY));
+      return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+    })).thenApply(outcome -> outcome.status);
+  }
 
-    keyTuple = keyTuple.add(attributeName);
-    keyTuple = keyTuple.add(attributeType.name());
+  /**
+   * Stop keeping an attribute's aggregates and clear them
+   *
+   * @return AGGREGATE_NOT_FOUND if they are not kept
+   */
+  public CompletableFuture<StatusCode> dropAggregateAsync(String tableName, String attributeName)
+  {
+    return metrics.time("dropAggregate", op -> runDdl(op, NO_RESULTS, tx -> resolveEntry(tx, tableName).thenApply(entry -> {
+      if (entry == null)
+        return new DdlOutcome(StatusCode.TABLE_NOT_FOUND, null);
 
-    // assumes added one cannot be primaryKey
-    boolean var = false;
-    valueTuple = valueTuple.add(var);
+      if (attributeName == null || entry.schema.getAggregateState(attributeName) == null)
+        return new DdlOutcome(StatusCode.AGGREGATE_NOT_FOUND, null);
 
-    tx.set(metaDir.pack(keyTuple), valueTuple.pack());
+      clearAggregate(tx, entry, attributeName);
+      CachedTable changed = writeDescriptor(tx, tableName, entry, withStatistic(entry.schema, attributeName, null));
+      return new DdlOutcome(StatusCode.SUCCESS, () -> cacheTable(tableName, changed));
+    })).thenApply(outcome -> outcome.status));
+  }
 
-    tx.commit().join();
-    tx.close();
+  public StatusCode dropAggregate(String tableName, String attributeName)
+  {
+    return dropAggregateAsync(tableName, attributeName).join();
+  }
 
-    //System.out.println("Done with addAttribute");
-    return StatusCode.SUCCESS;
+  // clears the definition and counters of an attribute's aggregates in tx
+  private static void clearAggregate(KeyValueTransaction tx, CachedTable table, String attributeName)
+  {
+    tx.clear(table.metaDir.pack(Tuple.from(AGGREGATE_TAG, attributeName)));
+    TableStatistics.clear(tx, table.metaDir, attributeName);
   }
 
   @Override
-  public StatusCode dropAttribute(String tableName, String attributeName) {
-    // check if table exists
-    List<String> tableNames = rootDir.list(db).join();
-    boolean found = false;
+  public CompletableFuture<StatusCode> dropAllTablesAsync() {
+    return metrics.time("dropAllTables", op -> {
+      // switch to an empty root directory in one transaction, however many tables there are. Every
+      // transaction reads the generation, so a concurrent one conflicts and is retried against the new root
+      return runDdl(op, NO_RESULTS, tx -> tx.get(ROOT_GENERATION_KEY).thenCompose(value -> {
+        long old = decodeVersion(value);
+        long generation = old + 1;
+        tx.set(ROOT_GENERATION_KEY, encodeVersion(generation));
+        tx.set(GARBAGE_ROOTS.pack(Tuple.from(old)), new byte[0]);
+        bumpCatalogVersion(tx);
+        return directory.createOrOpen(tx, rootPath(generation)).thenApply(root ->
+                new DdlOutcome(StatusCode.SUCCESS, () -> {
+                  if (generation > catalog.rootGeneration)
+                    resetCatalog(generation);
+                }));
+      })).thenApply(outcome -> {
+        // the old root is removed in the background
+        collectGarbage();
+        return outcome.status;
+      });
+    });
+  }
 
-    for (String name : tableNames)
-    {
-      if (tableName.equals(name))
+  // removes the root directories dropAllTables has replaced and the DDL markers that expired while
+  // no DDL ran, completes when they are gone
+  CompletableFuture<Void> collectGarbage()
+  {
+    return store.runAsync(tx -> {
+      clearExpiredDdlMarkers(tx);
+      return tx.getRange(GARBAGE_ROOTS.range());
+    }).thenCompose(garbage -> {
+      CompletableFuture<Void> chain = AsyncUtil.DONE;
+      for (KeyValue kv : garbage)
       {
-        found = true;
-        break;
+        long generation = GARBAGE_ROOTS.unpack(kv.getKey()).getLong(0);
+        chain = chain.thenCompose(previous -> removeRoot(generation));
       }
-    }
+      return chain;
+    }).exceptionally(e -> {
+      System.out.println("ERROR: dropped tables not removed: " + e);
+      return null;
+    });
+  }
+
+  // removes the tables of an old root directory batch by batch, then the root itself and its
+  // descriptors. Other table managers may be removing it as well
+  private CompletableFuture<Void> removeRoot(long generation)
+  {
+    List<String> root = rootPath(generation);
+    return store.readAsync(tx -> directory.exists(tx, root).thenCompose(exists -> exists
+            ? directory.list(tx, root) : CompletableFuture.completedFuture(Collections.<String>emptyList())))
+            .thenCompose(tableNames -> {
+              CompletableFuture<Void> chain = AsyncUtil.DONE;
+              for (int start = 0; start < tableNames.size(); start += MAX_TABLES_PER_TRANSACTION)
+              {
+                List<String> batch = tableNames.subList(start, Math.min(start + MAX_TABLES_PER_TRANSACTION, tableNames.size()));
+                chain = chain.thenCompose(previous -> store.runAsync(tx -> {
+                  CompletableFuture<Void> removals = AsyncUtil.DONE;
+                  for (String tableName : batch)
+                  {
+                    List<String> path = tablePath(generation, tableName);
+                    removals = removals.thenCompose(removed -> directory.exists(tx, path))
+                            .thenCompose(exists -> exists ? directory.remove(tx, path) : AsyncUtil.DONE);
+                  }
+                  return removals;
+                }));
+              }
+              return chain;
+            })
+            .thenCompose(tablesRemoved -> store.runAsync(tx -> {
+              tx.clear(GARBAGE_ROOTS.pack(Tuple.from(generation)));
+              tx.clear(DESCRIPTORS.range(Tuple.from(generation)));
+              return directory.exists(tx, root)
+                      .thenCompose(exists -> exists ? directory.remove(tx, root) : AsyncUtil.DONE);
+            }));
+  }
+
+  @Override
+  public StatusCode dropAllTables() {
+    return dropAllTablesAsync().join();
+  }
+
+
+  /**
+   * Rewrites every meta directory still in the legacy (attributeName, typeName) layout into the
+   * point-lookup layout, stores a descriptor for every table created before descriptors were, and
+   * counts the rows of every table created before row counts were kept. The tables' metadata does
+   * not change.
+   *
+   * @return the number of tables that were rewritten
+   */
+  public int migrateCatalog()
+  {
+    return metrics.time("migrateCatalog", op -> CompletableFuture.completedFuture(migrateCatalog(op))).join();
+  }
+
+  private int migrateCatalog(OperationMetrics op)
+  {
+    TreeMap<String, TableSchema> tables = readAsync(op, tx -> tx.get(CATALOG_VERSION_KEY)
+            .thenCompose(value -> loadCatalog(tx, decodeVersion(value)))).join();
+    List<String> tableNames = new ArrayList<>(tables.keySet());
 
-    if (!found)
-      return StatusCode.TABLE_NOT_FOUND;
+    Set<String> migrated = new HashSet<>();
+    for (int start = 0; start < tableNames.size(); start += MAX_TABLES_PER_TRANSACTION)
+    {
+      List<String> batch = tableNames.subList(start, Math.min(start + MAX_TABLES_PER_TRANSACTION, tableNames.size()));
+      migrated.addAll(runAsync(op, tx -> migrateTables(tx, batch)).join());
+    }
 
-      // begin dropping attribute
-      Transaction tx = db.createTransaction();
+    // every table has a descriptor by now, so its row count can be built like any statistic
+    for (Map.Entry<String, TableSchema> table : tables.entrySet())
+    {
+      if (table.getValue().getCountState() != TableMetadata.IndexState.READY
+              && createStatistic(op, table.getKey(), null).join() == StatusCode.SUCCESS)
+        migrated.add(table.getKey());
+    }
+    return migrated.size();
+  }
 
-      List<String> path = new ArrayList<>();
-      path.add(tableName);
-      path.add("meta");
-      DirectorySubspace metaDir = rootDir.open(db, path).join();
+  // rewrites the legacy meta entries and missing descriptors of the given tables in tx, completes
+  // with the names of those that needed it
+  private CompletableFuture<List<String>> migrateTables(KeyValueTransaction tx, List<String> tableNames)
+  {
+    List<CompletableFuture<Boolean>> rewrites = new ArrayList<>(tableNames.size());
+    for (String tableName : tableNames)
+    {
+      rewrites.add(resolveEntry(tx, tableName).thenCompose(entry -> {
+        if (entry == null)
+          return CompletableFuture.completedFuture(false);
+
+        Subspace metaDir = entry.metaDir;
+        return tx.getRange(metadataRange(metaDir)).thenApply(keyValues -> {
+          boolean legacy = hasLegacyEntries(metaDir, keyValues);
+          if (legacy)
+          {
+            // tagged entries are not in the legacy layout, they are kept as they are
+            TableSchema table = entry.schema;
+            for (KeyValue kv : keyValues)
+            {
+              if (!isTaggedEntry(metaDir.unpack(kv.getKey())))
+                tx.clear(kv.getKey());
+            }
+            for (int i = 0; i < table.getAttributeCount(); i++)
+            {
+              writeAttribute(tx, metaDir, table.getAttributeName(i), table.getAttributeType(i),
+                      table.primaryKeyIndexOf(i), i, table.getSinceVersion(i), table.getDefaultValue(i));
+            }
+          }
 
-      List<KeyValue> keyValues = tx.getRange(metaDir.range()).asList().join();
+          if (entry.descriptor != null)
+            return legacy;
+          writeDescriptor(tx, tableName, entry, entry.schema);
+          return true;
+        });
+      }));
+    }
 
-      boolean foundAttribute = false;
-      for (KeyValue kv : keyValues)
+    return AsyncUtil.whenAll(rewrites).thenApply(done -> {
+      List<String> migrated = new ArrayList<>();
+      for (int i = 0; i < rewrites.size(); i++)
       {
-        Tuple keyTuple = Tuple.fromBytes(kv.getKey());
-        List<Object> keyItems = keyTuple.getItems();
-        String name = (String)keyItems.get(1);
+        if (rewrites.get(i).join())
+          migrated.add(tableNames.get(i));
+      }
+      return migrated;
+    });
+  }
 
-        if (name.equals(attributeName))
+  /**
+   * Write the whole catalog to a binary snapshot file (see {CatalogSnapshot}): every table's
+   * metadata and descriptor, as of one catalog version. Only the descriptors of tables that are
+   * cached are read. The file is replaced once the snapshot is complete.
+   *
+   * @return the number of tables written
+   */
+  public int exportCatalog(Path path) throws IOException
+  {
+    CatalogSnapshot snapshot = metrics.time("exportCatalog", op -> {
+      long[] version = new long[1];
+      long[] generation = new long[1];
+      return readAsync(op, tx -> tx.get(CATALOG_VERSION_KEY).thenCompose(value -> {
+        version[0] = decodeVersion(value);
+        return tx.get(ROOT_GENERATION_KEY);
+      }).thenCompose(value -> {
+        generation[0] = decodeVersion(value);
+        return directory.list(tx, rootPath(generation[0]));
+      }).thenCompose(tableNames -> readEntries(tx, generation[0], tableNames).thenApply(entries -> {
+        List<CatalogSnapshot.Table> tables = new ArrayList<>(tableNames.size());
+        for (int i = 0; i < tableNames.size(); i++)
         {
-          // clear found attribute
-          tx.clear(kv.getKey());
-          foundAttribute = true;
-          break;
+          if (entries.get(i) != null)
+            tables.add(new CatalogSnapshot.Table(tableNames.get(i), entries.get(i).descriptor, entries.get(i).schema));
         }
-      }
-
-      if (!foundAttribute)
-        return StatusCode.ATTRIBUTE_NOT_FOUND;
+        return new CatalogSnapshot(version[0], generation[0], tables);
+      })));
+    }).join();
 
-      tx.close();
-
-      return StatusCode.SUCCESS;
+    snapshot.write(path);
+    return snapshot.tables.size();
   }
 
-  @Override
-  public StatusCode dropAllTables() {
-    // remove directories
-   List<String> tableNames = rootDir.list(db).join();
+  /**
+   * Load a snapshot written by exportCatalog. A table whose descriptor in the store is still the
+   * one in the snapshot is cached as it is there, without reading its metadata, so a new node warms
+   * its cache with one read of the descriptors; if the catalog has not changed at all since the
+   * export, listTables is served from the cache right away. Tables missing from the store are
+   * created as they were in the snapshot, up to MAX_TABLES_PER_TRANSACTION per transaction, which
+   * restores a lost catalog (not the tables' records). A table the store holds under the same name
+   * but with another descriptor is left as it is.
+   *
+   * @return the status of every table of the snapshot, in name order: SUCCESS if the table is as in
+   * the snapshot now, TABLE_ALREADY_EXISTS if the store holds another table of that name
+   * @throws IOException if the file cannot be read or is not a catalog snapshot
+   */
+  public LinkedHashMap<String, StatusCode> importCatalog(Path path) throws IOException
+  {
+    CatalogSnapshot snapshot = CatalogSnapshot.read(path);
+    return metrics.time("importCatalog", op -> importCatalog(op, snapshot)).join();
+  }
 
-    for (String name : tableNames)
-    {
-      rootDir.remove(db, PathUtil.from(name)).join();
-    }
+  private CompletableFuture<LinkedHashMap<String, StatusCode>> importCatalog(OperationMetrics op, CatalogSnapshot snapshot)
+  {
+    long[] version = new long[1];
+    long[] generation = new long[1];
+
+    // every descriptor of the catalog, tableName -> descriptor, in one range read
+    return readAsync(op, tx -> tx.get(CATALOG_VERSION_KEY).thenCompose(value -> {
+      version[0] = decodeVersion(value);
+      return tx.get(ROOT_GENERATION_KEY);
+    }).thenCompose(value -> {
+      generation[0] = decodeVersion(value);
+      Subspace descriptors = DESCRIPTORS.get(generation[0]);
+      return tx.getRange(descriptors.range()).thenApply(keyValues -> {
+        HashMap<String, byte[]> stored = new HashMap<>();
+        for (KeyValue kv : keyValues)
+        {
+          stored.put(descriptors.unpack(kv.getKey()).getString(0), kv.getValue());
+        }
+        return stored;
+      });
+    })).thenCompose(stored -> {
+      LinkedHashMap<String, StatusCode> statuses = new LinkedHashMap<>();
+      TreeMap<String, TableSchema> listed = new TreeMap<>();
+      List<String> missingNames = new ArrayList<>();
+      List<TableSchema> missingSchemas = new ArrayList<>();
+      for (CatalogSnapshot.Table table : snapshot.tables)
+      {
+        byte[] descriptor = stored.get(table.name);
+        if (descriptor == null)
+        {
+          statuses.put(table.name, null);
+          missingNames.add(table.name);
+          missingSchemas.add(table.schema);
+        }
+        else if (generation[0] == snapshot.rootGeneration && Arrays.equals(descriptor, table.descriptor))
+        {
+          Tuple prefixes = Tuple.fromBytes(descriptor);
+          cacheTable(table.name, new CachedTable(generation[0], descriptor, table.schema,
+                  new Subspace(prefixes.getBytes(1)), new Subspace(prefixes.getBytes(2)),
+                  prefixes.get(3) == null ? null : new Subspace(prefixes.getBytes(3))));
+          statuses.put(table.name, StatusCode.SUCCESS);
+          listed.put(table.name, table.schema);
+        }
+        else
+        {
+          statuses.put(table.name, StatusCode.TABLE_ALREADY_EXISTS);
+        }
+      }
 
-    // clear keys
-    Transaction tx = db.createTransaction();
-    tx.clear(rootDir.range());
-    tx.commit().join();
+      // nothing changed since the export: the snapshot is the whole catalog as of its version
+      if (version[0] == snapshot.catalogVersion && listed.size() == stored.size() && listed.size() == snapshot.tables.size())
+        installListed(generation[0], version[0], listed);
 
-    tx.close();
+      // the missing tables are created in batches, one after another like createTables
+      CompletableFuture<Void> chain = AsyncUtil.DONE;
+      int start = 0;
+      while (start < missingNames.size())
+      {
+        int end = start;
+        long batchBytes = 0;
+        while (end < missingNames.size() && end - start < MAX_TABLES_PER_TRANSACTION)
+        {
+          long bytes = estimateTableBytes(missingNames.get(end), missingSchemas.get(end));
+          if (end > start && batchBytes + bytes > MAX_TRANSACTION_BYTES)
+            break;
+          batchBytes += bytes;
+          end++;
+        }
 
-    return StatusCode.SUCCESS;
+        List<String> batchNames = missingNames.subList(start, end);
+        List<TableSchema> batchSchemas = missingSchemas.subList(start, end);
+        chain = chain.thenCompose(previous -> createTableBatch(op, batchNames, batchSchemas).thenAccept(results -> {
+          for (int i = 0; i < results.length; i++)
+          {
+            statuses.put(batchNames.get(i), results[i]);
+          }
+        }));
+        start = end;
+      }
+      return chain.thenApply(done -> statuses);
+    });
   }
 }
@@ -0,0 +1,173 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * TableManagerMetrics holds the {OperationMetrics} of every operation of one {TableManagerImpl}.
+ * They can be read with snapshot() or, once registerMBeans has been called, over JMX as
+ * TableManager:type=Operation,instance=...,name=... MBeans.
+ */
+public class TableManagerMetrics {
+
+  private final ConcurrentHashMap<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+  private volatile boolean enabled = true;
+  private final List<ObjectName> registered = new ArrayList<>();
+  private String instanceName;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public OperationMetrics operation(String name) {
+    return operations.computeIfAbsent(name, OperationMetrics::new);
+  }
+
+  /**
+   * @return a copy of every operation's metrics, by operation name
+   */
+  public Map<String, OperationMetrics.Snapshot> snapshot() {
+    Map<String, OperationMetrics.Snapshot> result = new TreeMap<>();
+    for (OperationMetrics metrics : operations.values())
+      result.put(metrics.getName(), metrics.snapshot());
+    return result;
+  }
+
+  public void reset() {
+    for (OperationMetrics metrics : operations.values())
+      metrics.reset();
+  }
+
+  /**
+   * Register an MBean per operation with the platform MBean server. Operations first used after
+   * this call are registered when they are first used.
+   *
+   * @param instanceName distinguishes this table manager from others in the same JVM
+   */
+  public synchronized void registerMBeans(String instanceName) {
+    this.instanceName = instanceName;
+    for (OperationMetrics metrics : operations.values())
+      register(metrics);
+  }
+
+  public synchronized void unregisterMBeans() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registered) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        System.out.println("ERROR: MBean not unregistered: " + e);
+      }
+    }
+    registered.clear();
+    instanceName = null;
+  }
+
+  private synchronized void register(OperationMetrics metrics) {
+    if (instanceName == null)
+      return;
+    try {
+      ObjectName name = new ObjectName("TableManager:type=Operation,instance=" + ObjectName.quote(instanceName)
+              + ",name=" + metrics.getName());
+      if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        registered.add(name);
+      }
+    } catch (JMException e) {
+      System.out.println("ERROR: MBean not registered: " + e);
+    }
+  }
+
+  /**
+   * Time one call of an operation
+   * @param name the operation
+   * @param call starts the call, gets the metrics to record its transactions in (null if disabled)
+   * @return the call's future
+   */
+  <T> CompletableFuture<T> time(String name, Function<OperationMetrics, CompletableFuture<T>> call) {
+    if (!enabled)
+      return call.apply(null);
+
+    OperationMetrics metrics = operations.get(name);
+    if (metrics == null) {
+      metrics = operation(name);
+      register(metrics);
+    }
+
+    OperationMetrics recorder = metrics;
+    long start = System.nanoTime();
+    CompletableFuture<T> result;
+    try {
+      result = call.apply(recorder);
+    } catch (RuntimeException e) {
+      recorder.record(System.nanoTime() - start, true);
+      throw e;
+    }
+    return result.whenComplete((value, error) -> recorder.record(System.nanoTime() - start, error != null));
+  }
+
+  /**
+   * Run a transaction on behalf of an operation, counting its attempts, conflicts, commit and traffic
+   */
+  static <T> CompletableFuture<T> runAsync(KeyValueStore store, OperationMetrics metrics,
+                                           Function<KeyValueTransaction, CompletableFuture<T>> retryable) {
+    if (metrics == null)
+      return store.runAsync(retryable::apply);
+
+    boolean[] retry = {false};
+    return store.runAsync(tx -> {
+      metrics.transaction(retry[0]);
+      retry[0] = true;
+      return retryable.apply(metrics.instrument(tx));
+    }, conflict -> {
+      if (conflict)
+        metrics.conflict();
+    }).thenApply(value -> {
+      metrics.commit();
+      return value;
+    });
+  }
+
+  /**
+   * Run a read-only transaction on behalf of an operation
+   */
+  static <T> CompletableFuture<T> readAsync(KeyValueStore store, OperationMetrics metrics,
+                                            Function<KeyValueTransaction, CompletableFuture<T>> retryable) {
+    if (metrics == null)
+      return store.readAsync(retryable::apply);
+
+    boolean[] retry = {false};
+    return store.readAsync(tx -> {
+      metrics.transaction(retry[0]);
+      retry[0] = true;
+      return retryable.apply(metrics.instrument(tx));
+    });
+  }
+
+  /**
+   * Run a read-only snapshot transaction on behalf of an operation, see {KeyValueStore#snapshotAsync}
+   */
+  static <T> CompletableFuture<T> snapshotAsync(KeyValueStore store, OperationMetrics metrics, long maxStalenessMillis,
+                                                Function<KeyValueTransaction, CompletableFuture<T>> retryable) {
+    if (metrics == null)
+      return store.snapshotAsync(maxStalenessMillis, retryable::apply);
+
+    boolean[] retry = {false};
+    return store.snapshotAsync(maxStalenessMillis, tx -> {
+      metrics.transaction(retry[0]);
+      retry[0] = true;
+      return retryable.apply(metrics.instrument(tx));
+    });
+  }
+}
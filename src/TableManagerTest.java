@@ -1,10 +1,25 @@
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.w3c.dom.Attr;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class TableManagerTest {
   public static String EmployeeTableName = "Employee";
@@ -19,11 +34,24 @@ public class TableManagerTest {
       AttributeType.VARCHAR, AttributeType.INT};
   public static String[] DepartmentTablePKAttributes = new String[]{"Dno"};
 
+  // one store and catalog cache for every test
+  private static TableManagerFactory factory;
+
   private TableManager tableManager;
 
+  @BeforeClass
+  public static void openFactory() {
+    factory = new TableManagerFactory();
+  }
+
+  @AfterClass
+  public static void closeFactory() {
+    factory.close();
+  }
+
   @Before
   public void init(){
-    tableManager = new TableManagerImpl();
+    tableManager = factory.create();
   }
 
   /**
@@ -255,4 +283,366 @@ public class TableManagerTest {
     assertEquals(employeeTable, tables.get(EmployeeTableName));
 
   }
-}
\ No newline at end of file
+
+  @Test
+  public void unitTest8() {
+    System.out.println();
+    System.out.println("TEST 8");
+
+    tableManager.dropAllTables();
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+
+    List<TableDefinition> definitions = new ArrayList<>();
+    definitions.add(new TableDefinition(EmployeeTableName, EmployeeTableAttributeNames,
+        EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    definitions.add(new TableDefinition(DepartmentTableName, DepartmentTableAttributeNames,
+        DepartmentTableAttributeTypes, new String[]{"Manager"}));
+    HashMap<String, TableMetadata> expectTables = new HashMap<>();
+    expectTables.put(EmployeeTableName, new TableMetadata(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes));
+    for (int i = 0; i < 250; i++) {
+      String departmentTableName = DepartmentTableName + i;
+      definitions.add(new TableDefinition(departmentTableName, DepartmentTableAttributeNames,
+          DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+      expectTables.put(departmentTableName, new TableMetadata(DepartmentTableAttributeNames,
+          DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    }
+    definitions.add(new TableDefinition(DepartmentTableName + 0, DepartmentTableAttributeNames,
+        DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+
+    List<StatusCode> statuses = tableManager.createTables(definitions);
+    assertEquals(definitions.size(), statuses.size());
+    assertEquals(StatusCode.TABLE_ALREADY_EXISTS, statuses.get(0));
+    assertEquals(StatusCode.TABLE_CREATION_PRIMARY_KEY_NOT_FOUND, statuses.get(1));
+    for (int i = 2; i < definitions.size() - 1; i++) {
+      assertEquals(StatusCode.SUCCESS, statuses.get(i));
+    }
+    assertEquals(StatusCode.TABLE_ALREADY_EXISTS, statuses.get(definitions.size() - 1));
+
+    Map<String, AttributeType> attributes = new LinkedHashMap<>();
+    attributes.put("Birthday", AttributeType.VARCHAR);
+    attributes.put("SSN", AttributeType.INT);
+    attributes.put("Salary", AttributeType.DOUBLE);
+    Map<String, StatusCode> attributeStatuses = tableManager.addAttributes(EmployeeTableName, attributes);
+    assertEquals(StatusCode.SUCCESS, attributeStatuses.get("Birthday"));
+    assertEquals(StatusCode.ATTRIBUTE_ALREADY_EXISTS, attributeStatuses.get("SSN"));
+    assertEquals(StatusCode.SUCCESS, attributeStatuses.get("Salary"));
+    expectTables.get(EmployeeTableName).addAttribute("Birthday", AttributeType.VARCHAR);
+    expectTables.get(EmployeeTableName).addAttribute("Salary", AttributeType.DOUBLE);
+
+    assertEquals(StatusCode.TABLE_NOT_FOUND,
+        tableManager.addAttributes("Project", attributes).get("Birthday"));
+
+    assertEquals(expectTables, tableManager.listTables());
+  }
+
+  @Test
+  public void unitTest9() {
+    System.out.println();
+    System.out.println("TEST 9");
+
+    tableManager.dropAllTables();
+    TableManagerMetrics metrics = ((TableManagerImpl) tableManager).getMetrics();
+    metrics.reset();
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(StatusCode.TABLE_ALREADY_EXISTS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    tableManager.listTables();
+
+    Map<String, OperationMetrics.Snapshot> snapshot = metrics.snapshot();
+    OperationMetrics.Snapshot createTable = snapshot.get("createTable");
+    assertEquals(2, createTable.calls);
+    assertEquals(0, createTable.errors);
+    assertTrue(createTable.transactions >= 2);
+    assertEquals(2, createTable.commits);
+    assertEquals(createTable.transactions - 2, createTable.retries);
+    assertTrue(createTable.conflicts <= createTable.retries);
+    // the directory layer's reads are counted too
+    assertTrue(createTable.pointReads + createTable.rangeReads > 2);
+    assertTrue(createTable.bytesWritten > 0);
+    assertTrue(createTable.p50Micros > 0);
+    assertTrue(createTable.p50Micros <= createTable.p99Micros);
+    assertTrue(createTable.p99Micros <= createTable.maxMicros);
+    assertEquals(1, snapshot.get("listTables").calls);
+    assertEquals(0, snapshot.get("listTables").commits);
+
+    metrics.setEnabled(false);
+    tableManager.listTables();
+    assertEquals(1, metrics.snapshot().get("listTables").calls);
+    metrics.setEnabled(true);
+  }
+
+  @Test
+  public void unitTest10() {
+    System.out.println();
+    System.out.println("TEST 10");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl tableManager = new TableManagerImpl(store);
+
+    List<TableDefinition> definitions = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      definitions.add(new TableDefinition(DepartmentTableName + i, DepartmentTableAttributeNames,
+          DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    }
+    tableManager.createTables(definitions);
+    assertEquals(250, tableManager.listTables().size());
+
+    // one transaction, however many tables there are
+    tableManager.getMetrics().reset();
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAllTables());
+    assertEquals(1, tableManager.getMetrics().snapshot().get("dropAllTables").transactions);
+    assertTrue(tableManager.listTables().isEmpty());
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(1, new TableManagerImpl(store).listTables().size());
+
+    // the dropped tables are removed in the background
+    tableManager.collectGarbage().join();
+    assertFalse(store.readAsync(tx -> store.directory().exists(tx, Collections.singletonList("Tables"))).join());
+
+    assertEquals(StatusCode.SUCCESS, tableManager.deleteTable(EmployeeTableName));
+    assertEquals(StatusCode.TABLE_NOT_FOUND, tableManager.deleteTable(EmployeeTableName));
+    assertTrue(new TableManagerImpl(store).listTables().isEmpty());
+  }
+
+  @Test
+  public void unitTest11() {
+    System.out.println();
+    System.out.println("TEST 11");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl tableManager = new TableManagerImpl(store);
+    TableManagerImpl staleTableManager = new TableManagerImpl(store);
+    staleTableManager.listTables();
+
+    List<TableDefinition> definitions = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      definitions.add(new TableDefinition(String.format("%s%02d", DepartmentTableName, i), DepartmentTableAttributeNames,
+          DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    }
+    tableManager.createTables(definitions);
+    TableMetadata department = new TableMetadata(DepartmentTableAttributeNames, DepartmentTableAttributeTypes,
+        DepartmentTablePKAttributes);
+
+    // from the cache, and read from the database by a table manager whose cache is out of date
+    for (TableManager manager : new TableManager[]{tableManager, staleTableManager}) {
+      TablePage page = manager.listTables(null, 10);
+      assertEquals(10, page.getTables().size());
+      assertEquals("Department00", page.getTables().keySet().iterator().next());
+      assertEquals(department, page.getTables().get("Department09"));
+      assertEquals("Department09", page.getContinuation());
+
+      page = manager.listTables(page.getContinuation(), 10);
+      assertEquals("Department10", page.getTables().keySet().iterator().next());
+      page = manager.listTables(page.getContinuation(), 10);
+      assertEquals(5, page.getTables().size());
+      assertEquals(null, page.getContinuation());
+
+      List<String> names = manager.listTableNames("Department20", 3);
+      assertEquals(Arrays.asList("Department21", "Department22", "Department23"), names);
+      assertEquals(25, manager.listTableNames(null, 100).size());
+    }
+  }
+
+  @Test
+  public void unitTest12() {
+    System.out.println();
+    System.out.println("TEST 12");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl tableManager = new TableManagerImpl(store);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(DepartmentTableName,
+        new String[]{"Floor", "DName", "Dno"}, new AttributeType[]{AttributeType.INT, AttributeType.VARCHAR,
+            AttributeType.INT}, new String[]{"DName", "Dno"}));
+    assertEquals(StatusCode.SUCCESS, tableManager.dropAttribute(DepartmentTableName, "Floor"));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(DepartmentTableName, "Budget", AttributeType.DOUBLE));
+    assertEquals(StatusCode.SUCCESS, tableManager.addAttribute(DepartmentTableName, "Area", AttributeType.INT));
+
+    // attributes and primary key keep their declared order, in the cache and read back from the database
+    for (TableManager manager : new TableManager[]{tableManager, new TableManagerImpl(store)}) {
+      TableMetadata department = manager.listTables().get(DepartmentTableName);
+      assertEquals(Arrays.asList("DName", "Dno", "Budget", "Area"), new ArrayList<>(department.getAttributes().keySet()));
+      assertEquals(Arrays.asList("DName", "Dno"), department.getPrimaryKeys());
+    }
+  }
+
+  @Test
+  public void unitTest13() {
+    System.out.println();
+    System.out.println("TEST 13");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl creator = new TableManagerImpl(store);
+    assertEquals(StatusCode.SUCCESS, creator.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(StatusCode.SUCCESS, creator.createTable(DepartmentTableName,
+        DepartmentTableAttributeNames, DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    creator.close();
+
+    try (TableManagerFactory shared = new TableManagerFactory(store)) {
+      assertEquals(2, shared.prewarm());
+
+      // a prewarmed catalog is listed without reading any table, by every table manager of the factory
+      TableManagerImpl first = shared.create();
+      TableManagerImpl second = shared.create();
+      shared.getMetrics().reset();
+      assertEquals(2, first.listTables().size());
+      assertEquals(2, second.listTables().size());
+      OperationMetrics.Snapshot listTables = shared.getMetrics().snapshot().get("listTables");
+      assertEquals(2, listTables.pointReads);
+      assertEquals(0, listTables.rangeReads);
+
+      // changes made through one are seen by the other, and closing one leaves the store open
+      assertEquals(StatusCode.SUCCESS, first.deleteTable(EmployeeTableName));
+      first.close();
+      assertFalse(second.tableExists(EmployeeTableName));
+      assertEquals(1, second.listTables().size());
+    }
+
+    TableManagerFactory closed = new TableManagerFactory(new InMemoryKeyValueStore());
+    closed.close();
+    try {
+      closed.create();
+      fail("a closed factory made a table manager");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void unitTest14() throws InterruptedException {
+    System.out.println();
+    System.out.println("TEST 14");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl writer = new TableManagerImpl(store);
+    TableManagerImpl reader = new TableManagerImpl(store);
+    reader.setMaxCatalogStalenessMillis(200);
+    assertTrue(reader.listTables().isEmpty());
+
+    // a stale reader misses others' DDL until its read version is too old
+    assertEquals(StatusCode.SUCCESS, writer.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertFalse(reader.tableExists(EmployeeTableName));
+    assertTrue(reader.listTables().isEmpty());
+    Thread.sleep(250);
+    assertTrue(reader.tableExists(EmployeeTableName));
+    assertEquals(1, reader.listTables().size());
+
+    // but always sees its own
+    assertEquals(StatusCode.SUCCESS, reader.createTable(DepartmentTableName,
+        DepartmentTableAttributeNames, DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    assertTrue(reader.tableExists(DepartmentTableName));
+    assertEquals(2, reader.listTables().size());
+    assertEquals(Arrays.asList(DepartmentTableName, EmployeeTableName), reader.listTableNames(null, 10));
+  }
+
+  @Test
+  public void unitTest15() throws IOException {
+    System.out.println();
+    System.out.println("TEST 15");
+
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl source = new TableManagerImpl(store);
+    assertEquals(StatusCode.SUCCESS, source.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(StatusCode.SUCCESS, source.addAttribute(EmployeeTableName, "Salary", AttributeType.DOUBLE));
+    assertEquals(StatusCode.SUCCESS, source.dropAttribute(EmployeeTableName, "Name"));
+    assertEquals(StatusCode.SUCCESS, source.createIndex(EmployeeTableName, "Salary"));
+    assertEquals(StatusCode.SUCCESS, source.createTable(DepartmentTableName,
+        DepartmentTableAttributeNames, DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    HashMap<String, TableMetadata> tables = source.listTables();
+
+    Path file = Files.createTempFile("catalog", ".snapshot");
+    try {
+      assertEquals(2, source.exportCatalog(file));
+
+      // a new table manager of the same store warms its cache from the file, listing reads no table
+      TableManagerImpl warm = new TableManagerImpl(store);
+      LinkedHashMap<String, StatusCode> imported = warm.importCatalog(file);
+      assertEquals(Arrays.asList(DepartmentTableName, EmployeeTableName), new ArrayList<>(imported.keySet()));
+      assertFalse(imported.containsValue(StatusCode.TABLE_ALREADY_EXISTS));
+      warm.getMetrics().reset();
+      assertEquals(tables, warm.listTables());
+      assertEquals(0, warm.getMetrics().snapshot().get("listTables").rangeReads);
+
+      // an empty store gets the tables back, and they work as before
+      KeyValueStore restoredStore = new InMemoryKeyValueStore();
+      TableManagerImpl restored = new TableManagerImpl(restoredStore);
+      imported = restored.importCatalog(file);
+      assertEquals(StatusCode.SUCCESS, imported.get(EmployeeTableName));
+      assertEquals(StatusCode.SUCCESS, imported.get(DepartmentTableName));
+      assertEquals(tables, restored.listTables());
+      assertEquals(tables, new TableManagerImpl(restoredStore).listTables());
+      assertEquals(StatusCode.SUCCESS, restored.addAttribute(EmployeeTableName, "Name", AttributeType.VARCHAR));
+      assertEquals(StatusCode.INDEX_ALREADY_EXISTS, restored.createIndex(EmployeeTableName, "Salary"));
+
+      // tables that changed since the export are left alone, deleted ones come back
+      assertEquals(StatusCode.SUCCESS, source.deleteTable(DepartmentTableName));
+      assertEquals(StatusCode.SUCCESS, source.addAttribute(EmployeeTableName, "Name", AttributeType.VARCHAR));
+      imported = source.importCatalog(file);
+      assertEquals(StatusCode.TABLE_ALREADY_EXISTS, imported.get(EmployeeTableName));
+      assertEquals(StatusCode.SUCCESS, imported.get(DepartmentTableName));
+      assertEquals(tables.get(DepartmentTableName), source.listTables().get(DepartmentTableName));
+      assertEquals(3, source.listTables().get(EmployeeTableName).getAttributes().size());
+
+      Files.write(file, new byte[]{1, 2, 3});
+      try {
+        source.importCatalog(file);
+        fail("a corrupt snapshot was imported");
+      } catch (IOException expected) {
+      }
+
+      // a bogus table count or table length fails before anything is allocated for it
+      for (int offset : new int[]{24, 28}) {
+        for (int length : new int[]{Integer.MAX_VALUE, -1}) {
+          source.exportCatalog(file);
+          byte[] corrupt = Files.readAllBytes(file);
+          ByteBuffer.wrap(corrupt).putInt(offset, length);
+          Files.write(file, corrupt);
+          try {
+            source.importCatalog(file);
+            fail("a snapshot with a corrupt length was imported");
+          } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("truncated or corrupt catalog snapshot"));
+          }
+        }
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void unitTest16() {
+    System.out.println();
+    System.out.println("TEST 16");
+
+    // a table manager creates tables after another one dropped every table
+    KeyValueStore store = new InMemoryKeyValueStore();
+    TableManagerImpl tableManager = new TableManagerImpl(store);
+    TableManagerImpl dropper = new TableManagerImpl(store);
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(DepartmentTableName,
+        DepartmentTableAttributeNames, DepartmentTableAttributeTypes, DepartmentTablePKAttributes));
+    assertEquals(StatusCode.SUCCESS, dropper.dropAllTables());
+
+    assertEquals(StatusCode.SUCCESS, tableManager.createTable(EmployeeTableName,
+        EmployeeTableAttributeNames, EmployeeTableAttributeTypes, EmployeeTablePKAttributes));
+    assertEquals(Collections.singletonList(StatusCode.SUCCESS), tableManager.createTables(Collections.singletonList(
+        new TableDefinition(DepartmentTableName, DepartmentTableAttributeNames, DepartmentTableAttributeTypes,
+            DepartmentTablePKAttributes))));
+
+    // the new tables are in the new root directory, seen by every table manager
+    List<String> names = Arrays.asList(DepartmentTableName, EmployeeTableName);
+    for (TableManagerImpl manager : new TableManagerImpl[]{tableManager, dropper, new TableManagerImpl(store)}) {
+      assertEquals(names, manager.listTableNames(null, 10));
+      assertEquals(new HashSet<>(names), manager.listTables().keySet());
+    }
+    dropper.collectGarbage().join();
+    assertFalse(store.readAsync(tx -> store.directory().exists(tx, Collections.singletonList("Tables"))).join());
+  }
+}
@@ -1,6 +1,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
 
@@ -10,36 +11,57 @@ import java.util.Objects;
  */
 public class TableMetadata {
 
-  // Map from AttributeName to AttributeType
+  // Map from AttributeName to AttributeType, in declared order
   private HashMap<String, AttributeType> attributes;
 
   // A list contains names of the primary key attribute.
   private List<String> primaryKeys;
 
+  // Map from the name of an indexed attribute to the state of its index
+  private HashMap<String, IndexState> indexes;
+
+  /**
+   * IndexState is the state of a secondary index. A BUILDING index is maintained by every record
+   * write while existing records are backfilled into it, it is only used for lookups once READY.
+   */
+  public enum IndexState {
+    BUILDING,
+    READY
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     TableMetadata table = (TableMetadata) o;
-    return Objects.equals(attributes, table.attributes) && Objects.equals(primaryKeys, table.primaryKeys);
+    return Objects.equals(attributes, table.attributes) && Objects.equals(primaryKeys, table.primaryKeys)
+        && Objects.equals(indexes, table.indexes);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(attributes, primaryKeys);
+    return Objects.hash(attributes, primaryKeys, indexes);
   }
 
   public TableMetadata() {
-    attributes = new HashMap<>();
+    attributes = new LinkedHashMap<>();
     primaryKeys = new ArrayList<>();
+    indexes = new HashMap<>();
   }
 
   public TableMetadata(String[] attributeNames, AttributeType[] attributeTypes, String[] primaryKeys) {
-    attributes = new HashMap<>();
+    attributes = new LinkedHashMap<>();
     for (int i = 0; i < attributeTypes.length; i++) {
       attributes.put(attributeNames[i], attributeTypes[i]);
     }
     this.primaryKeys = Arrays.asList(primaryKeys);
+    indexes = new HashMap<>();
+  }
+
+  public TableMetadata(TableMetadata other) {
+    attributes = new LinkedHashMap<>(other.attributes);
+    primaryKeys = new ArrayList<>(other.primaryKeys);
+    indexes = new HashMap<>(other.indexes);
   }
 
   public boolean doesAttributeExist(String attributeName) {
@@ -58,6 +80,18 @@ public class TableMetadata {
     this.attributes = attributes;
   }
 
+  public HashMap<String, IndexState> getIndexes() {
+    return indexes;
+  }
+
+  public void setIndex(String attributeName, IndexState state) {
+    if (state == null) {
+      indexes.remove(attributeName);
+    } else {
+      indexes.put(attributeName, state);
+    }
+  }
+
   public List<String> getPrimaryKeys() {
     return primaryKeys;
   }
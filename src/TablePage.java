@@ -0,0 +1,29 @@
+import java.util.LinkedHashMap;
+
+/**
+ * TablePage is one page of the catalog, see {TableManager#listTables(String, int)}.
+ */
+public class TablePage {
+
+  // Map from table name to metadata, ordered by name
+  private final LinkedHashMap<String, TableMetadata> tables;
+
+  // name of the last table the page covers, null if there are no more tables after it
+  private final String continuation;
+
+  public TablePage(LinkedHashMap<String, TableMetadata> tables, String continuation) {
+    this.tables = tables;
+    this.continuation = continuation;
+  }
+
+  public LinkedHashMap<String, TableMetadata> getTables() {
+    return tables;
+  }
+
+  /**
+   * @return the startAfter of the next page, null if this is the last one
+   */
+  public String getContinuation() {
+    return continuation;
+  }
+}
@@ -0,0 +1,480 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * TableSchema is the compact, immutable form of a table's metadata that {TableManagerImpl} caches
+ * and that records are encoded and decoded against.
+ *
+ * Attributes are kept in declared order as parallel arrays: their interned names and the ordinals
+ * of their {AttributeType} and {TableMetadata.IndexState}. The primary key is an array of attribute
+ * ordinals in key order. Finding an attribute's ordinal by name is a probe of a small open
+ * addressing table, no per-attribute objects are allocated. Changes go through a {Builder}.
+ *
+ * A table keeps statistics (see {TableStatistics}): its row count, and the aggregates of the INT and
+ * DOUBLE attributes they are created for. Both go through the same BUILDING / READY states as indexes.
+ *
+ * Every change to a table's attributes makes a new schema version. Each attribute remembers the
+ * version it was added in and its default value, so records stored under an older version can be
+ * read as of the current one (see {RecordManagerImpl#decode}).
+ */
+public final class TableSchema {
+
+  private static final AttributeType[] TYPES = AttributeType.values();
+  private static final TableMetadata.IndexState[] INDEX_STATES = TableMetadata.IndexState.values();
+
+  // attributes in declared order
+  private final String[] names;
+  private final byte[] types;
+
+  // ordinal + 1 of the index state of every attribute, 0 if it is not indexed
+  private final byte[] indexStates;
+
+  // ordinal + 1 of the state of every attribute's aggregates, 0 if it has none, and of the row count
+  private final byte[] aggregateStates;
+  private final byte countState;
+
+  // ordinals of the primary key attributes, in key order
+  private final int[] primaryKeys;
+
+  // ordinal + 1 of the attribute whose name hashes to a slot, 0 for free slots; linear probing
+  private final int[] slots;
+
+  // stored position handed to the next attribute added, positions only ever grow so that
+  // declared order survives dropped attributes
+  private final int nextPosition;
+
+  private final int schemaVersion;
+
+  // schema version every attribute was added in, and its default value. Null when they are all
+  // 0 or null, as they are for most tables
+  private final int[] sinceVersions;
+  private final Object[] defaultValues;
+
+  private TableSchema(String[] names, byte[] types, byte[] indexStates, byte[] aggregateStates, byte countState,
+                      int[] primaryKeys, int nextPosition, int schemaVersion, int[] sinceVersions,
+                      Object[] defaultValues) {
+    this.names = names;
+    this.types = types;
+    this.indexStates = indexStates;
+    this.aggregateStates = aggregateStates;
+    this.countState = countState;
+    this.primaryKeys = primaryKeys;
+    this.nextPosition = nextPosition;
+    this.schemaVersion = schemaVersion;
+    this.sinceVersions = sinceVersions;
+    this.defaultValues = defaultValues;
+
+    slots = new int[Integer.highestOneBit(Math.max(names.length, 1) * 2 - 1) << 1];
+    for (int i = 0; i < names.length; i++) {
+      int slot = slotOf(names[i]);
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & (slots.length - 1);
+      }
+      slots[slot] = i + 1;
+    }
+  }
+
+  /**
+   * @return a schema of the attributes in the given order, none of them indexed
+   */
+  public static TableSchema of(String[] attributeNames, AttributeType[] attributeTypes, String[] primaryKeys) {
+    Builder builder = new Builder();
+    for (int i = 0; i < attributeNames.length; i++) {
+      builder.addAttribute(attributeNames[i], attributeTypes[i]);
+    }
+    return builder.setPrimaryKeys(primaryKeys).build();
+  }
+
+  private int slotOf(String name) {
+    int hash = name.hashCode();
+    return (hash ^ (hash >>> 16)) & (slots.length - 1);
+  }
+
+  /**
+   * @return the ordinal of an attribute in declared order, -1 if the table has no such attribute
+   */
+  public int ordinalOf(String attributeName) {
+    int slot = slotOf(attributeName);
+    while (slots[slot] != 0) {
+      String name = names[slots[slot] - 1];
+      if (name == attributeName || name.equals(attributeName))
+        return slots[slot] - 1;
+      slot = (slot + 1) & (slots.length - 1);
+    }
+    return -1;
+  }
+
+  public int getAttributeCount() {
+    return names.length;
+  }
+
+  public String getAttributeName(int ordinal) {
+    return names[ordinal];
+  }
+
+  public AttributeType getAttributeType(int ordinal) {
+    return TYPES[types[ordinal]];
+  }
+
+  /**
+   * @return the type of an attribute, null if the table has no such attribute
+   */
+  public AttributeType getAttributeType(String attributeName) {
+    int ordinal = ordinalOf(attributeName);
+    return ordinal < 0 ? null : TYPES[types[ordinal]];
+  }
+
+  public boolean doesAttributeExist(String attributeName) {
+    return ordinalOf(attributeName) >= 0;
+  }
+
+  public int getPrimaryKeyCount() {
+    return primaryKeys.length;
+  }
+
+  /**
+   * @return the attribute ordinal of the i-th primary key attribute
+   */
+  public int getPrimaryKeyOrdinal(int i) {
+    return primaryKeys[i];
+  }
+
+  public String getPrimaryKeyName(int i) {
+    return names[primaryKeys[i]];
+  }
+
+  /**
+   * @return the position of an attribute in the primary key, -1 if it is not part of it
+   */
+  public int primaryKeyIndexOf(int ordinal) {
+    for (int i = 0; i < primaryKeys.length; i++) {
+      if (primaryKeys[i] == ordinal)
+        return i;
+    }
+    return -1;
+  }
+
+  public boolean isPrimaryKey(String attributeName) {
+    int ordinal = ordinalOf(attributeName);
+    return ordinal >= 0 && primaryKeyIndexOf(ordinal) >= 0;
+  }
+
+  /**
+   * @return the state of the attribute's index, null if it is not indexed
+   */
+  public TableMetadata.IndexState getIndexState(int ordinal) {
+    return indexStates[ordinal] == 0 ? null : INDEX_STATES[indexStates[ordinal] - 1];
+  }
+
+  public TableMetadata.IndexState getIndexState(String attributeName) {
+    int ordinal = ordinalOf(attributeName);
+    return ordinal < 0 ? null : getIndexState(ordinal);
+  }
+
+  public boolean hasIndexes() {
+    for (byte state : indexStates) {
+      if (state != 0)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the state of the attribute's aggregates, null if it has none
+   */
+  public TableMetadata.IndexState getAggregateState(int ordinal) {
+    return aggregateStates[ordinal] == 0 ? null : INDEX_STATES[aggregateStates[ordinal] - 1];
+  }
+
+  public TableMetadata.IndexState getAggregateState(String attributeName) {
+    int ordinal = ordinalOf(attributeName);
+    return ordinal < 0 ? null : getAggregateState(ordinal);
+  }
+
+  /**
+   * @return the state of the table's row count, null if it is not kept
+   */
+  public TableMetadata.IndexState getCountState() {
+    return countState == 0 ? null : INDEX_STATES[countState - 1];
+  }
+
+  /**
+   * @return true if record writes have statistics to maintain
+   */
+  public boolean hasStatistics() {
+    if (countState != 0)
+      return true;
+    for (byte state : aggregateStates) {
+      if (state != 0)
+        return true;
+    }
+    return false;
+  }
+
+  public int getNextPosition() {
+    return nextPosition;
+  }
+
+  public int getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  /**
+   * @return the schema version the attribute was added in
+   */
+  public int getSinceVersion(int ordinal) {
+    return sinceVersions == null ? 0 : sinceVersions[ordinal];
+  }
+
+  /**
+   * @return the value records stored before the attribute was added read for it, null if none
+   */
+  public Object getDefaultValue(int ordinal) {
+    return defaultValues == null ? null : defaultValues[ordinal];
+  }
+
+  /**
+   * @return a mutable copy, attributes in declared order
+   */
+  public TableMetadata toTableMetadata() {
+    String[] primaryKeyNames = new String[primaryKeys.length];
+    for (int i = 0; i < primaryKeys.length; i++) {
+      primaryKeyNames[i] = names[primaryKeys[i]];
+    }
+
+    AttributeType[] attributeTypes = new AttributeType[names.length];
+    for (int i = 0; i < names.length; i++) {
+      attributeTypes[i] = TYPES[types[i]];
+    }
+
+    TableMetadata table = new TableMetadata(names, attributeTypes, primaryKeyNames);
+    for (int i = 0; i < names.length; i++) {
+      if (indexStates[i] != 0)
+        table.setIndex(names[i], INDEX_STATES[indexStates[i] - 1]);
+    }
+    return table;
+  }
+
+  /**
+   * @return a builder starting out with this schema
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    TableSchema schema = (TableSchema) o;
+    return schemaVersion == schema.schemaVersion && Arrays.equals(names, schema.names)
+        && Arrays.equals(types, schema.types) && Arrays.equals(indexStates, schema.indexStates)
+        && Arrays.equals(aggregateStates, schema.aggregateStates) && countState == schema.countState
+        && Arrays.equals(primaryKeys, schema.primaryKeys) && Arrays.equals(sinceVersions, schema.sinceVersions)
+        && Arrays.equals(defaultValues, schema.defaultValues);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(names) + Arrays.hashCode(primaryKeys);
+  }
+
+  @Override
+  public String toString() {
+    TableMetadata table = toTableMetadata();
+    return table.getAttributes() + " key " + table.getPrimaryKeys();
+  }
+
+  /**
+   * Builder collects attribute changes and makes a new {TableSchema} of them.
+   */
+  public static final class Builder {
+
+    private final List<String> names = new ArrayList<>();
+    private final List<AttributeType> types = new ArrayList<>();
+    private final List<TableMetadata.IndexState> indexStates = new ArrayList<>();
+    private final List<TableMetadata.IndexState> aggregateStates = new ArrayList<>();
+    // stored position of every attribute, -1 if it has none
+    private final List<Integer> positions = new ArrayList<>();
+    private final List<Integer> sinceVersions = new ArrayList<>();
+    private final List<Object> defaultValues = new ArrayList<>();
+    private final List<String> primaryKeys = new ArrayList<>();
+    private int nextPosition;
+    private int schemaVersion;
+    private TableMetadata.IndexState countState;
+
+    public Builder() {
+    }
+
+    private Builder(TableSchema schema) {
+      for (int i = 0; i < schema.names.length; i++) {
+        names.add(schema.names[i]);
+        types.add(schema.getAttributeType(i));
+        indexStates.add(schema.getIndexState(i));
+        aggregateStates.add(schema.getAggregateState(i));
+        positions.add(i);
+        sinceVersions.add(schema.getSinceVersion(i));
+        defaultValues.add(schema.getDefaultValue(i));
+      }
+      for (int ordinal : schema.primaryKeys) {
+        primaryKeys.add(schema.names[ordinal]);
+      }
+      nextPosition = schema.nextPosition;
+      schemaVersion = schema.schemaVersion;
+      countState = schema.getCountState();
+    }
+
+    public Builder setSchemaVersion(int schemaVersion) {
+      this.schemaVersion = schemaVersion;
+      return this;
+    }
+
+    /**
+     * Raises the position handed to the next attribute added, positions of dropped attributes are
+     * not handed out again
+     */
+    public Builder setNextPosition(int nextPosition) {
+      this.nextPosition = Math.max(this.nextPosition, nextPosition);
+      return this;
+    }
+
+    /**
+     * Adds an attribute after all others, in the current schema version and without a default
+     */
+    public Builder addAttribute(String attributeName, AttributeType attributeType) {
+      return addAttribute(attributeName, attributeType, nextPosition, schemaVersion, null);
+    }
+
+    /**
+     * Adds an attribute after all others, in the current schema version
+     */
+    public Builder addAttribute(String attributeName, AttributeType attributeType, Object defaultValue) {
+      return addAttribute(attributeName, attributeType, nextPosition, schemaVersion, defaultValue);
+    }
+
+    /**
+     * Adds an attribute at its stored position, attributes are ordered by position when built.
+     * Attributes without a position (-1) go first, in the order they are added
+     */
+    public Builder addAttribute(String attributeName, AttributeType attributeType, int position, int sinceVersion,
+                                Object defaultValue) {
+      int existing = names.indexOf(attributeName);
+      if (existing >= 0) {
+        types.set(existing, attributeType);
+        return this;
+      }
+      names.add(attributeName);
+      types.add(attributeType);
+      indexStates.add(null);
+      aggregateStates.add(null);
+      positions.add(position);
+      sinceVersions.add(sinceVersion);
+      defaultValues.add(defaultValue);
+      nextPosition = Math.max(nextPosition, position + 1);
+      return this;
+    }
+
+    /**
+     * Removes an attribute, its index, its aggregates and its place in the primary key
+     */
+    public Builder dropAttribute(String attributeName) {
+      int ordinal = names.indexOf(attributeName);
+      if (ordinal >= 0) {
+        names.remove(ordinal);
+        types.remove(ordinal);
+        indexStates.remove(ordinal);
+        aggregateStates.remove(ordinal);
+        positions.remove(ordinal);
+        sinceVersions.remove(ordinal);
+        defaultValues.remove(ordinal);
+        primaryKeys.remove(attributeName);
+      }
+      return this;
+    }
+
+    public Builder setPrimaryKeys(String... primaryKeyNames) {
+      primaryKeys.clear();
+      primaryKeys.addAll(Arrays.asList(primaryKeyNames));
+      return this;
+    }
+
+    /**
+     * Sets the state of an attribute's index, null removes the index
+     */
+    public Builder setIndex(String attributeName, TableMetadata.IndexState state) {
+      int ordinal = names.indexOf(attributeName);
+      if (ordinal >= 0)
+        indexStates.set(ordinal, state);
+      return this;
+    }
+
+    /**
+     * Sets the state of an attribute's aggregates, null removes them
+     */
+    public Builder setAggregate(String attributeName, TableMetadata.IndexState state) {
+      int ordinal = names.indexOf(attributeName);
+      if (ordinal >= 0)
+        aggregateStates.set(ordinal, state);
+      return this;
+    }
+
+    /**
+     * Sets the state of the table's row count, null if it is not kept
+     */
+    public Builder setCountState(TableMetadata.IndexState state) {
+      this.countState = state;
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a primary key attribute is not an attribute of the table
+     */
+    public TableSchema build() {
+      Integer[] order = new Integer[names.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      // stable, so attributes without a position keep the order they were added in
+      Arrays.sort(order, (a, b) -> Integer.compare(positions.get(a), positions.get(b)));
+
+      String[] sortedNames = new String[order.length];
+      byte[] sortedTypes = new byte[order.length];
+      byte[] sortedIndexStates = new byte[order.length];
+      byte[] sortedAggregateStates = new byte[order.length];
+      int[] sortedSinceVersions = null;
+      Object[] sortedDefaultValues = null;
+      for (int i = 0; i < order.length; i++) {
+        sortedNames[i] = names.get(order[i]).intern();
+        sortedTypes[i] = (byte) types.get(order[i]).ordinal();
+        TableMetadata.IndexState state = indexStates.get(order[i]);
+        sortedIndexStates[i] = (byte) (state == null ? 0 : state.ordinal() + 1);
+        TableMetadata.IndexState aggregateState = aggregateStates.get(order[i]);
+        sortedAggregateStates[i] = (byte) (aggregateState == null ? 0 : aggregateState.ordinal() + 1);
+
+        if (sinceVersions.get(order[i]) != 0) {
+          if (sortedSinceVersions == null)
+            sortedSinceVersions = new int[order.length];
+          sortedSinceVersions[i] = sinceVersions.get(order[i]);
+        }
+        if (defaultValues.get(order[i]) != null) {
+          if (sortedDefaultValues == null)
+            sortedDefaultValues = new Object[order.length];
+          sortedDefaultValues[i] = defaultValues.get(order[i]);
+        }
+      }
+
+      int[] primaryKeyOrdinals = new int[primaryKeys.size()];
+      for (int i = 0; i < primaryKeyOrdinals.length; i++) {
+        primaryKeyOrdinals[i] = Arrays.asList(sortedNames).indexOf(primaryKeys.get(i));
+        if (primaryKeyOrdinals[i] < 0)
+          throw new IllegalArgumentException("primary key attribute " + primaryKeys.get(i) + " not found");
+      }
+
+      return new TableSchema(sortedNames, sortedTypes, sortedIndexStates, sortedAggregateStates,
+          (byte) (countState == null ? 0 : countState.ordinal() + 1), primaryKeyOrdinals,
+          Math.max(nextPosition, order.length), schemaVersion, sortedSinceVersions, sortedDefaultValues);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TableSchemaTest {
+  public static String[] EmployeeTableAttributeNames = new String[]{"SSN", "Name", "Salary", "Dno"};
+  public static AttributeType[] EmployeeTableAttributeTypes = new AttributeType[]{AttributeType.INT,
+      AttributeType.VARCHAR, AttributeType.DOUBLE, AttributeType.INT};
+  public static String[] EmployeeTablePKAttributes = new String[]{"Dno", "SSN"};
+
+  @Test
+  public void lookupsFollowDeclaredOrder() {
+    TableSchema schema = TableSchema.of(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes);
+
+    assertEquals(4, schema.getAttributeCount());
+    for (int i = 0; i < EmployeeTableAttributeNames.length; i++) {
+      assertEquals(i, schema.ordinalOf(EmployeeTableAttributeNames[i]));
+      assertEquals(EmployeeTableAttributeTypes[i], schema.getAttributeType(i));
+    }
+    assertEquals(-1, schema.ordinalOf("Address"));
+    assertNull(schema.getAttributeType("Address"));
+
+    assertEquals(2, schema.getPrimaryKeyCount());
+    assertEquals(3, schema.getPrimaryKeyOrdinal(0));
+    assertEquals("SSN", schema.getPrimaryKeyName(1));
+    assertTrue(schema.isPrimaryKey("Dno"));
+    assertFalse(schema.isPrimaryKey("Name"));
+
+    // names are interned, so every table shares one copy of a name
+    assertSame("Salary", schema.getAttributeName(schema.ordinalOf(new String("Salary"))));
+
+    TableMetadata table = new TableMetadata(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes);
+    assertEquals(table, schema.toTableMetadata());
+    assertEquals(Arrays.asList(EmployeeTableAttributeNames),
+        Arrays.asList(schema.toTableMetadata().getAttributes().keySet().toArray()));
+  }
+
+  @Test
+  public void buildersLeaveSchemasUnchanged() {
+    TableSchema schema = TableSchema.of(EmployeeTableAttributeNames, EmployeeTableAttributeTypes,
+        EmployeeTablePKAttributes);
+    TableSchema changed = schema.toBuilder()
+        .dropAttribute("Name")
+        .addAttribute("Address", AttributeType.VARCHAR)
+        .setIndex("Salary", TableMetadata.IndexState.READY)
+        .build();
+
+    assertEquals(4, schema.getAttributeCount());
+    assertEquals(1, schema.ordinalOf("Name"));
+    assertFalse(schema.hasIndexes());
+
+    assertEquals(-1, changed.ordinalOf("Name"));
+    assertEquals(3, changed.ordinalOf("Address"));
+    assertEquals(TableMetadata.IndexState.READY, changed.getIndexState("Salary"));
+    assertEquals(5, changed.getNextPosition());
+
+    // attributes are ordered by their stored positions, those without one first
+    TableSchema decoded = new TableSchema.Builder()
+        .addAttribute("b", AttributeType.INT, 7, 0, null)
+        .addAttribute("a", AttributeType.INT, 2, 0, null)
+        .addAttribute("legacy", AttributeType.INT, -1, 0, null)
+        .setPrimaryKeys("a")
+        .build();
+    assertEquals("legacy", decoded.getAttributeName(0));
+    assertEquals("a", decoded.getAttributeName(1));
+    assertEquals("b", decoded.getAttributeName(2));
+    assertEquals(8, decoded.getNextPosition());
+  }
+}
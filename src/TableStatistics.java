@@ -0,0 +1,247 @@
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.async.AsyncUtil;
+import com.apple.foundationdb.subspace.Subspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * TableStatistics keeps a table's row count, and the sum, minimum and maximum of the INT and DOUBLE
+ * attributes aggregates are created for (see {TableManagerImpl#createAggregate}), as counters every
+ * record write changes with atomic mutations. A mutation reads nothing, so writes of different records
+ * never conflict on the counters, and reading a statistic is one point read.
+ *
+ * The counters live in the table's meta directory, behind every entry its metadata is read from:
+ * the row count, (STATISTICS_TAG, "count") -> little-endian long, added to;
+ * an attribute's sum, (STATISTICS_TAG, "sum", attributeName) -> 16-byte little-endian two's complement,
+ * added to. Atomic adds are integer adds, so DOUBLE values are summed in fixed point, rounded to
+ * DOUBLE_SUM_SCALE decimal places;
+ * its bounds, (STATISTICS_TAG, "min" | "max", attributeName) -> 8 bytes that compare as the values do
+ * (see ordered), kept with atomic min and max. They only ever widen: the value of a record since
+ * deleted or updated may still bound them;
+ * how far the build of a statistic has got, (STATISTICS_TAG, "built"[, attributeName]) -> rawKey, the
+ * records before rawKey are counted in.
+ *
+ * A statistic is BUILDING while the records stored before it was created are counted in. A record
+ * write only changes it once the build has passed the record's key, and reads the build's progress
+ * to know: a write and a build chunk over the same record conflict, whichever commits first is seen
+ * by the other. NaN values are not counted, infinite ones are left out of sums.
+ */
+final class TableStatistics {
+
+  // decimal places DOUBLE sums are kept to
+  static final int DOUBLE_SUM_SCALE = 9;
+
+  private static final int SUM_BYTES = 16;
+
+  private TableStatistics() {
+  }
+
+  static byte[] countKey(Subspace metaDir) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.STATISTICS_TAG, "count"));
+  }
+
+  static byte[] sumKey(Subspace metaDir, String attributeName) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.STATISTICS_TAG, "sum", attributeName));
+  }
+
+  static byte[] minKey(Subspace metaDir, String attributeName) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.STATISTICS_TAG, "min", attributeName));
+  }
+
+  static byte[] maxKey(Subspace metaDir, String attributeName) {
+    return metaDir.pack(Tuple.from(TableManagerImpl.STATISTICS_TAG, "max", attributeName));
+  }
+
+  /**
+   * @return the key of a statistic's build progress, attributeName null for the row count
+   */
+  static byte[] builtKey(Subspace metaDir, String attributeName) {
+    Tuple key = Tuple.from(TableManagerImpl.STATISTICS_TAG, "built");
+    return metaDir.pack(attributeName == null ? key : key.add(attributeName));
+  }
+
+  /**
+   * @return the state of a statistic, attributeName null for the row count
+   */
+  static TableMetadata.IndexState state(TableSchema table, String attributeName) {
+    return attributeName == null ? table.getCountState() : table.getAggregateState(attributeName);
+  }
+
+  // clears an attribute's counters and build progress in tx
+  static void clear(KeyValueTransaction tx, Subspace metaDir, String attributeName) {
+    tx.clear(sumKey(metaDir, attributeName));
+    tx.clear(minKey(metaDir, attributeName));
+    tx.clear(maxKey(metaDir, attributeName));
+    tx.clear(builtKey(metaDir, attributeName));
+  }
+
+  /**
+   * Applies a record write to the table's statistics in tx
+   *
+   * @param key the record's key in the raw directory
+   * @param before the record as it was stored, null if there was none
+   * @param after the record as it is stored now, null if it was deleted
+   */
+  static CompletableFuture<Void> update(KeyValueTransaction tx, TableSchema table, Subspace metaDir, byte[] key,
+                                        Record before, Record after) {
+    List<CompletableFuture<Void>> updates = new ArrayList<>();
+    long rows = (after == null ? 0 : 1) - (before == null ? 0 : 1);
+    if (table.getCountState() != null && rows != 0)
+      updates.add(whenCounted(tx, table.getCountState(), builtKey(metaDir, null), key, () -> addRows(tx, metaDir, rows)));
+
+    for (int ordinal = 0; ordinal < table.getAttributeCount(); ordinal++) {
+      TableMetadata.IndexState state = table.getAggregateState(ordinal);
+      if (state == null)
+        continue;
+
+      String attributeName = table.getAttributeName(ordinal);
+      Object oldValue = before == null ? null : Record.normalize(before.getValue(attributeName));
+      Object newValue = after == null ? null : Record.normalize(after.getValue(attributeName));
+      if (Objects.equals(oldValue, newValue))
+        continue;
+
+      updates.add(whenCounted(tx, state, builtKey(metaDir, attributeName), key, () -> {
+        BigInteger delta = fixedPoint(newValue).subtract(fixedPoint(oldValue));
+        if (delta.signum() != 0)
+          tx.mutate(MutationType.ADD, sumKey(metaDir, attributeName), sumBytes(delta));
+        if (isCounted(newValue)) {
+          byte[] bound = longBytes(ordered(newValue));
+          tx.mutate(MutationType.MIN, minKey(metaDir, attributeName), bound);
+          tx.mutate(MutationType.MAX, maxKey(metaDir, attributeName), bound);
+        }
+      }));
+    }
+    return AsyncUtil.whenAll(updates);
+  }
+
+  // runs change if the statistic counts the record at key: always once it is READY, while it is
+  // BUILDING only if the build has passed the key
+  private static CompletableFuture<Void> whenCounted(KeyValueTransaction tx, TableMetadata.IndexState state,
+                                                     byte[] builtKey, byte[] key, Runnable change) {
+    if (state == TableMetadata.IndexState.READY) {
+      change.run();
+      return AsyncUtil.DONE;
+    }
+    return tx.get(builtKey).thenAccept(built -> {
+      if (built != null && ByteArrayUtil.compareUnsigned(key, built) < 0)
+        change.run();
+    });
+  }
+
+  // adds to the row count in tx
+  static void addRows(KeyValueTransaction tx, Subspace metaDir, long rows) {
+    tx.mutate(MutationType.ADD, countKey(metaDir), longBytes(rows));
+  }
+
+  // counts the values of stored records into an attribute's aggregates in tx, with one mutation each
+  static void addValues(KeyValueTransaction tx, Subspace metaDir, String attributeName, List<Record> records) {
+    BigInteger sum = BigInteger.ZERO;
+    boolean counted = false;
+    long min = -1;
+    long max = 0;
+    for (Record record : records) {
+      Object value = Record.normalize(record.getValue(attributeName));
+      if (!isCounted(value))
+        continue;
+
+      sum = sum.add(fixedPoint(value));
+      long bound = ordered(value);
+      min = Long.compareUnsigned(bound, min) < 0 ? bound : min;
+      max = Long.compareUnsigned(bound, max) > 0 ? bound : max;
+      counted = true;
+    }
+
+    if (sum.signum() != 0)
+      tx.mutate(MutationType.ADD, sumKey(metaDir, attributeName), sumBytes(sum));
+    if (counted) {
+      tx.mutate(MutationType.MIN, minKey(metaDir, attributeName), longBytes(min));
+      tx.mutate(MutationType.MAX, maxKey(metaDir, attributeName), longBytes(max));
+    }
+  }
+
+  private static boolean isCounted(Object value) {
+    return value != null && !(value instanceof Double && Double.isNaN((Double) value));
+  }
+
+  // a value as summed: itself for INT, scaled by 10^DOUBLE_SUM_SCALE for DOUBLE, 0 if it is not summed
+  private static BigInteger fixedPoint(Object value) {
+    if (value instanceof Long)
+      return BigInteger.valueOf((Long) value);
+    if (!(value instanceof Double) || Double.isNaN((Double) value) || Double.isInfinite((Double) value))
+      return BigInteger.ZERO;
+    return new BigDecimal((Double) value).movePointRight(DOUBLE_SUM_SCALE).setScale(0, RoundingMode.HALF_EVEN)
+        .toBigInteger();
+  }
+
+  // a value as a long that compares unsigned as the values compare: the sign bit of an INT flipped,
+  // every bit of a negative DOUBLE flipped and only the sign bit of the others, so atomic min and
+  // max (unsigned little-endian comparisons) order the values correctly
+  private static long ordered(Object value) {
+    if (value instanceof Long)
+      return (Long) value ^ Long.MIN_VALUE;
+    long bits = Double.doubleToLongBits((Double) value);
+    return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+  }
+
+  private static byte[] longBytes(long value) {
+    return ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+  }
+
+  // SUM_BYTES of little-endian two's complement, a sum that does not fit wraps
+  private static byte[] sumBytes(BigInteger value) {
+    byte[] bigEndian = value.toByteArray();
+    byte[] bytes = new byte[SUM_BYTES];
+    for (int i = 0; i < SUM_BYTES; i++) {
+      int index = bigEndian.length - 1 - i;
+      bytes[i] = index >= 0 ? bigEndian[index] : (byte) (value.signum() < 0 ? -1 : 0);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the row count stored as value
+   */
+  static long decodeCount(byte[] value) {
+    return value == null ? 0 : ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  /**
+   * @return the sum stored as value, a Long for INT and a Double for DOUBLE
+   * @throws ArithmeticException if an INT sum does not fit a long
+   */
+  static Number decodeSum(AttributeType type, byte[] value) {
+    BigInteger sum = BigInteger.ZERO;
+    if (value != null) {
+      byte[] bigEndian = new byte[value.length];
+      for (int i = 0; i < value.length; i++) {
+        bigEndian[i] = value[value.length - 1 - i];
+      }
+      sum = new BigInteger(bigEndian);
+    }
+    if (type == AttributeType.INT)
+      return sum.longValueExact();
+    return new BigDecimal(sum, DOUBLE_SUM_SCALE).doubleValue();
+  }
+
+  /**
+   * @return the minimum or maximum stored as value, null if no value was counted
+   */
+  static Number decodeBound(AttributeType type, byte[] value) {
+    if (value == null)
+      return null;
+    long bound = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    if (type == AttributeType.INT)
+      return bound ^ Long.MIN_VALUE;
+    return Double.longBitsToDouble(bound < 0 ? bound ^ Long.MIN_VALUE : ~bound);
+  }
+}